@@ -4,6 +4,8 @@ import com.magpi.model.TestSession;
 import com.magpi.ui.HistoryPage;
 import com.magpi.ui.LoginPage;
 import com.magpi.ui.TablePage;
+import com.magpi.util.PersistentLibrary;
+import com.magpi.util.SessionJournal;
 
 import javax.swing.*;
 import javax.swing.plaf.ColorUIResource;
@@ -12,6 +14,8 @@ import javax.swing.table.TableColumn;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.time.format.DateTimeFormatter;
 
 /**
  * Main class for the application
@@ -55,6 +59,9 @@ public class Main {
 
         // Show the frame
         frame.setVisible(true);
+
+        // Offer to resume a session that was interrupted by a crash
+        resumeUnfinishedSession();
     }
 
     /**
@@ -314,6 +321,58 @@ public class Main {
             return; // Login validation failed
         }
 
+        // Journal the session so it can be recovered after a crash
+        try {
+            session.setJournal(SessionJournal.create(session, SessionJournal.configuredSyncIntervalMs()));
+        } catch (IOException e) {
+            System.err.println("Failed to create session journal: " + e.getMessage());
+        }
+
+        openSessionPages();
+    }
+
+    /**
+     * Looks for a session whose journal was never ended and offers to resume it
+     */
+    private void resumeUnfinishedSession() {
+        SessionJournal.Recovery recovery = SessionJournal.findUnfinished();
+        if (recovery == null) {
+            return;
+        }
+
+        TestSession recovered = recovery.getSession();
+        if (recovery.getTruncatedBytes() > 0) {
+            System.err.println("Discarded " + recovery.getTruncatedBytes() + " bytes after the last good record of "
+                    + recovery.getFile().getName());
+        }
+
+        int choice = JOptionPane.showConfirmDialog(frame,
+                "A session started " +
+                        recovered.getStartTime().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) +
+                        " by " + recovered.getOperatorName() + " was not ended.\n" +
+                        recovered.getTotalPartsCount() + " parts were recovered. Resume this session?",
+                "Resume Session",
+                JOptionPane.YES_NO_OPTION);
+        if (choice != JOptionPane.YES_OPTION) {
+            return;
+        }
+
+        session = recovered;
+        openSessionPages();
+        try {
+            SessionJournal journal = SessionJournal.reopen(recovery, SessionJournal.configuredSyncIntervalMs());
+            // The table page may have reloaded the thresholds from the library
+            journal.thresholdsChanged(session.getHeadShotThreshold(), session.getCoilShotThreshold());
+            session.setJournal(journal);
+        } catch (IOException e) {
+            System.err.println("Failed to reopen session journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the table and history pages for the current session and shows them
+     */
+    private void openSessionPages() {
         // Create the table page and history page
         tablePage = new TablePage(session);
         historyPage = new HistoryPage(session);
@@ -383,6 +442,9 @@ public class Main {
      * @param args Command line arguments
      */
     public static void main(String[] args) {
+        // Read the library while the window is being built
+        PersistentLibrary.load();
+
         // Create the application on the event dispatch thread
         SwingUtilities.invokeLater(() -> new Main());
     }
@@ -4,6 +4,9 @@ package com.magpi.model;
  * Represents a single measurement reading from the meters
  */
 public class Measurement {
+    public static final int HEADSHOT_METER = 1;
+    public static final int COILSHOT_METER = 2;
+
     private double current;
     private double duration;
     private String meterType; // "Headshot" or "Coilshot"
@@ -26,6 +29,22 @@ public class Measurement {
         return meterType;
     }
     
+    /**
+     * Maps the meter number sent by the firmware to its meter type
+     * @param meter The meter number
+     * @return "Headshot", "Coilshot" or null for an unknown meter
+     */
+    public static String meterTypeFor(int meter) {
+        switch (meter) {
+            case HEADSHOT_METER:
+                return "Headshot";
+            case COILSHOT_METER:
+                return "Coilshot";
+            default:
+                return null;
+        }
+    }
+    
     @Override
     public String toString() {
         return String.format("%s: Current=%.2f, Duration=%.3f", meterType, current, duration);
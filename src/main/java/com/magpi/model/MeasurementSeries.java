@@ -0,0 +1,142 @@
+package com.magpi.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the readings of one meter for one part in primitive columns, one
+ * array for currents and one for durations. The highest, lowest and mean
+ * current are updated as readings are appended, so reading them is O(1).
+ */
+public class MeasurementSeries {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final String meterType;
+    private double[] currents;
+    private double[] durations;
+    private int size;
+    private double highestCurrent;
+    private double lowestCurrent;
+    private double currentSum;
+
+    /**
+     * Creates an empty series
+     * @param meterType "Headshot" or "Coilshot"
+     */
+    public MeasurementSeries(String meterType) {
+        this.meterType = meterType;
+        this.currents = new double[INITIAL_CAPACITY];
+        this.durations = new double[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Appends a reading
+     * @param current The current value
+     * @param duration The duration value
+     */
+    public void add(double current, double duration) {
+        if (size == currents.length) {
+            currents = Arrays.copyOf(currents, size * 2);
+            durations = Arrays.copyOf(durations, size * 2);
+        }
+        currents[size] = current;
+        durations[size] = duration;
+
+        if (size == 0) {
+            highestCurrent = current;
+            lowestCurrent = current;
+        } else {
+            highestCurrent = Math.max(highestCurrent, current);
+            lowestCurrent = Math.min(lowestCurrent, current);
+        }
+        currentSum += current;
+        size++;
+    }
+
+    public String getMeterType() {
+        return meterType;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the current of a reading
+     * @param index The index of the reading (0-based)
+     * @return The current value
+     */
+    public double getCurrent(int index) {
+        checkIndex(index);
+        return currents[index];
+    }
+
+    /**
+     * Gets the duration of a reading
+     * @param index The index of the reading (0-based)
+     * @return The duration value
+     */
+    public double getDuration(int index) {
+        checkIndex(index);
+        return durations[index];
+    }
+
+    /**
+     * Gets the highest current, or 0 if there are no readings
+     */
+    public double getHighestCurrent() {
+        return size == 0 ? 0 : highestCurrent;
+    }
+
+    /**
+     * Gets the lowest current, or 0 if there are no readings
+     */
+    public double getLowestCurrent() {
+        return size == 0 ? 0 : lowestCurrent;
+    }
+
+    /**
+     * Gets the mean current, or 0 if there are no readings
+     */
+    public double getMeanCurrent() {
+        return size == 0 ? 0 : currentSum / size;
+    }
+
+    /**
+     * Creates a Measurement object for a reading
+     * @param index The index of the reading (0-based)
+     * @return The measurement
+     */
+    public Measurement toMeasurement(int index) {
+        return new Measurement(meterType, getCurrent(index), getDuration(index));
+    }
+
+    /**
+     * Gets a read-only list view of the readings. Measurement objects are
+     * created as the list is read, so this is meant for reports, not hot paths.
+     */
+    public List<Measurement> asList() {
+        return new AbstractList<Measurement>() {
+            @Override
+            public Measurement get(int index) {
+                return toMeasurement(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.magpi.model;
 
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -11,25 +10,60 @@ public class TestPart {
     private int partNumber;
     private String partDescription;
     private LocalDateTime testTime;
-    private List<Measurement> headshotMeasurements;
-    private List<Measurement> coilshotMeasurements;
+    private MeasurementSeries headshotMeasurements;
+    private MeasurementSeries coilshotMeasurements;
     private String status; // "Accept" or "Reject"
+    private TestSession session;
     
     public TestPart(int partNumber, String partDescription) {
+        this(partNumber, partDescription, LocalDateTime.now());
+    }
+    
+    /**
+     * Creates a part tested at the given time, used when a session is rebuilt from its journal
+     * @param partNumber The part number
+     * @param partDescription The part description
+     * @param testTime The time the part was created
+     */
+    public TestPart(int partNumber, String partDescription, LocalDateTime testTime) {
         this.partNumber = partNumber;
         this.partDescription = partDescription;
-        this.testTime = LocalDateTime.now();
-        this.headshotMeasurements = new ArrayList<>();
-        this.coilshotMeasurements = new ArrayList<>();
+        this.testTime = testTime;
+        this.headshotMeasurements = new MeasurementSeries("Headshot");
+        this.coilshotMeasurements = new MeasurementSeries("Coilshot");
         this.status = "";
     }
     
     public void addHeadshotMeasurement(Measurement measurement) {
-        headshotMeasurements.add(measurement);
+        addHeadshotMeasurement(measurement.getCurrent(), measurement.getDuration());
     }
     
     public void addCoilshotMeasurement(Measurement measurement) {
-        coilshotMeasurements.add(measurement);
+        addCoilshotMeasurement(measurement.getCurrent(), measurement.getDuration());
+    }
+    
+    /**
+     * Adds a headshot reading without creating a Measurement object
+     * @param current The current value
+     * @param duration The duration value
+     */
+    public void addHeadshotMeasurement(double current, double duration) {
+        headshotMeasurements.add(current, duration);
+        if (session != null) {
+            session.onMeasurementAdded(this, Measurement.HEADSHOT_METER, current, duration);
+        }
+    }
+    
+    /**
+     * Adds a coilshot reading without creating a Measurement object
+     * @param current The current value
+     * @param duration The duration value
+     */
+    public void addCoilshotMeasurement(double current, double duration) {
+        coilshotMeasurements.add(current, duration);
+        if (session != null) {
+            session.onMeasurementAdded(this, Measurement.COILSHOT_METER, current, duration);
+        }
     }
     
     public int getPartNumber() {
@@ -44,11 +78,25 @@ public class TestPart {
         return testTime;
     }
     
+    /**
+     * Gets a read-only view of the headshot measurements
+     */
     public List<Measurement> getHeadshotMeasurements() {
-        return headshotMeasurements;
+        return headshotMeasurements.asList();
     }
     
+    /**
+     * Gets a read-only view of the coilshot measurements
+     */
     public List<Measurement> getCoilshotMeasurements() {
+        return coilshotMeasurements.asList();
+    }
+    
+    public MeasurementSeries getHeadshotSeries() {
+        return headshotMeasurements;
+    }
+    
+    public MeasurementSeries getCoilshotSeries() {
         return coilshotMeasurements;
     }
     
@@ -57,7 +105,18 @@ public class TestPart {
     }
     
     public void setStatus(String status) {
+        String oldStatus = this.status;
         this.status = status;
+        if (session != null) {
+            session.onPartStatusChanged(this, oldStatus, status);
+        }
+    }
+    
+    /**
+     * Sets the session that owns this part, so status changes reach its tallies
+     */
+    void setSession(TestSession session) {
+        this.session = session;
     }
     
     /**
@@ -67,7 +126,7 @@ public class TestPart {
      */
     public Measurement getHeadshotMeasurement(int index) {
         if (index >= 0 && index < headshotMeasurements.size()) {
-            return headshotMeasurements.get(index);
+            return headshotMeasurements.toMeasurement(index);
         }
         return null;
     }
@@ -79,7 +138,7 @@ public class TestPart {
      */
     public Measurement getCoilshotMeasurement(int index) {
         if (index >= 0 && index < coilshotMeasurements.size()) {
-            return coilshotMeasurements.get(index);
+            return coilshotMeasurements.toMeasurement(index);
         }
         return null;
     }
@@ -88,19 +147,41 @@ public class TestPart {
      * Gets the highest current value from headshot measurements
      */
     public double getHighestHeadshotCurrent() {
-        return headshotMeasurements.stream()
-                .mapToDouble(Measurement::getCurrent)
-                .max()
-                .orElse(0);
+        return headshotMeasurements.getHighestCurrent();
     }
     
     /**
      * Gets the highest current value from coilshot measurements
      */
     public double getHighestCoilshotCurrent() {
-        return coilshotMeasurements.stream()
-                .mapToDouble(Measurement::getCurrent)
-                .max()
-                .orElse(0);
+        return coilshotMeasurements.getHighestCurrent();
+    }
+    
+    /**
+     * Gets the lowest current value from headshot measurements
+     */
+    public double getLowestHeadshotCurrent() {
+        return headshotMeasurements.getLowestCurrent();
+    }
+    
+    /**
+     * Gets the lowest current value from coilshot measurements
+     */
+    public double getLowestCoilshotCurrent() {
+        return coilshotMeasurements.getLowestCurrent();
+    }
+    
+    /**
+     * Gets the mean current value of the headshot measurements
+     */
+    public double getMeanHeadshotCurrent() {
+        return headshotMeasurements.getMeanCurrent();
+    }
+    
+    /**
+     * Gets the mean current value of the coilshot measurements
+     */
+    public double getMeanCoilshotCurrent() {
+        return coilshotMeasurements.getMeanCurrent();
     }
 } 
\ No newline at end of file
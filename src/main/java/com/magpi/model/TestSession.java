@@ -1,10 +1,18 @@
 package com.magpi.model;
 
 import com.magpi.ui.HistoryPage;
+import com.magpi.util.IntObjectHashMap;
+import com.magpi.util.SessionJournal;
+
+import java.io.IOException;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Represents a testing session with session information and the collection of parts tested
@@ -20,28 +28,103 @@ public class TestSession {
     private LocalDateTime startTime;
     private LocalDateTime endTime;
     private List<TestPart> parts;
+    private IntObjectHashMap<TestPart> partsByNumber;
+    private int acceptedCount;
+    private int rejectedCount;
+    private int passedCount;
+    private int failedCount;
     private HistoryPage historyPanel;
+    private SessionJournal journal;
+    private Set<String> subscribedPorts = Collections.emptySet();
     
     public TestSession() {
         this.startTime = LocalDateTime.now();
         this.parts = new ArrayList<>();
+        this.partsByNumber = new IntObjectHashMap<>();
         this.headShotThreshold = 0.0;
         this.coilShotThreshold = 0.0;
     }
     
     public void addPart(TestPart part) {
         parts.add(part);
+        // Lookups return the first part added under a number
+        if (!partsByNumber.containsKey(part.getPartNumber())) {
+            partsByNumber.put(part.getPartNumber(), part);
+        }
+        part.setSession(this);
+        countStatus(part.getStatus(), 1);
+        if (journal != null) {
+            journal.partAdded(part.getPartNumber(), part.getTestTime());
+        }
     }
     
     public TestPart getPartByNumber(int partNumber) {
-        return parts.stream()
-                .filter(part -> part.getPartNumber() == partNumber)
-                .findFirst()
-                .orElse(null);
+        return partsByNumber.get(partNumber);
+    }
+    
+    /**
+     * Updates the status tallies when a part of this session changes status
+     * @param part The part
+     * @param oldStatus The previous status
+     * @param newStatus The new status
+     */
+    void onPartStatusChanged(TestPart part, String oldStatus, String newStatus) {
+        countStatus(oldStatus, -1);
+        countStatus(newStatus, 1);
+        if (journal != null) {
+            journal.statusChanged(part.getPartNumber(), newStatus);
+        }
+    }
+    
+    /**
+     * Records a measurement added to a part of this session in the journal
+     * @param part The part
+     * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+     * @param current The current value
+     * @param duration The duration value
+     */
+    void onMeasurementAdded(TestPart part, int meter, double current, double duration) {
+        if (journal != null) {
+            journal.measurement(part.getPartNumber(), meter, current, duration);
+        }
+    }
+    
+    private void countStatus(String status, int delta) {
+        if (status == null) {
+            return;
+        }
+        switch (status) {
+            case "Accept":
+                acceptedCount += delta;
+                break;
+            case "Reject":
+                rejectedCount += delta;
+                break;
+            case "PASS":
+                passedCount += delta;
+                break;
+            case "FAIL":
+                failedCount += delta;
+                break;
+            default:
+                break;
+        }
     }
     
     public void endSession() {
-        this.endTime = LocalDateTime.now();
+        endSession(LocalDateTime.now());
+    }
+    
+    /**
+     * Ends the session at the given time and closes its journal
+     * @param endTime The time the session ended
+     */
+    public void endSession(LocalDateTime endTime) {
+        this.endTime = endTime;
+        if (journal != null) {
+            journal.sessionEnded(endTime);
+            closeJournal();
+        }
     }
     
     public int getTotalPartsCount() {
@@ -49,15 +132,25 @@ public class TestSession {
     }
     
     public int getAcceptedPartsCount() {
-        return (int) parts.stream()
-                .filter(part -> "Accept".equals(part.getStatus()))
-                .count();
+        return acceptedCount;
     }
     
     public int getRejectedPartsCount() {
-        return (int) parts.stream()
-                .filter(part -> "Reject".equals(part.getStatus()))
-                .count();
+        return rejectedCount;
+    }
+    
+    /**
+     * Gets the number of parts whose readings are all within the threshold
+     */
+    public int getPassedPartsCount() {
+        return passedCount;
+    }
+    
+    /**
+     * Gets the number of parts with at least one reading outside the threshold
+     */
+    public int getFailedPartsCount() {
+        return failedCount;
     }
     
     // Getters and setters
@@ -107,6 +200,9 @@ public class TestSession {
     
     public void setHeadShotThreshold(double headShotThreshold) {
         this.headShotThreshold = headShotThreshold;
+        if (journal != null) {
+            journal.thresholdsChanged(headShotThreshold, coilShotThreshold);
+        }
     }
     
     public double getCoilShotThreshold() {
@@ -115,18 +211,57 @@ public class TestSession {
     
     public void setCoilShotThreshold(double coilShotThreshold) {
         this.coilShotThreshold = coilShotThreshold;
+        if (journal != null) {
+            journal.thresholdsChanged(headShotThreshold, coilShotThreshold);
+        }
     }
     
     public LocalDateTime getStartTime() {
         return startTime;
     }
     
+    /**
+     * Sets the start time, used when a session is rebuilt from its journal
+     * @param startTime The time the session started
+     */
+    public void setStartTime(LocalDateTime startTime) {
+        this.startTime = startTime;
+    }
+    
     public LocalDateTime getEndTime() {
         return endTime;
     }
     
+    /**
+     * Gets the parts in the order they were added. Use addPart to add parts,
+     * so the part number index and status tallies stay in step.
+     */
     public List<TestPart> getParts() {
-        return parts;
+        return Collections.unmodifiableList(parts);
+    }
+    
+    /**
+     * Gets the serial ports whose readings are recorded in this session
+     * @return The port names, or an empty set to record readings from every port
+     */
+    public Set<String> getSubscribedPorts() {
+        return subscribedPorts;
+    }
+    
+    /**
+     * Restricts the session to readings from the given serial ports
+     * @param portNames The port names; an empty collection subscribes to every port
+     */
+    public void setSubscribedPorts(Collection<String> portNames) {
+        this.subscribedPorts = Collections.unmodifiableSet(new LinkedHashSet<>(portNames));
+    }
+    
+    /**
+     * Checks whether readings from the given port belong to this session
+     * @param portName The system port name
+     */
+    public boolean isSubscribedTo(String portName) {
+        return subscribedPorts.isEmpty() || subscribedPorts.contains(portName);
     }
     
     public HistoryPage getHistoryPanel() {
@@ -136,4 +271,32 @@ public class TestSession {
     public void setHistoryPanel(HistoryPage historyPanel) {
         this.historyPanel = historyPanel;
     }
+    
+    public SessionJournal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Sets the journal that records changes to this session
+     * @param journal The journal, or null to stop journaling
+     */
+    public void setJournal(SessionJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Writes out and closes the journal without ending the session, so the
+     * session can be resumed the next time the application starts
+     */
+    public void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close session journal: " + e.getMessage());
+        }
+        journal = null;
+    }
 } 
\ No newline at end of file
@@ -1,28 +1,63 @@
 package com.magpi.ui;
 
+import com.magpi.model.Measurement;
 import com.magpi.model.TestSession;
 import com.magpi.ui.table.CustomCellRenderer;
-import com.magpi.ui.table.PersistentColorTableModel;
+import com.magpi.ui.table.HistorySearchIndex;
+import com.magpi.ui.table.PagedHistoryTableModel;
+import com.magpi.util.HistoryRowFile;
 import com.magpi.util.PdfExporter;
+import com.magpi.util.SessionHistoryStore;
 import com.magpi.video.RecordedVideosPage;
 import com.magpi.video.VLCJVideoStream;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.regex.Pattern;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Panel for displaying historical test data
  */
 public class HistoryPage extends JPanel {
+    private static final String HISTORY_DIR = System.getProperty("user.home") + "/MagPi/History";
+    private static final int SYNC_INDEX_ROWS = 5_000;
+    private static final String[] COLUMN_NAMES = SessionHistoryStore.getColumnNames();
+
     private TestSession session;
     private JTable headshotHistoryTable;
     private JTable coilshotHistoryTable;
-    private PersistentColorTableModel headshotHistoryTableModel;
-    private PersistentColorTableModel coilshotHistoryTableModel;
+    private PagedHistoryTableModel headshotHistoryTableModel;
+    private PagedHistoryTableModel coilshotHistoryTableModel;
+    private PagedHistoryTableModel headshotDisplayedModel;
+    private PagedHistoryTableModel coilshotDisplayedModel;
+    private SessionHistoryStore historyStore;
+    private int archivedHeadshotRows;
+    private int archivedCoilshotRows;
+    private JLabel archiveLabel;
+    private String displayedDescription = "Showing: current session";
+    private TableRowSorter<PagedHistoryTableModel> headshotSorter;
+    private TableRowSorter<PagedHistoryTableModel> coilshotSorter;
+    private String searchText = "";
+    private String statusFilterOption = "All";
+    private BitSet headshotSearchMatches;
+    private BitSet coilshotSearchMatches;
+    private final Set<PagedHistoryTableModel> indexingModels = new HashSet<>();
+    private final Set<PagedHistoryTableModel> loadingStatusModels = new HashSet<>();
+    private boolean searchRefreshPending;
 //    private JLabel totalPartsLabel;
 //    private JLabel acceptedPartsLabel;
 //    private JLabel rejectedPartsLabel;
@@ -41,20 +76,27 @@ public class HistoryPage extends JPanel {
 
 
     private void initializeComponents() {
-        // Define column names excluding the action column
-        String[] columnNames = {
-                "Part No", "Current 1", "T 1", "Current 2", "T 2",
-                "Current 3", "T 3", "Current 4", "T 4",
-                "Current 5", "T 5", "Status"
-        };
-
-        // Initialize table models
-        headshotHistoryTableModel = new PersistentColorTableModel(columnNames, 0);
-        coilshotHistoryTableModel = new PersistentColorTableModel(columnNames, 0);
+        // Initialize table models; rows are kept on disk and paged in as they are shown
+        headshotHistoryTableModel = new PagedHistoryTableModel(COLUMN_NAMES, openRowFile("headshot", COLUMN_NAMES.length));
+        coilshotHistoryTableModel = new PagedHistoryTableModel(COLUMN_NAMES, openRowFile("coilshot", COLUMN_NAMES.length));
+        headshotDisplayedModel = headshotHistoryTableModel;
+        coilshotDisplayedModel = coilshotHistoryTableModel;
+
+        // Open the archive of completed sessions
+        try {
+            historyStore = new SessionHistoryStore(SessionHistoryStore.COLUMN_COUNT);
+        } catch (IOException e) {
+            System.err.println("Failed to open the session archive: " + e.getMessage());
+        }
 
         // Initialize tables
         headshotHistoryTable = new JTable(headshotHistoryTableModel);
         coilshotHistoryTable = new JTable(coilshotHistoryTableModel);
+        installSorters();
+
+        // Rows added at the end of a session are indexed as they arrive; search them again
+        headshotHistoryTableModel.addTableModelListener(e -> refreshSearchLater());
+        coilshotHistoryTableModel.addTableModelListener(e -> refreshSearchLater());
 
         // Set renderers for the tables
         updateTableRenderers();
@@ -65,6 +107,30 @@ public class HistoryPage extends JPanel {
 //        rejectedPartsLabel = new JLabel("Rejected Parts: 0");
     }
 
+    /**
+     * Opens the file holding one history table of this session
+     * @param table "headshot" or "coilshot"
+     * @param columnCount The number of table columns
+     * @return The row file
+     */
+    private HistoryRowFile openRowFile(String table, int columnCount) {
+        String timestamp = session.getStartTime().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        File directory = new File(HISTORY_DIR);
+        directory.mkdirs();
+        try {
+            return new HistoryRowFile(new File(directory, "session_" + timestamp + "_" + table + ".mphist"), columnCount);
+        } catch (IOException e) {
+            System.err.println("Failed to open history file, keeping history in a temporary file: " + e.getMessage());
+            try {
+                File temporary = File.createTempFile("magpi_" + table, ".mphist");
+                temporary.deleteOnExit();
+                return new HistoryRowFile(temporary, columnCount);
+            } catch (IOException e2) {
+                throw new IllegalStateException("Cannot create a history file", e2);
+            }
+        }
+    }
+
     private void setupUI() {
         setLayout(new BorderLayout());
 
@@ -92,8 +158,13 @@ public class HistoryPage extends JPanel {
 //        rejectedPartsLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
 //        rejectedPartsLabel.setForeground(new Color(231, 76, 60)); // Red for rejected
 
+        archiveLabel = new JLabel(displayedDescription);
+        archiveLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        archiveLabel.setForeground(new Color(44, 62, 80));
+
         headerPanel.add(operatorLabel);
         headerPanel.add(machineIdLabel);
+        headerPanel.add(archiveLabel);
 //        headerPanel.add(totalPartsLabel);
 //        headerPanel.add(acceptedPartsLabel);
 //        headerPanel.add(rejectedPartsLabel);
@@ -157,6 +228,24 @@ public class HistoryPage extends JPanel {
         styleButton(searchButton, new Color(41, 128, 185), Color.WHITE);
         searchButton.addActionListener(e -> performSearch(searchField.getText()));
 
+        // Search as you type; the index keeps each keystroke cheap
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                performSearch(searchField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                performSearch(searchField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                performSearch(searchField.getText());
+            }
+        });
+
         // Style filter controls
         JLabel filterLabel = new JLabel("Filter:");
         filterLabel.setFont(new Font("Segoe UI", Font.PLAIN, 14));
@@ -171,6 +260,11 @@ public class HistoryPage extends JPanel {
         styleButton(exportButton, new Color(41, 128, 185), Color.WHITE);
         exportButton.addActionListener(e -> exportToPdf());
 
+        JButton archiveButton = new JButton("Past Sessions");
+        styleButton(archiveButton, new Color(41, 128, 185), Color.WHITE);
+        archiveButton.addActionListener(e -> showArchiveQueryDialog());
+        archiveButton.setEnabled(historyStore != null);
+
         JButton viewRecordingsButton = new JButton("View Recordings");
         styleButton(viewRecordingsButton, new Color(46, 204, 113), Color.WHITE);
         viewRecordingsButton.addActionListener(e -> viewRecordings());
@@ -185,6 +279,7 @@ public class HistoryPage extends JPanel {
         controlsPanel.add(searchButton);
         controlsPanel.add(filterLabel);
         controlsPanel.add(filterComboBox);
+        controlsPanel.add(archiveButton);
         controlsPanel.add(exportButton);
         controlsPanel.add(viewRecordingsButton);
         controlsPanel.add(endProcessButton);
@@ -197,29 +292,101 @@ public class HistoryPage extends JPanel {
      * @param searchText The text to search for
      */
     private void performSearch(String searchText) {
-        // Create row filter and apply to headshot table
-        RowFilter<Object, Object> filter = null;
-        if (searchText.length() > 0) {
+        this.searchText = searchText;
+        headshotSearchMatches = search(headshotDisplayedModel);
+        coilshotSearchMatches = search(coilshotDisplayedModel);
+        applyFilters();
+    }
+
+    /**
+     * Finds the rows of a table that contain the search text
+     * @return The matching rows, or null to show every row
+     */
+    private BitSet search(PagedHistoryTableModel model) {
+        if (searchText.isEmpty()) {
+            return null;
+        }
+        HistorySearchIndex index = model.getSearchIndex();
+        if (index == null) {
+            if (model.getRowCount() > SYNC_INDEX_ROWS) {
+                buildSearchIndexInBackground(model);
+                return null;
+            }
             try {
-                // Create regex-based filter that searches all columns
-                filter = RowFilter.regexFilter("(?i)" + Pattern.quote(searchText));
-            } catch (java.util.regex.PatternSyntaxException e) {
-                // If an error in the regular expression, just return
-                return;
+                model.setSearchIndex(model.buildSearchIndex());
+            } catch (IOException e) {
+                System.err.println("Failed to index history rows: " + e.getMessage());
+                return null;
             }
+            index = model.getSearchIndex();
         }
+        return index.search(searchText);
+    }
 
-        // Apply filter to headshot table
-        TableRowSorter<PersistentColorTableModel> headshotSorter =
-                new TableRowSorter<>(headshotHistoryTableModel);
-        headshotSorter.setRowFilter(filter);
-        headshotHistoryTable.setRowSorter(headshotSorter);
+    /**
+     * Indexes a large table off the event dispatch thread and repeats the
+     * search when the index is ready
+     */
+    private void buildSearchIndexInBackground(PagedHistoryTableModel model) {
+        if (!indexingModels.add(model)) {
+            return;
+        }
+        archiveLabel.setText("Indexing " + model.getRowCount() + " rows for search...");
+        new SwingWorker<HistorySearchIndex, Void>() {
+            @Override
+            protected HistorySearchIndex doInBackground() throws IOException {
+                return model.buildSearchIndex();
+            }
 
-        // Apply filter to coilshot table
-        TableRowSorter<PersistentColorTableModel> coilshotSorter =
-                new TableRowSorter<>(coilshotHistoryTableModel);
-        coilshotSorter.setRowFilter(filter);
-        coilshotHistoryTable.setRowSorter(coilshotSorter);
+            @Override
+            protected void done() {
+                indexingModels.remove(model);
+                try {
+                    model.setSearchIndex(get());
+                } catch (Exception e) {
+                    System.err.println("Failed to index history rows: " + e.getMessage());
+                    return;
+                }
+                archiveLabel.setText(displayedDescription);
+                if (model == headshotDisplayedModel || model == coilshotDisplayedModel) {
+                    performSearch(searchText);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Reads the statuses of a large table off the event dispatch thread and
+     * filters again when they are ready
+     */
+    private void loadStatusesInBackground(PagedHistoryTableModel model) {
+        if (!loadingStatusModels.add(model)) {
+            return;
+        }
+        int firstRow = model.getStatusRowCount();
+        int rowCount = model.getRowCount();
+        archiveLabel.setText("Reading the status of " + (rowCount - firstRow) + " rows...");
+        new SwingWorker<byte[], Void>() {
+            @Override
+            protected byte[] doInBackground() throws IOException {
+                return model.readRowStatuses(firstRow, rowCount);
+            }
+
+            @Override
+            protected void done() {
+                loadingStatusModels.remove(model);
+                try {
+                    model.addRowStatuses(firstRow, get());
+                } catch (Exception e) {
+                    System.err.println("Failed to read history row statuses: " + e.getMessage());
+                    return;
+                }
+                archiveLabel.setText(displayedDescription);
+                if (model == headshotDisplayedModel || model == coilshotDisplayedModel) {
+                    applyFilters();
+                }
+            }
+        }.execute();
     }
 
     /**
@@ -227,45 +394,230 @@ public class HistoryPage extends JPanel {
      * @param filterOption The status to filter by
      */
     private void filterResults(String filterOption) {
-        RowFilter<Object, Object> filter = null;
-
-        if (!"All".equals(filterOption)) {
-            // Filter on the status column (last column)
-            final int statusColumnIndex = headshotHistoryTableModel.getColumnCount() - 1;
-            filter = new RowFilter<Object, Object>() {
-                public boolean include(Entry entry) {
-                    // Use cell color instead of text for filtering
-                    Color cellColor = headshotHistoryTableModel.getCellColor(
-                            (int)entry.getIdentifier(), statusColumnIndex);
-
-                    if ("PASS".equals(filterOption)) {
-                        return cellColor != null && cellColor.equals(Color.GREEN);
-                    } else if ("FAIL".equals(filterOption)) {
-                        return cellColor != null && cellColor.equals(Color.ORANGE);
-                    }
-                    return true;
-                }
-            };
+        statusFilterOption = filterOption;
+        applyFilters();
+    }
+
+    /**
+     * Applies the search matches and the status filter to the sorters of both
+     * tables. The sorters are kept, so this only filters the rows again.
+     */
+    private void applyFilters() {
+        headshotSorter.setRowFilter(createRowFilter(headshotDisplayedModel, headshotSearchMatches));
+        coilshotSorter.setRowFilter(createRowFilter(coilshotDisplayedModel, coilshotSearchMatches));
+    }
+
+    /**
+     * Creates the row filter of one table from its own search matches and row statuses
+     * @param model The displayed model of the table
+     * @param searchMatches The rows matching the search, or null for every row
+     * @return The filter, or null to show every row
+     */
+    private RowFilter<Object, Object> createRowFilter(PagedHistoryTableModel model, BitSet searchMatches) {
+        byte status = SessionHistoryStore.STATUS_NONE;
+        if ("PASS".equals(statusFilterOption)) {
+            status = SessionHistoryStore.STATUS_PASS;
+        } else if ("FAIL".equals(statusFilterOption)) {
+            status = SessionHistoryStore.STATUS_FAIL;
+        }
+        BitSet statusRows = null;
+        if (status != SessionHistoryStore.STATUS_NONE) {
+            if (model.hasRowStatuses() || model.getRowCount() <= SYNC_INDEX_ROWS) {
+                statusRows = model.getRowsWithStatus(status);
+            } else {
+                // Every row stays visible until the statuses are read
+                loadStatusesInBackground(model);
+            }
         }
 
-        // Apply filter to headshot table
-        TableRowSorter<PersistentColorTableModel> headshotSorter =
-                new TableRowSorter<>(headshotHistoryTableModel);
-        headshotSorter.setRowFilter(filter);
-        headshotHistoryTable.setRowSorter(headshotSorter);
+        BitSet visibleRows;
+        if (statusRows == null) {
+            visibleRows = searchMatches;
+        } else if (searchMatches == null) {
+            visibleRows = statusRows;
+        } else {
+            visibleRows = (BitSet) searchMatches.clone();
+            visibleRows.and(statusRows);
+        }
+        if (visibleRows == null) {
+            return null;
+        }
+
+        final BitSet rows = visibleRows;
+        return new RowFilter<Object, Object>() {
+            public boolean include(Entry entry) {
+                return rows.get((int) entry.getIdentifier());
+            }
+        };
+    }
+
+    /**
+     * Adds the rows of the current session that are not archived yet to the
+     * archive of completed sessions
+     */
+    public void archiveSession() {
+        if (historyStore == null) {
+            return;
+        }
+        try {
+            List<HistoryRowFile.Row> headshot = readRows(headshotHistoryTableModel.getRowFile(), archivedHeadshotRows);
+            List<HistoryRowFile.Row> coilshot = readRows(coilshotHistoryTableModel.getRowFile(), archivedCoilshotRows);
+            if (headshot.isEmpty() && coilshot.isEmpty()) {
+                return;
+            }
+            historyStore.archive(session, headshot, coilshot);
+            archivedHeadshotRows += headshot.size();
+            archivedCoilshotRows += coilshot.size();
+        } catch (IOException e) {
+            System.err.println("Failed to archive the session: " + e.getMessage());
+        }
+    }
+
+    private static List<HistoryRowFile.Row> readRows(HistoryRowFile rowFile, int firstRow) throws IOException {
+        HistoryRowFile.Row[] rows = new HistoryRowFile.Row[Math.max(0, rowFile.getRowCount() - firstRow)];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new HistoryRowFile.Row(rowFile.getColumnCount());
+        }
+        int count = rowFile.readRows(firstRow, rows);
+        List<HistoryRowFile.Row> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(rows[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Asks for archive criteria and shows the matching rows of past sessions
+     */
+    private void showArchiveQueryDialog() {
+        JTextField fromField = new JTextField(10);
+        JTextField toField = new JTextField(10);
+        JTextField operatorField = new JTextField(10);
+        JTextField machineField = new JTextField(10);
+        JTextField partField = new JTextField(10);
+        JComboBox<String> statusComboBox = new JComboBox<>(new String[]{"All", "PASS", "FAIL"});
+
+        JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+        panel.add(new JLabel("From (yyyy-MM-dd):"));
+        panel.add(fromField);
+        panel.add(new JLabel("To (yyyy-MM-dd):"));
+        panel.add(toField);
+        panel.add(new JLabel("Operator:"));
+        panel.add(operatorField);
+        panel.add(new JLabel("Machine ID:"));
+        panel.add(machineField);
+        panel.add(new JLabel("Part:"));
+        panel.add(partField);
+        panel.add(new JLabel("Status:"));
+        panel.add(statusComboBox);
+
+        Object[] options = {"Search", "Current Session", "Cancel"};
+        int choice = JOptionPane.showOptionDialog(this, panel, "Past Sessions",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        if (choice == 1) {
+            setDisplayedDescription("Showing: current session");
+            showModels(headshotHistoryTableModel, coilshotHistoryTableModel);
+            return;
+        }
+        if (choice != 0) {
+            return;
+        }
+
+        SessionHistoryStore.Query query = new SessionHistoryStore.Query();
+        try {
+            if (!fromField.getText().trim().isEmpty()) {
+                query.setFrom(LocalDate.parse(fromField.getText().trim()).atStartOfDay());
+            }
+            if (!toField.getText().trim().isEmpty()) {
+                // The end date is included
+                query.setTo(LocalDate.parse(toField.getText().trim()).plusDays(1).atStartOfDay());
+            }
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this,
+                    "Please enter dates as yyyy-MM-dd.",
+                    "Invalid Date",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        query.setOperatorName(operatorField.getText());
+        query.setMachineId(machineField.getText());
+        query.setPartDescription(partField.getText());
+        String status = (String) statusComboBox.getSelectedItem();
+        if ("PASS".equals(status)) {
+            query.setStatus(SessionHistoryStore.STATUS_PASS);
+        } else if ("FAIL".equals(status)) {
+            query.setStatus(SessionHistoryStore.STATUS_FAIL);
+        }
+
+        showArchiveResults(query);
+    }
+
+    /**
+     * Shows the archived rows that match a query in the history tables
+     * @param query The criteria
+     */
+    public void showArchiveResults(SessionHistoryStore.Query query) {
+        long start = System.nanoTime();
+        int sessionCount = historyStore.findSessions(query).size();
+        int[] headshotRows = historyStore.findRows(query, Measurement.HEADSHOT_METER);
+        int[] coilshotRows = historyStore.findRows(query, Measurement.COILSHOT_METER);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        setDisplayedDescription(String.format("Showing: %d past sessions, %d + %d rows (%d ms)",
+                sessionCount, headshotRows.length, coilshotRows.length, elapsedMillis));
+        showModels(
+                new PagedHistoryTableModel(COLUMN_NAMES, historyStore.getRowFile(Measurement.HEADSHOT_METER), headshotRows,
+                        historyStore.getStatuses(headshotRows, Measurement.HEADSHOT_METER)),
+                new PagedHistoryTableModel(COLUMN_NAMES, historyStore.getRowFile(Measurement.COILSHOT_METER), coilshotRows,
+                        historyStore.getStatuses(coilshotRows, Measurement.COILSHOT_METER)));
+    }
 
-        // Apply filter to coilshot table
-        TableRowSorter<PersistentColorTableModel> coilshotSorter =
-                new TableRowSorter<>(coilshotHistoryTableModel);
-        coilshotSorter.setRowFilter(filter);
+    private void showModels(PagedHistoryTableModel headshotModel, PagedHistoryTableModel coilshotModel) {
+        headshotDisplayedModel = headshotModel;
+        coilshotDisplayedModel = coilshotModel;
+
+        // Sorters are bound to a model, so drop them before switching
+        headshotHistoryTable.setRowSorter(null);
+        coilshotHistoryTable.setRowSorter(null);
+        headshotHistoryTable.setModel(headshotModel);
+        coilshotHistoryTable.setModel(coilshotModel);
+        updateTableRenderers();
+        installSorters();
+        performSearch(searchText);
+    }
+
+    /**
+     * Creates the sorters of the displayed models. They are reused for every
+     * search and filter until the displayed models change.
+     */
+    private void installSorters() {
+        headshotSorter = new TableRowSorter<>(headshotDisplayedModel);
+        coilshotSorter = new TableRowSorter<>(coilshotDisplayedModel);
+        headshotHistoryTable.setRowSorter(headshotSorter);
         coilshotHistoryTable.setRowSorter(coilshotSorter);
     }
 
+    private void setDisplayedDescription(String description) {
+        displayedDescription = description;
+        archiveLabel.setText(description);
+    }
+
+    private void refreshSearchLater() {
+        if (searchText.isEmpty() || searchRefreshPending) {
+            return;
+        }
+        searchRefreshPending = true;
+        SwingUtilities.invokeLater(() -> {
+            searchRefreshPending = false;
+            performSearch(searchText);
+        });
+    }
+
     /**
      * Exports the session data to PDF
      */
     private void exportToPdf() {
-        PdfExporter.exportToPdf(session, headshotHistoryTable, coilshotHistoryTable, this);
+        PdfExporter.exportToPdf(session, headshotDisplayedModel, coilshotDisplayedModel, this);
     }
 
     private void viewRecordings() {
@@ -292,6 +644,7 @@ public class HistoryPage extends JPanel {
         if (option == JOptionPane.YES_OPTION) {
             JFrame topFrame = (JFrame) SwingUtilities.getWindowAncestor(this);
             topFrame.dispose();
+            closeHistoryFiles();
 
             // Restart the application
             SwingUtilities.invokeLater(() -> {
@@ -311,6 +664,18 @@ public class HistoryPage extends JPanel {
         }
     }
 
+    private void closeHistoryFiles() {
+        try {
+            headshotHistoryTableModel.close();
+            coilshotHistoryTableModel.close();
+            if (historyStore != null) {
+                historyStore.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to close history files: " + e.getMessage());
+        }
+    }
+
     /**
      * Updates the displayed statistics
      */
@@ -325,10 +690,8 @@ public class HistoryPage extends JPanel {
     }
 
     private void updateTableRenderers() {
-        headshotHistoryTable.setDefaultRenderer(Object.class,
-                new CustomCellRenderer(session.getHeadShotThreshold(), headshotHistoryTableModel));
-        coilshotHistoryTable.setDefaultRenderer(Object.class,
-                new CustomCellRenderer(session.getCoilShotThreshold(), coilshotHistoryTableModel));
+        headshotHistoryTable.setDefaultRenderer(Object.class, new CustomCellRenderer(headshotDisplayedModel));
+        coilshotHistoryTable.setDefaultRenderer(Object.class, new CustomCellRenderer(coilshotDisplayedModel));
 
         // Improve table appearance
         styleTable(headshotHistoryTable);
@@ -369,50 +732,6 @@ public class HistoryPage extends JPanel {
         // Prevent column resizing and reordering
         table.getTableHeader().setResizingAllowed(false);
         table.getTableHeader().setReorderingAllowed(false);
-
-        // Set custom renderer that preserves cell colors
-        table.setDefaultRenderer(Object.class, new CustomCellRenderer(
-                table == headshotHistoryTable ? session.getHeadShotThreshold() : session.getCoilShotThreshold(),
-                (PersistentColorTableModel) table.getModel()) {
-            @Override
-            public Component getTableCellRendererComponent(JTable table, Object value,
-                                                           boolean isSelected, boolean hasFocus, int row, int column) {
-                JComponent c = (JComponent) super.getTableCellRendererComponent(table, value,
-                        isSelected, hasFocus, row, column);
-
-                // Add border to each cell
-                c.setBorder(BorderFactory.createCompoundBorder(
-                        BorderFactory.createMatteBorder(0, 0, 1, 1, new Color(180, 180, 180)),
-                        BorderFactory.createEmptyBorder(2, 5, 2, 5)
-                ));
-
-                // Add left border for first column
-                if (column == 0) {
-                    c.setBorder(BorderFactory.createCompoundBorder(
-                            BorderFactory.createMatteBorder(0, 1, 1, 1, new Color(180, 180, 180)),
-                            BorderFactory.createEmptyBorder(2, 5, 2, 5)
-                    ));
-                }
-
-                // Format current values (odd columns)
-                if (column > 0 && column < table.getColumnCount() - 1 && column % 2 == 1) {
-                    if (value instanceof Number) {
-                        setText(String.format("%.2f", ((Number) value).doubleValue()));
-                    }
-                }
-                // Format time values (even columns)
-                else if (column > 0 && column < table.getColumnCount() - 1 && column % 2 == 0) {
-                    if (value instanceof Number) {
-                        setText(String.format("%.3f", ((Number) value).doubleValue()));
-                    }
-                }
-
-                // Center align all cells
-                setHorizontalAlignment(javax.swing.SwingConstants.CENTER);
-
-                return c;
-            }
-        });
     }
 
     /**
@@ -427,11 +746,19 @@ public class HistoryPage extends JPanel {
         button.setCursor(new Cursor(Cursor.HAND_CURSOR));
     }
 
+    /**
+     * Gets the archive of completed sessions
+     * @return The archive, or null if it could not be opened
+     */
+    public SessionHistoryStore getHistoryStore() {
+        return historyStore;
+    }
+
     /**
      * Gets the headshot history table model
      * @return The headshot history table model
      */
-    public PersistentColorTableModel getHeadshotHistoryTableModel() {
+    public PagedHistoryTableModel getHeadshotHistoryTableModel() {
         return headshotHistoryTableModel;
     }
 
@@ -439,7 +766,7 @@ public class HistoryPage extends JPanel {
      * Gets the coilshot history table model
      * @return The coilshot history table model
      */
-    public PersistentColorTableModel getCoilshotHistoryTableModel() {
+    public PagedHistoryTableModel getCoilshotHistoryTableModel() {
         return coilshotHistoryTableModel;
     }
 }
@@ -6,11 +6,14 @@ import com.magpi.util.PersistentLibrary;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 import javax.imageio.ImageIO;
 
 /**
@@ -32,15 +35,39 @@ public class LoginPage extends JPanel {
     private Image backgroundImage;
     private Image logoImage;
     private PersistentLibrary library;
+    // Set while a combo box's items are replaced, which is not a selection
+    private boolean replacingItems;
+
+    private static final int MAX_COMPLETIONS = 20;
 
     /**
      * Creates a new login panel
      */
     public LoginPage() {
-        this.library = PersistentLibrary.getInstance();
         loadImages();
         initializeComponents();
         setupUI();
+
+        // Fill in the operators and parts once the library has loaded off the EDT
+        PersistentLibrary.load().thenAcceptAsync(this::libraryLoaded, SwingUtilities::invokeLater);
+    }
+
+    private void libraryLoaded(PersistentLibrary loaded) {
+        library = loaded;
+        updateOperatorComboBox((String) operatorComboBox.getSelectedItem());
+        updateOperatorsList();
+        updatePartDescriptionComboBox((String) partDescriptionComboBox.getSelectedItem());
+        updatePartDescriptionList();
+    }
+
+    /**
+     * Gets the library, waiting for it if it is still loading
+     */
+    private PersistentLibrary library() {
+        if (library == null) {
+            library = PersistentLibrary.getInstance();
+        }
+        return library;
     }
 
     private void loadImages() {
@@ -75,22 +102,16 @@ public class LoginPage extends JPanel {
         headShotThresholdField = new JTextField("0.0", 8);
         coilShotThresholdField = new JTextField("0.0", 8);
 
-        // Load operators and part descriptions from persistent storage
+        // Operators and part descriptions are filled in when the library has loaded
         operatorComboBox = new JComboBox<>();
-        for (String operator : library.getOperators()) {
-            operatorComboBox.addItem(operator);
-        }
         operatorComboBox.setEditable(true);
 
         partDescriptionComboBox = new JComboBox<>();
-        for (String part : library.getPartDescriptions()) {
-            partDescriptionComboBox.addItem(part);
-        }
         partDescriptionComboBox.setEditable(true);
 
         // Create lists
-        operatorsList = new JList<>(library.getOperators().toArray(new String[0]));
-        partDescriptionList = new JList<>(library.getPartDescriptions().toArray(new String[0]));
+        operatorsList = new JList<>();
+        partDescriptionList = new JList<>();
         parametersHistoryList = new JList<>();
 
         // Add selection listeners
@@ -115,14 +136,84 @@ public class LoginPage extends JPanel {
         });
 
         // Add listener to load parameters when part description changes
-        partDescriptionComboBox.addActionListener(e -> loadParametersForSelectedPart());
+        partDescriptionComboBox.addActionListener(e -> {
+            if (!replacingItems) {
+                loadParametersForSelectedPart();
+            }
+        });
+
+        // Narrow the drop-downs to the best matches as names are typed
+        installAutocomplete(operatorComboBox, text -> text.trim().isEmpty()
+                ? library().getOperators() : library().completeOperator(text, MAX_COMPLETIONS));
+        installAutocomplete(partDescriptionComboBox, text -> text.trim().isEmpty()
+                ? library().getPartDescriptions() : library().completePartDescription(text, MAX_COMPLETIONS));
+    }
+
+    /**
+     * Shows the matches for the text typed into an editable combo box in its popup
+     * @param comboBox The combo box
+     * @param matches Finds the items to show for the typed text, best first
+     */
+    private void installAutocomplete(JComboBox<String> comboBox, Function<String, List<String>> matches) {
+        JTextField editor = (JTextField) comboBox.getEditor().getEditorComponent();
+        editor.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                char c = e.getKeyChar();
+                if (c == KeyEvent.VK_ENTER || c == KeyEvent.VK_ESCAPE) {
+                    return;
+                }
+                // The typed character is not in the editor until this event is handled
+                SwingUtilities.invokeLater(() -> showCompletions(comboBox, editor, matches));
+            }
+        });
+    }
+
+    private void showCompletions(JComboBox<String> comboBox, JTextField editor,
+                                 Function<String, List<String>> matches) {
+        String text = editor.getText();
+        int caret = editor.getCaretPosition();
+        List<String> items = matches.apply(text);
+
+        replacingItems = true;
+        try {
+            setItems(comboBox, items, text);
+            // Replacing the model puts the selected item in the editor, so put back what was typed
+            editor.setText(text);
+            editor.setCaretPosition(Math.min(caret, text.length()));
+        } finally {
+            replacingItems = false;
+        }
+
+        if (!comboBox.isShowing()) {
+            return;
+        }
+        if (items.isEmpty()) {
+            comboBox.hidePopup();
+        } else {
+            // Reopen the popup so it is sized to the new items
+            comboBox.hidePopup();
+            comboBox.showPopup();
+        }
+    }
+
+    /**
+     * Replaces the items of a combo box in one step rather than one event per item
+     * @param selectedItem The item to select, or null to select the first one
+     */
+    private static void setItems(JComboBox<String> comboBox, List<String> items, Object selectedItem) {
+        DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>(items.toArray(new String[0]));
+        if (selectedItem != null) {
+            model.setSelectedItem(selectedItem);
+        }
+        comboBox.setModel(model);
     }
 
     private void loadParametersForSelectedPart() {
         String partDescription = (String) partDescriptionComboBox.getSelectedItem();
         if (partDescription != null && !partDescription.trim().isEmpty()) {
             // Load current parameters
-            PersistentLibrary.PartParameters params = library.getPartParameters(partDescription);
+            PersistentLibrary.PartParameters params = library().getPartParameters(partDescription);
             if (params != null) {
                 headShotThresholdField.setText(String.format("%.2f", params.getHeadshotThreshold()));
                 coilShotThresholdField.setText(String.format("%.2f", params.getCoilshotThreshold()));
@@ -138,7 +229,7 @@ public class LoginPage extends JPanel {
     }
 
     private void updateParameterHistoryList(String partDescription) {
-        List<PersistentLibrary.PartParameters> history = library.getPartParameterHistory(partDescription);
+        List<PersistentLibrary.PartParameters> history = library().getPartParameterHistory(partDescription);
         parametersHistoryList.setListData(history.toArray(new PersistentLibrary.PartParameters[0]));
     }
 
@@ -517,7 +608,7 @@ public class LoginPage extends JPanel {
             String partDescription = (String) partDescriptionComboBox.getSelectedItem();
 
             if (partDescription != null && !partDescription.trim().isEmpty()) {
-                library.savePartParameters(partDescription, headShotThreshold, coilShotThreshold);
+                library().savePartParameters(partDescription, headShotThreshold, coilShotThreshold);
 
                 // Update parameter history list
                 updateParameterHistoryList(partDescription);
@@ -538,49 +629,42 @@ public class LoginPage extends JPanel {
     private void addNewOperator() {
         String newOperator = JOptionPane.showInputDialog(this, "Enter new operator name:");
         if (newOperator != null && !newOperator.trim().isEmpty()) {
-            library.addOperator(newOperator);
+            library().addOperator(newOperator);
             updateOperatorComboBox(newOperator);
             updateOperatorsList();
         }
     }
 
     private void updateOperatorComboBox(String selectedOperator) {
-        operatorComboBox.removeAllItems();
-        for (String operator : library.getOperators()) {
-            operatorComboBox.addItem(operator);
-        }
-        if (selectedOperator != null) {
-            operatorComboBox.setSelectedItem(selectedOperator);
-        }
+        setItems(operatorComboBox, library().getOperators(), selectedOperator);
     }
 
     private void updateOperatorsList() {
-        operatorsList.setListData(library.getOperators().toArray(new String[0]));
+        operatorsList.setListData(library().getOperators().toArray(new String[0]));
     }
 
     private void addNewPartDescription() {
         String newPartDesc = JOptionPane.showInputDialog(this, "Enter new part description:");
         if (newPartDesc != null && !newPartDesc.trim().isEmpty()) {
-            library.addPartDescription(newPartDesc);
+            library().addPartDescription(newPartDesc);
             updatePartDescriptionComboBox(newPartDesc);
             updatePartDescriptionList();
         }
     }
 
     private void updatePartDescriptionComboBox(String selectedPart) {
-        partDescriptionComboBox.removeAllItems();
-        for (String part : library.getPartDescriptions()) {
-            partDescriptionComboBox.addItem(part);
-        }
-        if (selectedPart != null) {
-            partDescriptionComboBox.setSelectedItem(selectedPart);
+        replacingItems = true;
+        try {
+            setItems(partDescriptionComboBox, library().getPartDescriptions(), selectedPart);
+        } finally {
+            replacingItems = false;
         }
         // Load parameters for selected part
         loadParametersForSelectedPart();
     }
 
     private void updatePartDescriptionList() {
-        partDescriptionList.setListData(library.getPartDescriptions().toArray(new String[0]));
+        partDescriptionList.setListData(library().getPartDescriptions().toArray(new String[0]));
     }
 
     /**
@@ -596,13 +680,13 @@ public class LoginPage extends JPanel {
         String partDescription = (String) partDescriptionComboBox.getSelectedItem();
 
         // Save new operator and part description if they don't exist
-        if (operatorName != null && !operatorName.trim().isEmpty() && !library.getOperators().contains(operatorName)) {
-            library.addOperator(operatorName);
+        if (operatorName != null && !operatorName.trim().isEmpty() && !library().hasOperator(operatorName)) {
+            library().addOperator(operatorName);
             updateOperatorsList();
         }
 
-        if (partDescription != null && !partDescription.trim().isEmpty() && !library.getPartDescriptions().contains(partDescription)) {
-            library.addPartDescription(partDescription);
+        if (partDescription != null && !partDescription.trim().isEmpty() && !library().hasPartDescription(partDescription)) {
+            library().addPartDescription(partDescription);
             updatePartDescriptionList();
         }
 
@@ -1,10 +1,15 @@
 package com.magpi.ui;
 
 import com.magpi.model.Measurement;
+import com.magpi.model.MeasurementSeries;
 import com.magpi.model.TestPart;
 import com.magpi.model.TestSession;
 import com.magpi.ui.table.CustomCellRenderer;
+import com.magpi.ui.table.PagedHistoryTableModel;
 import com.magpi.ui.table.PersistentColorTableModel;
+import com.magpi.util.AcquisitionEngine;
+import com.magpi.util.IntObjectHashMap;
+import com.magpi.util.MeasurementRingBuffer;
 import com.magpi.util.SerialPortManager;
 import com.magpi.video.VLCJVideoStream;
 import com.magpi.util.PersistentLibrary;
@@ -15,8 +20,15 @@ import javax.swing.table.TableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.BiConsumer;
 
 /**
@@ -33,7 +45,8 @@ public class TablePage extends JPanel {
     private JLabel parametersLabel;
     private JLabel Part_D;
     private TestSession session;
-    private SerialPortManager serialPortManager;
+    private AcquisitionEngine acquisitionEngine;
+    private Map<String, MeasurementRingBuffer> measurementBuffers = new LinkedHashMap<>();
 
     /**
      * Creates a new table page
@@ -43,6 +56,7 @@ public class TablePage extends JPanel {
         this.session = session;
         initializeComponents();
         setupUI();
+        restoreSessionRows();
         setupSerialPort();
         updateParameters(); // Update parameter display
     }
@@ -81,8 +95,8 @@ public class TablePage extends JPanel {
         parametersLabel = new JLabel("Parameters: Not Set");
         Part_D = new JLabel("Part: "+session.getPartDescription());
 
-        // Initialize serial port manager
-        serialPortManager = new SerialPortManager();
+        // Initialize the engine that reads every connected bench
+        acquisitionEngine = new AcquisitionEngine();
     }
 
     private void setupUI() {
@@ -251,8 +265,30 @@ public class TablePage extends JPanel {
     }
 
     private void setupSerialPort() {
-        String portName = serialPortManager.detectArduinoPort();
-        if (portName == null) {
+        // Raw serial traffic can be recorded with -Dmagpi.capture.dir=<directory>
+        String captureDirectory = System.getProperty("magpi.capture.dir");
+        if (captureDirectory != null) {
+            acquisitionEngine.setCaptureDirectory(new File(captureDirectory));
+        }
+
+        // A recorded capture can stand in for the benches with -Dmagpi.replay=<file>
+        String replayFile = System.getProperty("magpi.replay");
+        if (replayFile != null) {
+            double speed = Double.parseDouble(System.getProperty("magpi.replay.speed", "1"));
+            if (!acquisitionEngine.startReplay("replay", new File(replayFile), speed)) {
+                JOptionPane.showMessageDialog(this,
+                        "Failed to open serial capture " + replayFile,
+                        "Replay Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            subscribeMeasurementBuffers();
+            return;
+        }
+
+        List<String> portNames = acquisitionEngine.detectPorts();
+        portNames.removeIf(portName -> !session.isSubscribedTo(portName));
+        if (portNames.isEmpty()) {
             JOptionPane.showMessageDialog(this,
                     "No Arduino port detected. Serial communication will not be available.",
                     "Port Not Found",
@@ -260,49 +296,110 @@ public class TablePage extends JPanel {
             return;
         }
 
-        if (!serialPortManager.openConnection(portName)) {
+        List<String> failedPorts = acquisitionEngine.start(portNames);
+        if (!failedPorts.isEmpty()) {
             JOptionPane.showMessageDialog(this,
-                    "Failed to open serial port " + portName,
+                    "Failed to open serial port " + String.join(", ", failedPorts),
                     "Connection Error",
                     JOptionPane.ERROR_MESSAGE);
-            return;
         }
 
-        // Start reading data
-        serialPortManager.startReading(this::processMeasurement);
+        subscribeMeasurementBuffers();
+    }
+
+    private void subscribeMeasurementBuffers() {
+        // Each port has its own reader thread, so each gets its own single-producer buffer
+        for (String portName : acquisitionEngine.getActivePorts()) {
+            MeasurementRingBuffer buffer = new MeasurementRingBuffer(1024, this::processMeasurement);
+            measurementBuffers.put(portName, buffer);
+            acquisitionEngine.getBus().subscribe(Collections.singleton(portName),
+                    (port, meter, current, duration) -> buffer.offer(meter, current, duration));
+        }
     }
 
     /**
-     * Process incoming measurements from the serial port
-     * @param measurement The measurement received
+     * Process an incoming reading from the serial port. Called on the EDT when
+     * the measurement buffer is drained.
+     * @param meter The meter number of the reading
+     * @param current The current value
+     * @param duration The duration value
      */
-    private void processMeasurement(Measurement measurement) {
-        SwingUtilities.invokeLater(() -> {
-            // Get the current part (most recent part or create new if none exists)
-            int currentPartNumber = getCurrentPartNumber();
-            TestPart part = session.getPartByNumber(currentPartNumber);
-
-            if (part == null) {
-                // Create a new part if needed
-                part = new TestPart(currentPartNumber, session.getPartDescription());
-                session.addPart(part);
-                insertNewPartRow(headshotTableModel, currentPartNumber);
-                insertNewPartRow(coilshotTableModel, currentPartNumber);
+    private void processMeasurement(int meter, double current, double duration) {
+        // Get the current part (most recent part or create new if none exists)
+        int currentPartNumber = getCurrentPartNumber();
+        TestPart part = session.getPartByNumber(currentPartNumber);
+
+        if (part == null) {
+            // Create a new part if needed
+            part = new TestPart(currentPartNumber, session.getPartDescription());
+            session.addPart(part);
+            insertNewPartRow(headshotTableModel, currentPartNumber);
+            insertNewPartRow(coilshotTableModel, currentPartNumber);
+        }
+
+        // Add the measurement to the appropriate table
+        if (meter == Measurement.HEADSHOT_METER) {
+            part.addHeadshotMeasurement(current, duration);
+            recordMeasurement(headshotTableModel, currentPartNumber, current, duration,
+                    session.getHeadShotThreshold());
+        } else if (meter == Measurement.COILSHOT_METER) {
+            part.addCoilshotMeasurement(current, duration);
+            recordMeasurement(coilshotTableModel, currentPartNumber, current, duration,
+                    session.getCoilShotThreshold());
+        }
+    }
+
+    /**
+     * Writes a reading and the resulting status into a table as one update,
+     * so the table repaints the row once per event dispatch cycle
+     */
+    private void recordMeasurement(PersistentColorTableModel tableModel, int partNumber,
+                                   double current, double duration, double threshold) {
+        tableModel.beginUpdate();
+        try {
+            updateTableWithMeasurement(tableModel, partNumber, current, duration, threshold);
+            updateStatusColor(tableModel, partNumber);
+        } finally {
+            tableModel.endUpdate();
+        }
+    }
+
+    /**
+     * Fills the tables from the parts already in the session, such as a
+     * session recovered from its journal after a crash
+     */
+    private void restoreSessionRows() {
+        // The tables are still empty, so only part numbers repeated in the session are skipped
+        IntObjectHashMap<TestPart> restored = new IntObjectHashMap<>(session.getParts().size());
+        List<TestPart> parts = new ArrayList<>(session.getParts().size());
+        List<Object[]> headshotRows = new ArrayList<>(session.getParts().size());
+        List<Object[]> coilshotRows = new ArrayList<>(session.getParts().size());
+        for (TestPart part : session.getParts()) {
+            int partNumber = part.getPartNumber();
+            if (restored.containsKey(partNumber)) {
+                continue;
             }
+            restored.put(partNumber, part);
+            parts.add(part);
+            headshotRows.add(newPartRow(headshotTableModel, partNumber));
+            coilshotRows.add(newPartRow(coilshotTableModel, partNumber));
+        }
+        headshotTableModel.addRows(headshotRows);
+        coilshotTableModel.addRows(coilshotRows);
 
-            // Add the measurement to the appropriate table
-            if ("Headshot".equals(measurement.getMeterType())) {
-                part.addHeadshotMeasurement(measurement);
-                updateTableWithMeasurement(headshotTableModel, currentPartNumber,
-                        measurement.getCurrent(), measurement.getDuration());
-                updateStatusColor(headshotTableModel, currentPartNumber);
-            } else if ("Coilshot".equals(measurement.getMeterType())) {
-                part.addCoilshotMeasurement(measurement);
-                updateTableWithMeasurement(coilshotTableModel, currentPartNumber,
-                        measurement.getCurrent(), measurement.getDuration());
-                updateStatusColor(coilshotTableModel, currentPartNumber);
+        for (TestPart part : parts) {
+            int partNumber = part.getPartNumber();
+            MeasurementSeries headshots = part.getHeadshotSeries();
+            for (int i = 0; i < headshots.size(); i++) {
+                recordMeasurement(headshotTableModel, partNumber, headshots.getCurrent(i),
+                        headshots.getDuration(i), session.getHeadShotThreshold());
             }
-        });
+            MeasurementSeries coilshots = part.getCoilshotSeries();
+            for (int i = 0; i < coilshots.size(); i++) {
+                recordMeasurement(coilshotTableModel, partNumber, coilshots.getCurrent(i),
+                        coilshots.getDuration(i), session.getCoilShotThreshold());
+            }
+        }
     }
 
     private int getCurrentPartNumber() {
@@ -314,72 +411,72 @@ public class TablePage extends JPanel {
     }
 
     private void insertNewPartRow(PersistentColorTableModel tableModel, int partNumber) {
+        tableModel.addRow(newPartRow(tableModel, partNumber));
+    }
+
+    private Object[] newPartRow(PersistentColorTableModel tableModel, int partNumber) {
         Object[] rowData = new Object[tableModel.getColumnCount()];
         rowData[0] = partNumber;
         for (int i = 1; i < rowData.length - 1; i++) {
             rowData[i] = "";
         }
         rowData[rowData.length - 1] = ""; // Status column
-
-        tableModel.addRow(rowData);
+        return rowData;
     }
 
-    private void updateTableWithMeasurement(PersistentColorTableModel tableModel,
-                                            int partNumber, double current, double duration) {
-        // Find the row for this part
-        for (int i = 0; i < tableModel.getRowCount(); i++) {
-            if (tableModel.getValueAt(i, 0).equals(partNumber)) {
-                // Find the first empty current column
-                for (int col = 1; col < tableModel.getColumnCount() - 1; col += 2) {
-                    if (tableModel.getValueAt(i, col).equals("")) {
-                        tableModel.setValueAt(current, i, col);
-                        tableModel.setValueAt(String.format("%.3f", duration), i, col + 1);
-                        return;
-                    }
-                }
+    private void updateTableWithMeasurement(PersistentColorTableModel tableModel, int partNumber,
+                                            double current, double duration, double threshold) {
+        int i = tableModel.findRowByPartNumber(partNumber);
+        if (i < 0) {
+            return;
+        }
+
+        // Find the first empty current column
+        for (int col = 1; col < tableModel.getColumnCount() - 1; col += 2) {
+            if (tableModel.getValueAt(i, col).equals("")) {
+                tableModel.setMeasurement(i, col, current, duration, threshold);
+                return;
             }
         }
     }
 
     private void updateStatusColor(PersistentColorTableModel tableModel, int partNumber) {
-        // Find the row for this part
-        for (int i = 0; i < tableModel.getRowCount(); i++) {
-            if (tableModel.getValueAt(i, 0).equals(partNumber)) {
-                int statusCol = tableModel.getColumnCount() - 1;
-                boolean hasRedValue = false;
-                boolean hasValidValue = false;
-
-                // Check if any current value is red
-                for (int col = 1; col < tableModel.getColumnCount() - 1; col += 2) {
-                    Object value = tableModel.getValueAt(i, col);
-                    if (value != null && !value.equals("")) {
-                        hasValidValue = true;
-                        Color color = tableModel.getCellColor(i, col);
-                        if (color != null && color.equals(Color.RED)) {
-                            hasRedValue = true;
-                            break;
-                        }
-                    }
-                }
-
-                // Update status cell color
-                if (hasValidValue) {
-                    if (hasRedValue) {
-                        tableModel.setCellColor(i, statusCol, Color.ORANGE);
-                    } else {
-                        tableModel.setCellColor(i, statusCol, Color.GREEN);
-                    }
-                }
+        int i = tableModel.findRowByPartNumber(partNumber);
+        if (i < 0) {
+            return;
+        }
 
-                // Update part status in the model
-                TestPart part = session.getPartByNumber(partNumber);
-                if (part != null) {
-                    part.setStatus(hasRedValue ? "FAIL" : "PASS");
+        int statusCol = tableModel.getColumnCount() - 1;
+        boolean hasRedValue = false;
+        boolean hasValidValue = false;
+
+        // Check if any current value is red
+        for (int col = 1; col < tableModel.getColumnCount() - 1; col += 2) {
+            Object value = tableModel.getValueAt(i, col);
+            if (value != null && !value.equals("")) {
+                hasValidValue = true;
+                Color color = tableModel.getCellColor(i, col);
+                if (color != null && color.equals(Color.RED)) {
+                    hasRedValue = true;
+                    break;
                 }
+            }
+        }
 
-                return;
+        // Update status cell color
+        if (hasValidValue) {
+            if (hasRedValue) {
+                tableModel.setCellColor(i, statusCol, Color.ORANGE);
+            } else {
+                tableModel.setCellColor(i, statusCol, Color.GREEN);
             }
         }
+
+        // Update part status in the model
+        TestPart part = session.getPartByNumber(partNumber);
+        if (part != null) {
+            part.setStatus(hasRedValue ? "FAIL" : "PASS");
+        }
     }
 
     private void addNewPart() {
@@ -446,32 +543,27 @@ public class TablePage extends JPanel {
 
         parametersLabel.setText(String.format("Parameters: Headshot (%.2f), Coilshot (%.2f)",
                 session.getHeadShotThreshold(), session.getCoilShotThreshold()));
-
-        // Update table renderers with new thresholds
-        updateTableRenderers();
     }
 
     private void updateTableRenderers() {
-        headshotTable.setDefaultRenderer(Object.class,
-                new CustomCellRenderer(session.getHeadShotThreshold(), headshotTableModel));
-        coilshotTable.setDefaultRenderer(Object.class,
-                new CustomCellRenderer(session.getCoilShotThreshold(), coilshotTableModel));
+        headshotTable.setDefaultRenderer(Object.class, new CustomCellRenderer(headshotTableModel));
+        coilshotTable.setDefaultRenderer(Object.class, new CustomCellRenderer(coilshotTableModel));
     }
 
     private void endSession() {
         // Copy all parts to history at once
         for (TestPart part : session.getParts()) {
             int partNumber = part.getPartNumber();
-            for (int i = 0; i < headshotTableModel.getRowCount(); i++) {
-                if (headshotTableModel.getValueAt(i, 0).equals(partNumber)) {
-                    copyRowToHistoryTable(headshotTableModel, i, session.getHistoryPanel().getHeadshotHistoryTableModel());
-                    copyRowToHistoryTable(coilshotTableModel, i, session.getHistoryPanel().getCoilshotHistoryTableModel());
-                    break;
-                }
+            int headshotRow = headshotTableModel.findRowByPartNumber(partNumber);
+            int coilshotRow = coilshotTableModel.findRowByPartNumber(partNumber);
+            if (headshotRow >= 0 && coilshotRow >= 0) {
+                copyRowToHistoryTable(headshotTableModel, headshotRow, session.getHistoryPanel().getHeadshotHistoryTableModel());
+                copyRowToHistoryTable(coilshotTableModel, coilshotRow, session.getHistoryPanel().getCoilshotHistoryTableModel());
             }
         }
 
         session.endSession();
+        session.getHistoryPanel().archiveSession();
         endTimeLabel.setText("End Time: " +
                 session.getEndTime().format(DateTimeFormatter.ofPattern("HH:mm:ss")));
 
@@ -489,23 +581,20 @@ public class TablePage extends JPanel {
      */
     private void copyRowToHistoryTable(PersistentColorTableModel sourceModel,
                                        int sourceRow,
-                                       PersistentColorTableModel historyModel) {
-        // Create a new row with the same data
+                                       PagedHistoryTableModel historyModel) {
+        // Create a new row with the same data and colors
         Object[] rowData = new Object[sourceModel.getColumnCount()];
+        Color[] colors = new Color[sourceModel.getColumnCount()];
         for (int i = 0; i < sourceModel.getColumnCount(); i++) {
             rowData[i] = sourceModel.getValueAt(sourceRow, i);
+            colors[i] = sourceModel.getCellColor(sourceRow, i);
         }
 
-        // Add the row to the history table
-        historyModel.addRow(rowData);
-
-        // Copy cell colors
-        int historyRow = historyModel.getRowCount() - 1;
-        for (int col = 0; col < sourceModel.getColumnCount(); col++) {
-            Color cellColor = sourceModel.getCellColor(sourceRow, col);
-            if (cellColor != null) {
-                historyModel.setCellColor(historyRow, col, cellColor);
-            }
+        // Add the row to the history file
+        try {
+            historyModel.appendRow(rowData, colors);
+        } catch (IOException e) {
+            System.err.println("Failed to write part " + rowData[0] + " to history: " + e.getMessage());
         }
     }
 
@@ -542,62 +631,22 @@ public class TablePage extends JPanel {
         // Prevent column resizing and reordering
         table.getTableHeader().setResizingAllowed(false);
         table.getTableHeader().setReorderingAllowed(false);
-
-        // Set default renderer for better number formatting and borders
-        table.setDefaultRenderer(Object.class, new javax.swing.table.DefaultTableCellRenderer() {
-            @Override
-            public java.awt.Component getTableCellRendererComponent(JTable table, Object value,
-                                                                    boolean isSelected, boolean hasFocus, int row, int column) {
-                JComponent c = (JComponent) super.getTableCellRendererComponent(table, value,
-                        isSelected, hasFocus, row, column);
-
-                // Add border to each cell
-                c.setBorder(BorderFactory.createCompoundBorder(
-                        BorderFactory.createMatteBorder(0, 0, 1, 1, new Color(180, 180, 180)), // Bottom and right borders
-                        BorderFactory.createEmptyBorder(2, 5, 2, 5) // Padding
-                ));
-
-                // Add left border for first column
-                if (column == 0) {
-                    c.setBorder(BorderFactory.createCompoundBorder(
-                            BorderFactory.createMatteBorder(0, 1, 1, 1, new Color(180, 180, 180)),
-                            BorderFactory.createEmptyBorder(2, 5, 2, 5)
-                    ));
-                }
-
-                // Format current values (odd columns)
-                if (column > 0 && column < table.getColumnCount() - 1 && column % 2 == 1) {
-                    if (value instanceof Number) {
-                        setText(String.format("%.2f", ((Number) value).doubleValue()));
-                    }
-                }
-                // Format time values (even columns)
-                else if (column > 0 && column < table.getColumnCount() - 1 && column % 2 == 0) {
-                    if (value instanceof Number) {
-                        setText(String.format("%.3f", ((Number) value).doubleValue()));
-                    }
-                }
-
-                // Center align all cells
-                setHorizontalAlignment(javax.swing.SwingConstants.CENTER);
-
-                // Set background color
-                if (!isSelected) {
-                    setBackground(row % 2 == 0 ? Color.WHITE : new Color(245, 245, 245));
-                }
-
-                return c;
-            }
-        });
     }
 
     /**
      * Shuts down the table page and releases resources
      */
     public void shutdown() {
-        if (serialPortManager != null) {
-            serialPortManager.stopReading();
-            serialPortManager.closeConnection();
+        if (acquisitionEngine != null) {
+            for (AcquisitionEngine.PortStatistics statistics : acquisitionEngine.getStatistics()) {
+                SerialPortManager manager = acquisitionEngine.getManager(statistics.getPortName());
+                System.out.println("Serial port " + statistics);
+                System.out.println("  read latency: " + manager.getLatencyHistogram());
+                System.out.println("  measurement buffer: " + measurementBuffers.get(statistics.getPortName()));
+            }
+            acquisitionEngine.stop();
         }
+        // Leave the session unended so it can be resumed from its journal
+        session.closeJournal();
     }
 }
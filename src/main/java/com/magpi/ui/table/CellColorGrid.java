@@ -0,0 +1,198 @@
+package com.magpi.ui.table;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * Row-major grid of cell colors stored as one byte per cell. Each byte is an
+ * index into a shared palette, with 0 meaning no color. Rows can be inserted,
+ * removed and moved so the colors follow the rows of the table they belong to.
+ */
+public class CellColorGrid {
+    public static final int NO_COLOR = 0;
+
+    private static final Object PALETTE_LOCK = new Object();
+    private static volatile Color[] palette = {null, Color.GREEN, Color.RED, Color.ORANGE};
+
+    private byte[] codes = new byte[0];
+    private int columns;
+    private int rows;
+
+    /**
+     * Creates an empty grid
+     * @param columns The number of columns
+     */
+    public CellColorGrid(int columns) {
+        this.columns = Math.max(columns, 1);
+    }
+
+    /**
+     * Gets the palette code of a color, adding the color to the palette if needed
+     * @param color The color, or null for no color
+     * @return The palette code
+     */
+    public static int codeOf(Color color) {
+        if (color == null) {
+            return NO_COLOR;
+        }
+        Color[] current = palette;
+        for (int code = 1; code < current.length; code++) {
+            if (current[code].equals(color)) {
+                return code;
+            }
+        }
+
+        synchronized (PALETTE_LOCK) {
+            current = palette;
+            for (int code = 1; code < current.length; code++) {
+                if (current[code].equals(color)) {
+                    return code;
+                }
+            }
+            if (current.length > 255) {
+                throw new IllegalStateException("Cell color palette is full");
+            }
+            Color[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = color;
+            palette = grown;
+            return current.length;
+        }
+    }
+
+    /**
+     * Gets the color of a palette code
+     * @param code The palette code
+     * @return The color, or null for NO_COLOR
+     */
+    public static Color colorOf(int code) {
+        return palette[code];
+    }
+
+    /**
+     * Gets the palette code of a cell
+     * @param row The row index
+     * @param col The column index
+     * @return The palette code, or NO_COLOR if the cell has no color
+     */
+    public int getCode(int row, int col) {
+        if (row < 0 || col < 0 || row >= rows || col >= columns) {
+            return NO_COLOR;
+        }
+        return codes[row * columns + col] & 0xFF;
+    }
+
+    public Color getColor(int row, int col) {
+        return colorOf(getCode(row, col));
+    }
+
+    /**
+     * Sets the palette code of a cell, growing the grid if needed
+     * @param row The row index
+     * @param col The column index
+     * @param code The palette code
+     */
+    public void setCode(int row, int col, int code) {
+        if (row < 0 || col < 0 || col >= columns) {
+            return;
+        }
+        if (row >= rows) {
+            if (code == NO_COLOR) {
+                return;
+            }
+            ensureRows(row + 1);
+        }
+        codes[row * columns + col] = (byte) code;
+    }
+
+    public void setColor(int row, int col, Color color) {
+        setCode(row, col, codeOf(color));
+    }
+
+    /**
+     * Inserts blank rows, shifting the rows below down
+     * @param firstRow The index of the first inserted row
+     * @param count The number of rows inserted
+     */
+    public void insertRows(int firstRow, int count) {
+        if (firstRow >= rows || count <= 0) {
+            return;
+        }
+        int oldRows = rows;
+        ensureRows(rows + count);
+        System.arraycopy(codes, firstRow * columns, codes, (firstRow + count) * columns, (oldRows - firstRow) * columns);
+        Arrays.fill(codes, firstRow * columns, (firstRow + count) * columns, (byte) NO_COLOR);
+    }
+
+    /**
+     * Removes rows, shifting the rows below up
+     * @param firstRow The index of the first removed row
+     * @param count The number of rows removed
+     */
+    public void removeRows(int firstRow, int count) {
+        if (firstRow >= rows || count <= 0) {
+            return;
+        }
+        int end = Math.min(firstRow + count, rows);
+        System.arraycopy(codes, end * columns, codes, firstRow * columns, (rows - end) * columns);
+        int newRows = rows - (end - firstRow);
+        Arrays.fill(codes, newRows * columns, rows * columns, (byte) NO_COLOR);
+        rows = newRows;
+    }
+
+    /**
+     * Moves rows the same way as DefaultTableModel.moveRow
+     * @param start The first row to move
+     * @param end The last row to move
+     * @param to The new index of the first moved row
+     */
+    public void moveRows(int start, int end, int to) {
+        int shift = to - start;
+        int first = shift < 0 ? to : start;
+        int last = shift < 0 ? end : end + shift;
+        if (shift == 0 || first >= rows) {
+            return;
+        }
+        ensureRows(last + 1);
+
+        int length = last - first + 1;
+        byte[] block = Arrays.copyOfRange(codes, first * columns, (last + 1) * columns);
+        for (int i = 0; i < length; i++) {
+            int target = first + Math.floorMod(i + shift, length);
+            System.arraycopy(block, i * columns, codes, target * columns, columns);
+        }
+    }
+
+    /**
+     * Changes the number of columns, keeping the colors of the columns that remain
+     * @param newColumns The new number of columns
+     */
+    public void setColumnCount(int newColumns) {
+        newColumns = Math.max(newColumns, 1);
+        if (newColumns == columns) {
+            return;
+        }
+        byte[] resized = new byte[rows * newColumns];
+        int copied = Math.min(columns, newColumns);
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(codes, row * columns, resized, row * newColumns, copied);
+        }
+        codes = resized;
+        columns = newColumns;
+    }
+
+    /**
+     * Removes all colors
+     */
+    public void clear() {
+        Arrays.fill(codes, (byte) NO_COLOR);
+        rows = 0;
+    }
+
+    private void ensureRows(int newRows) {
+        if (newRows * columns > codes.length) {
+            int capacity = Math.max(newRows, Math.max(16, codes.length / columns * 2));
+            codes = Arrays.copyOf(codes, capacity * columns);
+        }
+        rows = Math.max(rows, newRows);
+    }
+}
@@ -0,0 +1,17 @@
+package com.magpi.ui.table;
+
+import java.awt.*;
+
+/**
+ * A table model that stores a color per cell
+ */
+public interface CellColorModel {
+
+    /**
+     * Gets the color for a specific cell
+     * @param row The row index in the model
+     * @param col The column index in the model
+     * @return The color of the cell, or null if no color is set
+     */
+    Color getCellColor(int row, int col);
+}
@@ -1,76 +1,57 @@
 package com.magpi.ui.table;
 
 import javax.swing.*;
+import javax.swing.border.Border;
 import javax.swing.table.DefaultTableCellRenderer;
 import java.awt.*;
 
 /**
- * Custom renderer for table cells that applies color based on threshold values
+ * Custom renderer for table cells that shows the colors stored in the table
+ * model. Cells are classified when their measurement arrives (see
+ * PersistentColorTableModel.setMeasurement), so rendering only looks up the
+ * stored color and the preformatted text; it never changes the model.
  */
 public class CustomCellRenderer extends DefaultTableCellRenderer {
-    private final double threshold;
-    private final PersistentColorTableModel tableModel;
+    private static final Color PART_NUMBER_BACKGROUND = new Color(220, 220, 220);
+    private static final Border CELL_BORDER = BorderFactory.createCompoundBorder(
+            BorderFactory.createMatteBorder(0, 0, 1, 1, new Color(180, 180, 180)), // Bottom and right borders
+            BorderFactory.createEmptyBorder(2, 5, 2, 5)); // Padding
+    private static final Border FIRST_COLUMN_BORDER = BorderFactory.createCompoundBorder(
+            BorderFactory.createMatteBorder(0, 1, 1, 1, new Color(180, 180, 180)), // Left border as well
+            BorderFactory.createEmptyBorder(2, 5, 2, 5));
+
+    private final CellColorModel tableModel;
 
     /**
      * Creates a new custom cell renderer
-     * @param threshold The threshold value for coloring cells
      * @param tableModel The table model that stores cell colors
      */
-    public CustomCellRenderer(double threshold, PersistentColorTableModel tableModel) {
-        this.threshold = threshold;
+    public CustomCellRenderer(CellColorModel tableModel) {
         this.tableModel = tableModel;
+        setHorizontalAlignment(SwingConstants.CENTER);
     }
 
     @Override
     public Component getTableCellRendererComponent(JTable table, Object value,
                                                    boolean isSelected, boolean hasFocus,
                                                    int row, int column) {
-        Component cell = super.getTableCellRendererComponent(
-                table, value, isSelected, hasFocus, row, column);
-
-        // Reset background
-        cell.setBackground(Color.WHITE);
-
-        // Get saved cell color if it exists
-        Color savedColor = tableModel.getCellColor(row, column);
-        if (savedColor != null) {
-            cell.setBackground(savedColor);
-            return cell;
-        }
-
-        // Only color numeric cells (current values) that are in odd columns (1, 3, 5, 7, 9)
-        if (column % 2 == 1 && column > 0 && column < table.getColumnCount() - 1) {
-            if (value != null && !value.toString().trim().isEmpty()) {
-                try {
-                    double current = Double.parseDouble(value.toString());
-                    if (current >= threshold) {
-                        cell.setBackground(Color.GREEN);
-                        tableModel.setCellColor(row, column, Color.GREEN);
-                    } else {
-                        cell.setBackground(Color.RED);
-                        tableModel.setCellColor(row, column, Color.RED);
-
-                        // Auto-update status column when a red value is found
-                        int statusColumn = table.getColumnCount() - 1;
-                        tableModel.setCellColor(row, statusColumn, Color.ORANGE);
-                    }
-                } catch (NumberFormatException e) {
-                    // Not a number, don't color
-                }
-            }
-        }
-        // Status column has special coloring handled by updateStatusColor method in TablePage
-        else if (column == table.getColumnCount() - 1) {
-            // Status column - color will be set by the updateStatusColor method
-            // If no color is set yet, just keep it white
-            cell.setBackground(Color.WHITE);
-        }
-
-        // First column (part number) should be gray
-        if (column == 0) {
-            cell.setBackground(new Color(220, 220, 220)); // Light gray
+        super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+
+        // Colors are stored by model position, which differs from the view when sorted or filtered
+        int modelRow = table.convertRowIndexToModel(row);
+        int modelColumn = table.convertColumnIndexToModel(column);
+
+        Color savedColor = tableModel.getCellColor(modelRow, modelColumn);
+        if (modelColumn == 0) {
+            // First column (part number) is gray
+            setBackground(PART_NUMBER_BACKGROUND);
+        } else if (savedColor != null) {
+            setBackground(savedColor);
+        } else {
+            setBackground(Color.WHITE);
         }
 
-        return cell;
+        setBorder(modelColumn == 0 ? FIRST_COLUMN_BORDER : CELL_BORDER);
+        return this;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,318 @@
+package com.magpi.ui.table;
+
+import com.magpi.util.IntObjectHashMap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * Trigram index over the text of history table rows, for case-insensitive
+ * "contains" search. Each row is indexed once, when it is added, by every
+ * one, two and three-character sequence of its cell texts. A query of up to
+ * three characters is answered by its postings alone. A longer query
+ * intersects the rows of its trigrams and only checks the text of the rows
+ * left over. When the query extends the previous one, only the previous
+ * matches are candidates, so search-as-you-type gets cheaper with every
+ * keystroke.
+ * <p>
+ * The index keeps only the postings, a few bytes per sequence of each row.
+ * The rows left over are read back through a RowReader to be checked, so
+ * memory does not grow with the text of the rows. Characters from
+ * GRAM_CHAR_LIMIT up share keys with lower ones, so their postings are only
+ * candidates and are always checked.
+ */
+public class HistorySearchIndex {
+    private static final char CELL_SEPARATOR = '\u0001';
+    private static final int GRAM_CHAR_LIMIT = 1 << 10;
+    // Set in the keys of one and two-character sequences, above every trigram key
+    private static final int SHORT_GRAM = 1 << 30;
+    private static final int READ_ROWS = 256;
+
+    /**
+     * Reads back the cells of indexed rows
+     */
+    public interface RowReader {
+        /**
+         * Reads the cells of consecutive rows
+         * @param firstRow The index of the first row
+         * @param cells The rows to fill, one value per column
+         * @param count The number of rows to read, at most 256
+         * @return The number of rows read
+         * @throws IOException If the rows cannot be read
+         */
+        int readRows(int firstRow, Object[][] cells, int count) throws IOException;
+    }
+
+    /**
+     * The rows containing one sequence, in ascending order. Once more than one
+     * row in 32 has it, the rows are kept as a bitset, which is then smaller.
+     */
+    private static class Postings {
+        int[] rows = new int[4];
+        BitSet bits;
+        int size;
+
+        void add(int row) {
+            if (bits != null) {
+                if (!bits.get(row)) {
+                    bits.set(row);
+                    size++;
+                }
+                return;
+            }
+            if (size > 0 && rows[size - 1] == row) {
+                return;
+            }
+            if (size == rows.length) {
+                if (size > row / 32) {
+                    bits = toBitSet();
+                    rows = null;
+                    add(row);
+                    return;
+                }
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        boolean contains(int row) {
+            return bits != null ? bits.get(row) : Arrays.binarySearch(rows, 0, size, row) >= 0;
+        }
+
+        BitSet toBitSet() {
+            if (bits != null) {
+                return (BitSet) bits.clone();
+            }
+            BitSet result = new BitSet();
+            for (int i = 0; i < size; i++) {
+                result.set(rows[i]);
+            }
+            return result;
+        }
+    }
+
+    private final IntObjectHashMap<Postings> postings = new IntObjectHashMap<>(4096);
+    private final RowReader reader;
+    private final int columnCount;
+    private int rowCount;
+    private String lastQuery;
+    private BitSet lastMatches;
+    private int lastRowCount;
+
+    /**
+     * Creates an empty index
+     * @param reader Reads back the rows a search has to check
+     * @param columnCount The number of cells of each row
+     */
+    public HistorySearchIndex(RowReader reader, int columnCount) {
+        this.reader = reader;
+        this.columnCount = columnCount;
+    }
+
+    /**
+     * Adds the next row to the index
+     * @param cells The cell values of the row, as shown in the table
+     * @return The index of the row
+     */
+    public int addRow(Object[] cells) {
+        String text = textOf(cells);
+        int row = rowCount;
+        rowCount = row + 1;
+
+        for (int i = 0; i < text.length(); i++) {
+            for (int length = 1; length <= 3 && i + length <= text.length(); length++) {
+                int gram = gram(text, i, length);
+                if (gram < 0) {
+                    // Longer sequences from here span the separator too
+                    break;
+                }
+                Postings rows = postings.get(gram);
+                if (rows == null) {
+                    rows = new Postings();
+                    postings.put(gram, rows);
+                }
+                rows.add(row);
+            }
+        }
+        return row;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Finds the rows with a cell that contains the given text, ignoring case
+     * @param query The text to search for
+     * @return The matching rows
+     */
+    public BitSet search(String query) {
+        String text = query.toLowerCase(Locale.ROOT);
+        BitSet matches = candidates(text);
+        if (lastQuery != null && lastRowCount == rowCount && text.contains(lastQuery)) {
+            // Every row that contains the longer text also matched the previous one
+            matches.and(lastMatches);
+        }
+        if (!isExact(text)) {
+            matches = verify(matches, text);
+        }
+        lastQuery = text;
+        lastMatches = matches;
+        lastRowCount = rowCount;
+        return (BitSet) matches.clone();
+    }
+
+    /**
+     * Checks whether the postings of the text are exactly the rows that contain
+     * it: it is one key long and has no characters that share keys
+     */
+    private static boolean isExact(String text) {
+        if (text.length() > 3) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= GRAM_CHAR_LIMIT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the rows that contain the text if it is up to three characters
+     * long, and otherwise the rows that contain every trigram of it
+     */
+    private BitSet candidates(String text) {
+        BitSet all = new BitSet(rowCount);
+        if (text.isEmpty()) {
+            all.set(0, rowCount);
+            return all;
+        }
+
+        int gramLength = Math.min(text.length(), 3);
+        int gramCount = text.length() - gramLength + 1;
+        Postings[] lists = new Postings[gramCount];
+        for (int i = 0; i < gramCount; i++) {
+            int gram = gram(text, i, gramLength);
+            if (gram < 0) {
+                // No cell contains the separator
+                return all;
+            }
+            lists[i] = postings.get(gram);
+            if (lists[i] == null) {
+                return all;
+            }
+        }
+
+        // Intersect starting from the rarest trigram, so the work shrinks fastest
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        if (lists[0].bits != null) {
+            BitSet rows = lists[0].toBitSet();
+            for (int i = 1; i < lists.length && !rows.isEmpty(); i++) {
+                rows.and(lists[i].bits != null ? lists[i].bits : lists[i].toBitSet());
+            }
+            return rows;
+        }
+        int[] rows = Arrays.copyOf(lists[0].rows, lists[0].size);
+        int count = rows.length;
+        for (int i = 1; i < lists.length && count > 0; i++) {
+            count = intersect(rows, count, lists[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            all.set(rows[i]);
+        }
+        return all;
+    }
+
+    private static int intersect(int[] rows, int count, Postings other) {
+        if (other.bits != null) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (other.contains(rows[i])) {
+                    rows[kept++] = rows[i];
+                }
+            }
+            return kept;
+        }
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < other.size; i++) {
+            int row = rows[i];
+            while (j < other.size && other.rows[j] < row) {
+                j++;
+            }
+            if (j < other.size && other.rows[j] == row) {
+                rows[kept++] = row;
+            }
+        }
+        return kept;
+    }
+
+    private BitSet verify(BitSet candidates, String text) {
+        BitSet matches = new BitSet(rowCount);
+        if (text.indexOf(CELL_SEPARATOR) >= 0) {
+            return matches;
+        }
+
+        // Candidates come in ascending order, so rows are read back in runs
+        Object[][] cells = new Object[READ_ROWS][columnCount];
+        int firstRead = 0;
+        int readCount = 0;
+        for (int row = candidates.nextSetBit(0); row >= 0 && row < rowCount; row = candidates.nextSetBit(row + 1)) {
+            if (row >= firstRead + readCount) {
+                // Read up to the last candidate within reach, not past it
+                int last = candidates.previousSetBit(Math.min(row + READ_ROWS, rowCount) - 1);
+                firstRead = row;
+                try {
+                    readCount = reader.readRows(row, cells, last - row + 1);
+                } catch (IOException e) {
+                    System.err.println("Failed to read history rows for search: " + e.getMessage());
+                    break;
+                }
+                if (readCount == 0) {
+                    break;
+                }
+            }
+            if (textOf(cells[row - firstRead]).contains(text)) {
+                matches.set(row);
+            }
+        }
+        return matches;
+    }
+
+    private static String textOf(Object[] cells) {
+        StringBuilder text = new StringBuilder(cells.length * 8);
+        for (Object cell : cells) {
+            if (cell != null) {
+                text.append(cell.toString().toLowerCase(Locale.ROOT));
+            }
+            text.append(CELL_SEPARATOR);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Packs one to three characters into a key, or returns -1 for the cell
+     * separator; sequences that span two cells are not indexed
+     */
+    private static int gram(CharSequence text, int start, int length) {
+        int key = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = text.charAt(i);
+            if (c == CELL_SEPARATOR) {
+                return -1;
+            }
+            // Characters past the limit fold into its upper half
+            int folded = c < GRAM_CHAR_LIMIT ? c : GRAM_CHAR_LIMIT / 2 + c % (GRAM_CHAR_LIMIT / 2);
+            key = (key << 10) | folded;
+        }
+        if (length == 1) {
+            key |= SHORT_GRAM | (1 << 20);
+        } else if (length == 2) {
+            key |= SHORT_GRAM;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,82 @@
+package com.magpi.ui.table;
+
+/**
+ * A measurement stored in a table cell together with its display text. The
+ * text is formatted at most once, the first time it is needed, so rendering
+ * the cell does not format or parse anything after that.
+ */
+public final class MeasurementValue extends Number implements Comparable<MeasurementValue> {
+    private static final String CURRENT_FORMAT = "%.2f";
+    private static final String DURATION_FORMAT = "%.3f";
+
+    private final double value;
+    private final String format;
+    private String text;
+
+    private MeasurementValue(double value, String format) {
+        this.value = value;
+        this.format = format;
+    }
+
+    /**
+     * Creates a current value, shown with two decimals
+     * @param current The current value
+     */
+    public static MeasurementValue current(double current) {
+        return new MeasurementValue(current, CURRENT_FORMAT);
+    }
+
+    /**
+     * Creates a duration value, shown with three decimals
+     * @param duration The duration value
+     */
+    public static MeasurementValue duration(double duration) {
+        return new MeasurementValue(duration, DURATION_FORMAT);
+    }
+
+    @Override
+    public double doubleValue() {
+        return value;
+    }
+
+    @Override
+    public float floatValue() {
+        return (float) value;
+    }
+
+    @Override
+    public long longValue() {
+        return (long) value;
+    }
+
+    @Override
+    public int intValue() {
+        return (int) value;
+    }
+
+    @Override
+    public int compareTo(MeasurementValue other) {
+        return Double.compare(value, other.value);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof MeasurementValue && Double.compare(value, ((MeasurementValue) obj).value) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(value);
+    }
+
+    /**
+     * Gets the display text, formatting it on first use
+     */
+    @Override
+    public String toString() {
+        if (text == null) {
+            text = String.format(format, value);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,553 @@
+package com.magpi.ui.table;
+
+import com.magpi.util.HistoryRowFile;
+import com.magpi.util.IntObjectHashMap;
+import com.magpi.util.SessionHistoryStore;
+
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-mostly table model for history rows stored in a HistoryRowFile. Rows
+ * are loaded from disk a page at a time and kept in a small LRU cache, so
+ * memory use depends on the cache size, not on the number of rows. Opening
+ * a file of any size only reads its header. A model can also show a selection
+ * of the rows of a file, such as the result of an archive query.
+ * <p>
+ * The pass/fail status of every row is kept in memory as one byte per row,
+ * together with a set of rows per status, so filtering by status does not
+ * need to look at the rows themselves.
+ */
+public class PagedHistoryTableModel extends AbstractTableModel implements CellColorModel, Closeable {
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PREFETCH_ROWS = 32;
+    private static final int DEFAULT_MAX_PAGES = 16;
+
+    /**
+     * A page of decoded rows, ready for rendering
+     */
+    private static class Page {
+        final Object[][] values;
+        final Color[][] colors;
+
+        Page(Object[][] values, Color[][] colors) {
+            this.values = values;
+            this.colors = colors;
+        }
+    }
+
+    private final String[] columnNames;
+    private final HistoryRowFile rowFile;
+    private final Map<Integer, Page> pages;
+    private final IntObjectHashMap<Color> colorCache = new IntObjectHashMap<>();
+    private final HistoryRowFile.Row[] readRows;
+    private final int[] rowMap;
+    private HistorySearchIndex searchIndex;
+    private byte[] rowStatuses = new byte[0];
+    private int statusCount;
+    private final BitSet passedRows = new BitSet();
+    private final BitSet failedRows = new BitSet();
+    private long pageLoads;
+
+    /**
+     * Creates a model with the default cache of 16 pages of 256 rows
+     * @param columnNames The column names; must match the column count of the file
+     * @param rowFile The file holding the rows
+     */
+    public PagedHistoryTableModel(String[] columnNames, HistoryRowFile rowFile) {
+        this(columnNames, rowFile, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * Creates a model
+     * @param columnNames The column names; must match the column count of the file
+     * @param rowFile The file holding the rows
+     * @param maxPages The number of 256-row pages kept in memory
+     */
+    public PagedHistoryTableModel(String[] columnNames, HistoryRowFile rowFile, int maxPages) {
+        this(columnNames, rowFile, null, maxPages);
+    }
+
+    /**
+     * Creates a model that shows the given rows of a file. The file is shared,
+     * so closing the model leaves it open, and rows cannot be appended.
+     * @param columnNames The column names; must match the column count of the file
+     * @param rowFile The file holding the rows
+     * @param rows The indexes of the rows to show, in display order
+     */
+    public PagedHistoryTableModel(String[] columnNames, HistoryRowFile rowFile, int[] rows) {
+        this(columnNames, rowFile, rows.clone(), DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * Creates a model that shows the given rows of a file, whose statuses are
+     * already known, such as rows found in the session archive
+     * @param columnNames The column names; must match the column count of the file
+     * @param rowFile The file holding the rows
+     * @param rows The indexes of the rows to show, in display order
+     * @param statuses The status of each row, SessionHistoryStore.STATUS_NONE, STATUS_PASS or STATUS_FAIL
+     */
+    public PagedHistoryTableModel(String[] columnNames, HistoryRowFile rowFile, int[] rows, byte[] statuses) {
+        this(columnNames, rowFile, rows.clone(), DEFAULT_MAX_PAGES);
+        for (int row = 0; row < statuses.length; row++) {
+            addStatus(row, statuses[row]);
+        }
+    }
+
+    private PagedHistoryTableModel(String[] columnNames, HistoryRowFile rowFile, int[] rowMap, int maxPages) {
+        if (columnNames.length != rowFile.getColumnCount()) {
+            throw new IllegalArgumentException("Expected " + rowFile.getColumnCount() + " columns");
+        }
+        this.columnNames = columnNames.clone();
+        this.rowFile = rowFile;
+        this.rowMap = rowMap;
+        this.pages = new LinkedHashMap<Integer, Page>(maxPages * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+                return size() > maxPages;
+            }
+        };
+        this.readRows = new HistoryRowFile.Row[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            readRows[i] = new HistoryRowFile.Row(columnNames.length);
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowMap != null ? rowMap.length : rowFile.getRowCount();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return pageFor(row).values[row & PAGE_MASK][column];
+    }
+
+    @Override
+    public Color getCellColor(int row, int col) {
+        if (row < 0 || row >= getRowCount() || col < 0 || col >= columnNames.length) {
+            return null;
+        }
+        return pageFor(row).colors[row & PAGE_MASK][col];
+    }
+
+    /**
+     * Appends a row to the file and shows it in the table
+     * @param rowData The cell values, in the layout of the live tables
+     * @param colors The cell colors, null where a cell has none
+     * @throws IOException If the row cannot be written
+     */
+    public void appendRow(Object[] rowData, Color[] colors) throws IOException {
+        if (rowMap != null) {
+            throw new IllegalStateException("Rows cannot be appended to a selection of a history file");
+        }
+        HistoryRowFile.Row row = new HistoryRowFile.Row(columnNames.length);
+        row.partNumber = rowData[0] instanceof Number ? ((Number) rowData[0]).intValue() : 0;
+        for (int col = 1; col < columnNames.length - 1; col++) {
+            row.values[col - 1] = toDouble(rowData[col]);
+        }
+        Object status = rowData[columnNames.length - 1];
+        row.status = status != null ? status.toString() : "";
+        for (int col = 0; col < columnNames.length; col++) {
+            row.colors[col] = colors[col] != null ? colors[col].getRGB() : 0;
+        }
+
+        int index = rowFile.append(row);
+        Object[] cells = new Object[columnNames.length];
+        decode(row, cells);
+        addToCachedPage(index, cells, row);
+        if (statusCount == index) {
+            addStatus(index, SessionHistoryStore.statusOf(row));
+        }
+        if (searchIndex != null && searchIndex.getRowCount() == index) {
+            searchIndex.addRow(cells);
+        }
+        fireTableRowsInserted(index, index);
+    }
+
+    /**
+     * Adds an appended row to its page if the page is cached, rather than
+     * reading the page again
+     */
+    private void addToCachedPage(int index, Object[] cells, HistoryRowFile.Row row) {
+        int pageIndex = index >> PAGE_SHIFT;
+        Page page = pages.get(pageIndex);
+        if (page == null) {
+            return;
+        }
+        int offset = index & PAGE_MASK;
+        if (page.values.length != offset) {
+            pages.remove(pageIndex);
+            return;
+        }
+        Object[][] values = Arrays.copyOf(page.values, offset + 1);
+        Color[][] colors = Arrays.copyOf(page.colors, offset + 1);
+        values[offset] = cells;
+        colors[offset] = new Color[columnNames.length];
+        for (int col = 0; col < columnNames.length; col++) {
+            colors[offset][col] = colorOf(row.colors[col]);
+        }
+        pages.put(pageIndex, new Page(values, colors));
+    }
+
+    /**
+     * Gets the number of rows currently held in memory
+     */
+    public int getCachedRowCount() {
+        return pages.size() * PAGE_SIZE;
+    }
+
+    /**
+     * Gets the number of pages read from disk since the model was created
+     */
+    public long getPageLoadCount() {
+        return pageLoads;
+    }
+
+    public HistoryRowFile getRowFile() {
+        return rowFile;
+    }
+
+    /**
+     * Gets the status of a row. Reads the file if the statuses are not known
+     * yet; see hasRowStatuses.
+     * @param row The row index in the model
+     * @return SessionHistoryStore.STATUS_NONE, STATUS_PASS or STATUS_FAIL
+     */
+    public byte getRowStatus(int row) {
+        loadStatuses();
+        return row < statusCount ? rowStatuses[row] : SessionHistoryStore.STATUS_NONE;
+    }
+
+    /**
+     * Gets the rows with a status. The set is kept up to date as rows are
+     * appended and must not be changed by the caller. Reads the file if the
+     * statuses are not known yet; see hasRowStatuses.
+     * @param status SessionHistoryStore.STATUS_PASS or STATUS_FAIL
+     * @return The model indexes of the rows
+     */
+    public BitSet getRowsWithStatus(byte status) {
+        loadStatuses();
+        return status == SessionHistoryStore.STATUS_FAIL ? failedRows : passedRows;
+    }
+
+    /**
+     * Checks whether the status of every row is known, so the status getters
+     * answer without reading the file
+     */
+    public boolean hasRowStatuses() {
+        return statusCount >= getRowCount();
+    }
+
+    /**
+     * Gets the number of rows whose status is known, counted from the first row
+     */
+    public int getStatusRowCount() {
+        return statusCount;
+    }
+
+    /**
+     * Reads the statuses of consecutive rows. Reads the rows straight from
+     * the file without touching the model, so it can run off the event
+     * dispatch thread; hand the result to addRowStatuses.
+     * @param firstRow The model index of the first row, usually getStatusRowCount()
+     * @param rowCount The model row count when the read was started
+     * @return The status of each row read
+     * @throws IOException If the rows cannot be read
+     */
+    public byte[] readRowStatuses(int firstRow, int rowCount) throws IOException {
+        HistoryRowFile.Row[] rows = new HistoryRowFile.Row[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            rows[i] = new HistoryRowFile.Row(columnNames.length);
+        }
+        byte[] statuses = new byte[Math.max(0, rowCount - firstRow)];
+        int read = 0;
+        while (read < statuses.length) {
+            int count = readRows(firstRow + read, rows);
+            if (count == 0) {
+                break;
+            }
+            for (int i = 0; i < count && read < statuses.length; i++) {
+                statuses[read++] = SessionHistoryStore.statusOf(rows[i]);
+            }
+        }
+        return read < statuses.length ? Arrays.copyOf(statuses, read) : statuses;
+    }
+
+    /**
+     * Adds statuses read by readRowStatuses, then classifies any rows
+     * appended since the read started
+     * @param firstRow The first row passed to readRowStatuses
+     * @param statuses The statuses it returned
+     */
+    public void addRowStatuses(int firstRow, byte[] statuses) {
+        applyStatuses(firstRow, statuses);
+        loadStatuses();
+    }
+
+    private void applyStatuses(int firstRow, byte[] statuses) {
+        // Rows classified while the statuses were read are skipped
+        for (int i = Math.max(0, statusCount - firstRow); i < statuses.length && firstRow + i == statusCount; i++) {
+            addStatus(firstRow + i, statuses[i]);
+        }
+    }
+
+    /**
+     * Reads the statuses of rows that were in the file before the model was
+     * created; rows appended through the model are classified as they arrive
+     */
+    private void loadStatuses() {
+        if (hasRowStatuses()) {
+            return;
+        }
+        try {
+            int firstRow = statusCount;
+            applyStatuses(firstRow, readRowStatuses(firstRow, getRowCount()));
+        } catch (IOException e) {
+            System.err.println("Failed to read history row statuses: " + e.getMessage());
+        }
+    }
+
+    private void addStatus(int row, byte status) {
+        if (row == rowStatuses.length) {
+            rowStatuses = Arrays.copyOf(rowStatuses, Math.max(256, row * 2));
+        }
+        rowStatuses[row] = status;
+        statusCount = row + 1;
+        if (status == SessionHistoryStore.STATUS_PASS) {
+            passedRows.set(row);
+        } else if (status == SessionHistoryStore.STATUS_FAIL) {
+            failedRows.set(row);
+        }
+    }
+
+    /**
+     * Reads consecutive model rows straight from the file, without touching
+     * the page cache, so it can be used off the event dispatch thread
+     * @param firstRow The model index of the first row
+     * @param rows The rows to fill; as many rows are read as the array holds
+     * @return The number of rows read
+     * @throws IOException If the rows cannot be read
+     */
+    public int readRows(int firstRow, HistoryRowFile.Row[] rows) throws IOException {
+        return readRows(firstRow, rows, rows.length);
+    }
+
+    private int readRows(int firstRow, HistoryRowFile.Row[] rows, int count) throws IOException {
+        return rowMap != null ? readMappedRows(firstRow, rows, count) : rowFile.readRows(firstRow, rows, 0, count);
+    }
+
+    /**
+     * Reads and decodes consecutive model rows straight from the file, for
+     * the search index to check the rows it finds
+     */
+    private int readCells(int firstRow, Object[][] cells, int count) throws IOException {
+        // Searches run on the event dispatch thread, like page loads, so they share the buffer
+        int read = readRows(firstRow, readRows, Math.min(count, PAGE_SIZE));
+        for (int i = 0; i < read; i++) {
+            decode(readRows[i], cells[i]);
+        }
+        return read;
+    }
+
+    /**
+     * Gets the search index of this model
+     * @return The index, or null if none was built yet
+     */
+    public HistorySearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Builds a search index over all rows. Reads the rows straight from the
+     * file without touching the page cache, so it can run off the event
+     * dispatch thread; hand the result to setSearchIndex.
+     * @return The new index
+     * @throws IOException If the rows cannot be read
+     */
+    public HistorySearchIndex buildSearchIndex() throws IOException {
+        HistorySearchIndex index = new HistorySearchIndex(this::readCells, columnNames.length);
+        HistoryRowFile.Row[] rows = new HistoryRowFile.Row[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            rows[i] = new HistoryRowFile.Row(columnNames.length);
+        }
+        int rowCount = getRowCount();
+        Object[] cells = new Object[columnNames.length];
+        for (int first = 0; first < rowCount; first += PAGE_SIZE) {
+            int count = readRows(first, rows);
+            for (int i = 0; i < count; i++) {
+                decode(rows[i], cells);
+                index.addRow(cells);
+            }
+            if (count < PAGE_SIZE) {
+                break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Sets the search index and adds any rows appended since it was built.
+     * Rows appended afterwards are indexed as they arrive.
+     * @param index The index, built by buildSearchIndex
+     */
+    public void setSearchIndex(HistorySearchIndex index) {
+        for (int row = index.getRowCount(); row < getRowCount(); row++) {
+            index.addRow(pageFor(row).values[row & PAGE_MASK]);
+        }
+        this.searchIndex = index;
+    }
+
+    /**
+     * Gets the index of a row in the history file
+     * @param row The row index in the model
+     */
+    public int getFileRow(int row) {
+        return rowMap != null ? rowMap[row] : row;
+    }
+
+    private Page pageFor(int row) {
+        int pageIndex = row >> PAGE_SHIFT;
+        Page page = loadPage(pageIndex);
+
+        // Load the neighbouring page ahead of time when scrolling towards it
+        int offset = row & PAGE_MASK;
+        if (offset >= PAGE_SIZE - PREFETCH_ROWS && (pageIndex + 1) << PAGE_SHIFT < getRowCount()) {
+            loadPage(pageIndex + 1);
+        } else if (offset < PREFETCH_ROWS && pageIndex > 0) {
+            loadPage(pageIndex - 1);
+        }
+        return page;
+    }
+
+    private Page loadPage(int pageIndex) {
+        Page page = pages.get(pageIndex);
+        if (page != null) {
+            return page;
+        }
+
+        int firstRow = pageIndex << PAGE_SHIFT;
+        int expected = Math.max(0, Math.min(PAGE_SIZE, getRowCount() - firstRow));
+        int count;
+        try {
+            count = readRows(firstRow, readRows);
+        } catch (IOException e) {
+            System.err.println("Failed to read history rows: " + e.getMessage());
+            count = 0;
+        }
+
+        int columns = columnNames.length;
+        Object[][] values = new Object[Math.max(count, expected)][columns];
+        Color[][] colors = new Color[values.length][columns];
+        for (int i = 0; i < count; i++) {
+            HistoryRowFile.Row row = readRows[i];
+            decode(row, values[i]);
+            for (int col = 0; col < columns; col++) {
+                colors[i][col] = colorOf(row.colors[col]);
+            }
+        }
+        page = new Page(values, colors);
+        if (count < expected) {
+            // Rows that could not be read show as blank and are not cached, so they are read again
+            for (int i = count; i < expected; i++) {
+                Arrays.fill(values[i], "");
+            }
+            return page;
+        }
+
+        pages.put(pageIndex, page);
+        pageLoads++;
+        return page;
+    }
+
+    /**
+     * Converts a stored row into the cell values shown in the table
+     * @param row The stored row
+     * @param cells The cell values to fill, one per column
+     */
+    public static void decode(HistoryRowFile.Row row, Object[] cells) {
+        int columns = cells.length;
+        cells[0] = row.partNumber;
+        for (int col = 1; col < columns - 1; col++) {
+            double value = row.values[col - 1];
+            if (Double.isNaN(value)) {
+                cells[col] = "";
+            } else {
+                // Odd columns hold currents, even columns hold durations
+                cells[col] = col % 2 == 1 ? MeasurementValue.current(value) : MeasurementValue.duration(value);
+            }
+        }
+        cells[columns - 1] = row.status;
+    }
+
+    /**
+     * Reads the selected rows of a page, with one read per run of consecutive file rows
+     */
+    private int readMappedRows(int firstRow, HistoryRowFile.Row[] rows, int length) throws IOException {
+        int count = Math.min(length, rowMap.length - firstRow);
+        int i = 0;
+        while (i < count) {
+            int runStart = i;
+            while (i + 1 < count && rowMap[firstRow + i + 1] == rowMap[firstRow + i] + 1) {
+                i++;
+            }
+            i++;
+            int read = rowFile.readRows(rowMap[firstRow + runStart], rows, runStart, i - runStart);
+            if (read < i - runStart) {
+                return runStart + read;
+            }
+        }
+        return count;
+    }
+
+    private Color colorOf(int rgb) {
+        if (rgb == 0) {
+            return null;
+        }
+        Color color = colorCache.get(rgb);
+        if (color == null) {
+            color = new Color(rgb, true);
+            colorCache.put(rgb, color);
+        }
+        return color;
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value != null && !value.toString().trim().isEmpty()) {
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException e) {
+                // Not a measurement, store it as empty
+            }
+        }
+        return Double.NaN;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (rowMap == null) {
+            rowFile.close();
+        }
+    }
+}
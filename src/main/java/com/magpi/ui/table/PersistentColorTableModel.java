@@ -1,15 +1,37 @@
 package com.magpi.ui.table;
 
+import com.magpi.util.IntObjectHashMap;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Vector;
 
 /**
- * Table model that preserves cell colors between renderings
+ * Table model that preserves cell colors between renderings. Colors are kept
+ * in a CellColorGrid that moves with the rows, so inserting, removing or
+ * moving rows keeps every color on its row. The model also indexes
+ * rows by the part number in column 0, so a part's row is found without
+ * scanning the table.
+ * <p>
+ * Cell changes made between beginUpdate and endUpdate are not announced one
+ * by one. They are merged into a single rows-updated event that is fired
+ * once per event dispatch cycle, however many updates happen in that cycle.
  */
-public class PersistentColorTableModel extends DefaultTableModel {
-    private Map<Point, Color> cellColors = new HashMap<>();
+public class PersistentColorTableModel extends DefaultTableModel implements CellColorModel {
+    // Built lazily: the superclass constructor fires events before fields are initialized
+    private CellColorGrid cellColors;
+    private IntObjectHashMap<Integer> partRows;
+    private int indexedRowCount;
+    private boolean removingLastRow;
+    private int updateDepth;
+    private boolean hasPendingChanges;
+    private boolean flushScheduled;
+    private int pendingFirstRow;
+    private int pendingLastRow;
+    private int pendingColumn;
     
     /**
      * Creates a new PersistentColorTableModel with the given column names and row count
@@ -27,7 +49,8 @@ public class PersistentColorTableModel extends DefaultTableModel {
      * @param color The color to set
      */
     public void setCellColor(int row, int col, Color color) {
-        cellColors.put(new Point(row, col), color);
+        colorGrid().setColor(row, col, color);
+        cellColorChanged(row, col);
     }
     
     /**
@@ -36,15 +59,281 @@ public class PersistentColorTableModel extends DefaultTableModel {
      * @param col The column index
      * @return The color of the cell, or null if no color is set
      */
+    @Override
     public Color getCellColor(int row, int col) {
-        return cellColors.get(new Point(row, col));
+        return cellColors == null ? null : cellColors.getColor(row, col);
+    }
+    
+    /**
+     * Stores a measurement in a row and classifies it against a threshold.
+     * The current cell turns green when it reaches the threshold and red
+     * otherwise, and a red current marks the status cell orange. This is the
+     * only place cells are classified, so renderers just show the stored colors.
+     * @param row The row index
+     * @param currentColumn The current column; the duration goes in the next column
+     * @param current The current value
+     * @param duration The duration value
+     * @param threshold The minimum passing current
+     * @return true if the current passed
+     */
+    public boolean setMeasurement(int row, int currentColumn, double current, double duration, double threshold) {
+        boolean passed = current >= threshold;
+        beginUpdate();
+        try {
+            setValueAt(MeasurementValue.current(current), row, currentColumn);
+            setValueAt(MeasurementValue.duration(duration), row, currentColumn + 1);
+            setCellColor(row, currentColumn, passed ? Color.GREEN : Color.RED);
+            if (!passed) {
+                setCellColor(row, getColumnCount() - 1, Color.ORANGE);
+            }
+        } finally {
+            endUpdate();
+        }
+        return passed;
+    }
+    
+    /**
+     * Starts a batch of cell changes. Calls may be nested; the changes are
+     * announced after the outermost endUpdate. Must be called on the EDT.
+     */
+    public void beginUpdate() {
+        updateDepth++;
+    }
+    
+    /**
+     * Ends a batch of cell changes started with beginUpdate. The merged change
+     * event is fired later in the current event dispatch cycle, so several
+     * batches in one cycle produce a single event.
+     */
+    public void endUpdate() {
+        if (updateDepth == 0) {
+            throw new IllegalStateException("endUpdate without beginUpdate");
+        }
+        if (--updateDepth == 0 && hasPendingChanges && !flushScheduled) {
+            flushScheduled = true;
+            SwingUtilities.invokeLater(this::flushPendingChanges);
+        }
+    }
+    
+    /**
+     * Applies a batch of cell changes as one update
+     * @param changes The changes to apply
+     */
+    public void update(Runnable changes) {
+        beginUpdate();
+        try {
+            changes.run();
+        } finally {
+            endUpdate();
+        }
     }
     
     /**
      * Clears all cell colors
      */
     public void clearCellColors() {
-        cellColors.clear();
+        colorGrid().clear();
+        if (getRowCount() > 0) {
+            fireTableRowsUpdated(0, getRowCount() - 1);
+        }
+    }
+    
+    @Override
+    public void moveRow(int start, int end, int to) {
+        colorGrid().moveRows(start, end, to);
+        super.moveRow(start, end, to);
+    }
+    
+    /**
+     * Finds the row holding a part. Rows are model indices; a table with a
+     * RowSorter converts them with JTable.convertRowIndexToView.
+     * @param partNumber The part number in column 0
+     * @return The first row holding the part, or -1 if there is none
+     */
+    public int findRowByPartNumber(int partNumber) {
+        if (partRows == null) {
+            rebuildPartIndex();
+        }
+        Integer row = partRows.get(partNumber);
+        if (row == null) {
+            // The index follows every event, so a part missing from it is not in the table
+            return -1;
+        }
+        if (isPartRow(row, partNumber)) {
+            return row;
+        }
+
+        // The rows were changed without an event; trust the data over the index
+        rebuildPartIndex();
+        row = partRows.get(partNumber);
+        return row != null ? row : -1;
+    }
+    
+    /**
+     * Appends rows with a single rows-inserted event
+     * @param rows The cell values of each row, one per column
+     */
+    public void addRows(List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        int firstRow = getRowCount();
+        for (Object[] rowData : rows) {
+            Vector<Object> row = convertToVector(rowData);
+            row.setSize(getColumnCount());
+            dataVector.add(row);
+        }
+        fireTableRowsInserted(firstRow, getRowCount() - 1);
+    }
+    
+    @Override
+    public void removeRow(int row) {
+        if (partRows != null && row == getRowCount() - 1) {
+            // The last row holds no part that another row depends on, so only its own entry goes
+            Object value = getValueAt(row, 0);
+            if (value instanceof Integer && Integer.valueOf(row).equals(partRows.get((Integer) value))) {
+                partRows.remove((Integer) value);
+            }
+            removingLastRow = true;
+        }
+        try {
+            super.removeRow(row);
+        } finally {
+            removingLastRow = false;
+        }
+    }
+    
+    @Override
+    public void fireTableChanged(TableModelEvent e) {
+        if (cellColors != null) {
+            updateColorGrid(e);
+        }
+        if (partRows != null) {
+            updatePartIndex(e);
+        }
+
+        if (isCellUpdate(e)) {
+            if (updateDepth > 0) {
+                addPendingChange(e.getFirstRow(), e.getLastRow(), e.getColumn());
+                return;
+            }
+        } else if (hasPendingChanges) {
+            // Announce merged changes before rows move, while their indices are still valid
+            firePendingChanges();
+        }
+        super.fireTableChanged(e);
+    }
+    
+    private static boolean isCellUpdate(TableModelEvent e) {
+        return e.getType() == TableModelEvent.UPDATE
+                && e.getFirstRow() != TableModelEvent.HEADER_ROW
+                && e.getLastRow() != Integer.MAX_VALUE;
+    }
+    
+    private void cellColorChanged(int row, int col) {
+        if (row >= getRowCount()) {
+            return;
+        }
+        if (updateDepth > 0) {
+            addPendingChange(row, row, col);
+        } else {
+            fireTableCellUpdated(row, col);
+        }
+    }
+    
+    private void addPendingChange(int firstRow, int lastRow, int column) {
+        if (!hasPendingChanges) {
+            hasPendingChanges = true;
+            pendingFirstRow = firstRow;
+            pendingLastRow = lastRow;
+            pendingColumn = column;
+            return;
+        }
+        pendingFirstRow = Math.min(pendingFirstRow, firstRow);
+        pendingLastRow = Math.max(pendingLastRow, lastRow);
+        if (pendingColumn != column) {
+            pendingColumn = TableModelEvent.ALL_COLUMNS;
+        }
+    }
+    
+    private void flushPendingChanges() {
+        flushScheduled = false;
+        if (updateDepth == 0 && hasPendingChanges) {
+            firePendingChanges();
+        }
+    }
+    
+    private void firePendingChanges() {
+        hasPendingChanges = false;
+        int lastRow = Math.min(pendingLastRow, getRowCount() - 1);
+        if (pendingFirstRow <= lastRow) {
+            super.fireTableChanged(new TableModelEvent(this, pendingFirstRow, lastRow, pendingColumn));
+        }
+    }
+    
+    private CellColorGrid colorGrid() {
+        if (cellColors == null) {
+            cellColors = new CellColorGrid(getColumnCount());
+        }
+        return cellColors;
+    }
+    
+    private void updateColorGrid(TableModelEvent e) {
+        if (e.getFirstRow() == TableModelEvent.HEADER_ROW) {
+            cellColors.setColumnCount(getColumnCount());
+        } else if (e.getType() == TableModelEvent.INSERT) {
+            cellColors.insertRows(e.getFirstRow(), e.getLastRow() - e.getFirstRow() + 1);
+        } else if (e.getType() == TableModelEvent.DELETE) {
+            cellColors.removeRows(e.getFirstRow(), e.getLastRow() - e.getFirstRow() + 1);
+        }
+    }
+    
+    private void updatePartIndex(TableModelEvent e) {
+        int type = e.getType();
+        if (type == TableModelEvent.INSERT && e.getFirstRow() == indexedRowCount) {
+            // Appended rows, the common case, are indexed in place
+            for (int row = e.getFirstRow(); row <= e.getLastRow(); row++) {
+                indexRow(row);
+            }
+            indexedRowCount = e.getLastRow() + 1;
+        } else if (type == TableModelEvent.DELETE && removingLastRow) {
+            // removeRow already dropped the entry of the last row
+            indexedRowCount = getRowCount();
+        } else if (type == TableModelEvent.UPDATE && e.getFirstRow() != TableModelEvent.HEADER_ROW
+                && e.getColumn() != 0 && e.getColumn() != TableModelEvent.ALL_COLUMNS) {
+            // Cell updates outside the part number column leave the index intact
+        } else {
+            // Inserts in the middle, other deletes, moves and part number changes
+            // shift rows; the index is rebuilt once, on the next lookup
+            partRows = null;
+        }
+    }
+    
+    private void rebuildPartIndex() {
+        partRows = new IntObjectHashMap<>(getRowCount());
+        int rowCount = getRowCount();
+        for (int row = 0; row < rowCount; row++) {
+            indexRow(row);
+        }
+        indexedRowCount = rowCount;
+    }
+    
+    private void indexRow(int row) {
+        Object value = getValueAt(row, 0);
+        if (value instanceof Integer) {
+            int partNumber = (Integer) value;
+            if (!partRows.containsKey(partNumber)) {
+                partRows.put(partNumber, row);
+            }
+        }
+    }
+    
+    private boolean isPartRow(int row, int partNumber) {
+        if (row >= getRowCount()) {
+            return false;
+        }
+        Object value = getValueAt(row, 0);
+        return value instanceof Integer && (Integer) value == partNumber;
     }
     
     /**
@@ -53,6 +342,9 @@ public class PersistentColorTableModel extends DefaultTableModel {
      * @param col The column index
      */
     public void removeCellColor(int row, int col) {
-        cellColors.remove(new Point(row, col));
+        if (cellColors != null) {
+            cellColors.setCode(row, col, CellColorGrid.NO_COLOR);
+            cellColorChanged(row, col);
+        }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,300 @@
+package com.magpi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads several serial ports concurrently, one reader thread per port, and
+ * publishes every reading on a shared MeasurementBus tagged with its port name.
+ * This lets one process serve several magnetizing benches side by side.
+ * Live ports are watched by a SerialPortSupervisor, so a bench that is
+ * unplugged or power-cycled is reopened without restarting the session.
+ */
+public class AcquisitionEngine {
+    private final Map<String, SerialPortManager> managers = new LinkedHashMap<>();
+    private final Map<String, SerialPortSupervisor> supervisors = new LinkedHashMap<>();
+    // Read by the supervisor thread without holding the engine lock
+    private final List<SerialPortManager> liveManagers = new CopyOnWriteArrayList<>();
+    private final MeasurementBus bus = new MeasurementBus();
+    private final ThreadFactory readerThreadFactory;
+    private File captureDirectory;
+    private long startNanos;
+
+    /**
+     * Creates an engine that reads each port on a platform daemon thread.
+     * jSerialComm reads are native calls, which pin the carrier of a virtual
+     * thread for as long as they block, so platform threads are the default.
+     */
+    public AcquisitionEngine() {
+        this(null);
+    }
+
+    /**
+     * Creates an engine with a custom reader thread factory, for example
+     * Thread.ofVirtual().name("serial-reader-", 0).factory()
+     * @param readerThreadFactory The factory for the per-port reader threads, or null for the default
+     */
+    public AcquisitionEngine(ThreadFactory readerThreadFactory) {
+        this.readerThreadFactory = readerThreadFactory;
+    }
+
+    /**
+     * Records the raw byte stream of every port started from now on
+     * @param captureDirectory The directory for the capture files, or null to stop recording new ports
+     */
+    public synchronized void setCaptureDirectory(File captureDirectory) {
+        this.captureDirectory = captureDirectory;
+    }
+
+    /**
+     * Detects all ports that look like Arduino devices
+     * @return The system port names, best match first
+     */
+    public List<String> detectPorts() {
+        return SerialPortManager.detectArduinoPorts();
+    }
+
+    /**
+     * Opens the given ports and starts reading from each of them
+     * @param portNames The system names of the ports to open
+     * @return The ports that could not be opened
+     */
+    public synchronized List<String> start(Collection<String> portNames) {
+        if (managers.isEmpty()) {
+            startNanos = System.nanoTime();
+        }
+
+        List<String> failedPorts = new ArrayList<>();
+        for (String portName : portNames) {
+            if (managers.containsKey(portName)) {
+                continue;
+            }
+
+            SerialPortManager manager = new SerialPortManager();
+            manager.setReadMode(SerialPortManager.ReadMode.BLOCKING);
+            manager.setReadThreadFactory(readerThreadFactory);
+
+            if (!manager.openConnection(portName)) {
+                System.err.println("Failed to open serial port " + portName);
+                failedPorts.add(portName);
+                continue;
+            }
+
+            startCapture(manager);
+            SerialPortSupervisor supervisor = new SerialPortSupervisor(manager,
+                    candidate -> isClaimedByOther(manager, candidate));
+            supervisor.start((meter, current, duration) ->
+                    bus.publish(portName, meter, current, duration));
+            managers.put(portName, manager);
+            supervisors.put(portName, supervisor);
+            liveManagers.add(manager);
+        }
+        return failedPorts;
+    }
+
+    /**
+     * Replays a capture file as if it were a connected port
+     * @param name The port name to publish the readings under
+     * @param captureFile The capture file to replay
+     * @param speed Playback speed: 1 for real time, N for N times faster,
+     *              0 or less for as fast as possible
+     * @return true if the replay was started, false otherwise
+     */
+    public synchronized boolean startReplay(String name, File captureFile, double speed) {
+        if (managers.isEmpty()) {
+            startNanos = System.nanoTime();
+        }
+        if (managers.containsKey(name)) {
+            return false;
+        }
+
+        SerialPortManager manager = new SerialPortManager();
+        if (!manager.openReplay(name, captureFile, speed)) {
+            return false;
+        }
+        manager.startReading((meter, current, duration) ->
+                bus.publish(name, meter, current, duration));
+        managers.put(name, manager);
+        return true;
+    }
+
+    private boolean isClaimedByOther(SerialPortManager manager, String portName) {
+        for (SerialPortManager other : liveManagers) {
+            if (other != manager && portName.equals(other.getPortName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startCapture(SerialPortManager manager) {
+        if (captureDirectory == null) {
+            return;
+        }
+        captureDirectory.mkdirs();
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        String fileName = manager.getPortName().replaceAll("[^A-Za-z0-9._-]", "_") + "_" + timestamp + ".mpcap";
+        try {
+            manager.startCapture(new File(captureDirectory, fileName));
+        } catch (IOException e) {
+            System.err.println("Failed to start serial capture for " + manager.getPortName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops reading and closes all ports
+     */
+    public synchronized void stop() {
+        for (SerialPortSupervisor supervisor : supervisors.values()) {
+            supervisor.stop();
+        }
+        for (SerialPortManager manager : managers.values()) {
+            manager.closeConnection();
+        }
+        managers.clear();
+        supervisors.clear();
+        liveManagers.clear();
+    }
+
+    /**
+     * Gets the bus that carries readings from all ports
+     */
+    public MeasurementBus getBus() {
+        return bus;
+    }
+
+    /**
+     * Gets the names of the ports currently being read
+     */
+    public synchronized List<String> getActivePorts() {
+        return new ArrayList<>(managers.keySet());
+    }
+
+    /**
+     * Gets the manager reading the given port
+     * @param portName The system port name
+     * @return The manager, or null if the port is not being read
+     */
+    public synchronized SerialPortManager getManager(String portName) {
+        return managers.get(portName);
+    }
+
+    /**
+     * Takes a snapshot of the counters of every active port
+     * @return One statistics entry per port
+     */
+    public synchronized List<PortStatistics> getStatistics() {
+        double elapsedSeconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        List<PortStatistics> statistics = new ArrayList<>();
+        for (Map.Entry<String, SerialPortManager> entry : managers.entrySet()) {
+            statistics.add(new PortStatistics(entry.getKey(), entry.getValue(), supervisors.get(entry.getKey()), elapsedSeconds));
+        }
+        return statistics;
+    }
+
+    /**
+     * Snapshot of the throughput and error counters of one port
+     */
+    public static class PortStatistics {
+        private final String portName;
+        private final long frames;
+        private final long invalidFrames;
+        private final long bytes;
+        private final long readErrors;
+        private final long lostFrames;
+        private final SerialPortManager.Protocol protocol;
+        private final double framesPerSecond;
+        private final long reconnects;
+        private final double lastGapMillis;
+        private final double maxGapMillis;
+
+        private PortStatistics(String portName, SerialPortManager manager, SerialPortSupervisor supervisor,
+                               double elapsedSeconds) {
+            this.portName = portName;
+            this.frames = manager.getFrameCount();
+            this.invalidFrames = manager.getInvalidFrameCount();
+            this.bytes = manager.getByteCount();
+            this.readErrors = manager.getReadErrorCount();
+            this.lostFrames = manager.getLostFrameCount();
+            this.protocol = manager.getProtocol();
+            this.framesPerSecond = frames / elapsedSeconds;
+            this.reconnects = supervisor != null ? supervisor.getReconnectCount() : 0;
+            this.lastGapMillis = supervisor != null ? supervisor.getLastGapMillis() : 0;
+            this.maxGapMillis = supervisor != null ? supervisor.getMaxGapMillis() : 0;
+        }
+
+        /**
+         * Gets the name the port was started under. After a reconnect the
+         * manager may be reading a device with a different system name.
+         */
+        public String getPortName() {
+            return portName;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getInvalidFrames() {
+            return invalidFrames;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getReadErrors() {
+            return readErrors;
+        }
+
+        /**
+         * Gets the number of binary frames lost on the link
+         */
+        public long getLostFrames() {
+            return lostFrames;
+        }
+
+        public SerialPortManager.Protocol getProtocol() {
+            return protocol;
+        }
+
+        public double getFramesPerSecond() {
+            return framesPerSecond;
+        }
+
+        /**
+         * Gets the number of times the port was reopened after the link dropped
+         */
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        /**
+         * Gets the length of the most recent data gap caused by a disconnect, in milliseconds
+         */
+        public double getLastGapMillis() {
+            return lastGapMillis;
+        }
+
+        public double getMaxGapMillis() {
+            return maxGapMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s): frames=%d (%.1f/s), invalid=%d, lost=%d, bytes=%d, read errors=%d, "
+                            + "reconnects=%d (last gap %.0f ms, max gap %.0f ms)",
+                    portName, protocol, frames, framesPerSecond, invalidFrames, lostFrames, bytes, readErrors,
+                    reconnects, lastGapMillis, maxGapMillis);
+        }
+    }
+}
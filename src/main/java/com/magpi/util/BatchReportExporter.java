@@ -0,0 +1,215 @@
+package com.magpi.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes one PDF report per archived session, spread over a pool of
+ * threads. Reports only read the session archive and share PdfExporter's
+ * styles, so they can be rendered side by side without a display.
+ * <p>
+ * Usage: {@code BatchReportExporter --out <dir> [--from yyyy-MM-dd] [--to yyyy-MM-dd]
+ * [--operator name] [--machine id] [--part description] [--threads n] [--archive dir]}
+ */
+public class BatchReportExporter {
+    private static final DateTimeFormatter FILE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+
+    /**
+     * The outcome of a batch export
+     */
+    public static class Result {
+        private final int documentCount;
+        private final List<String> failures;
+        private final long elapsedNanos;
+
+        private Result(int documentCount, List<String> failures, long elapsedNanos) {
+            this.documentCount = documentCount;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Gets the number of reports written
+         */
+        public int getDocumentCount() {
+            return documentCount;
+        }
+
+        /**
+         * Gets a message for each session whose report could not be written
+         */
+        public List<String> getFailures() {
+            return failures;
+        }
+
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double getDocumentsPerSecond() {
+            return elapsedNanos > 0 ? documentCount / getElapsedSeconds() : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d reports in %.2f s (%.1f documents/s), %d failed",
+                    documentCount, getElapsedSeconds(), getDocumentsPerSecond(), failures.size());
+        }
+    }
+
+    /**
+     * Writes a report for each session into a directory
+     * @param store The archive holding the sessions
+     * @param sessions The sessions to export
+     * @param outputDirectory The directory for the reports, created if needed
+     * @param threads The number of reports written at the same time
+     * @return The number of reports written, the failures and the throughput
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public static Result exportSessions(SessionHistoryStore store, List<SessionHistoryStore.SessionRecord> sessions,
+                                        File outputDirectory, int threads) throws InterruptedException {
+        outputDirectory.mkdirs();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "batch-report-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(sessions.size());
+        for (SessionHistoryStore.SessionRecord record : sessions) {
+            futures.add(executor.submit(() -> {
+                writeReport(store, record, new File(outputDirectory, reportName(record)));
+                return null;
+            }));
+        }
+
+        int documents = 0;
+        List<String> failures = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                    documents++;
+                } catch (ExecutionException e) {
+                    failures.add("Session " + sessions.get(i).getId() + ": " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Result(documents, failures, System.nanoTime() - start);
+    }
+
+    private static void writeReport(SessionHistoryStore store, SessionHistoryStore.SessionRecord record,
+                                    File file) throws IOException {
+        boolean completed;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+            completed = PdfExporter.writeReport(record, store, out,
+                    (written, total) -> !Thread.currentThread().isInterrupted());
+        }
+        if (!completed) {
+            file.delete();
+            throw new IOException("Export was interrupted");
+        }
+    }
+
+    /**
+     * Gets the file name of the report of a session
+     */
+    private static String reportName(SessionHistoryStore.SessionRecord record) {
+        return "session_" + record.getId() + "_" + record.getStartTime().format(FILE_TIME_FORMATTER) + ".pdf";
+    }
+
+    /**
+     * Exports the archived sessions matching the command line criteria
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        File outputDirectory = null;
+        File archiveDirectory = new File(SessionHistoryStore.STORE_DIR);
+        int threads = Runtime.getRuntime().availableProcessors();
+        SessionHistoryStore.Query query = new SessionHistoryStore.Query();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--out":
+                        outputDirectory = new File(value);
+                        break;
+                    case "--archive":
+                        archiveDirectory = new File(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--from":
+                        query.setFrom(LocalDate.parse(value).atStartOfDay());
+                        break;
+                    case "--to":
+                        // The end date is included
+                        query.setTo(LocalDate.parse(value).plusDays(1).atStartOfDay());
+                        break;
+                    case "--operator":
+                        query.setOperatorName(value);
+                        break;
+                    case "--machine":
+                        query.setMachineId(value);
+                        break;
+                    case "--part":
+                        query.setPartDescription(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (outputDirectory == null) {
+                throw new IllegalArgumentException("Missing --out");
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: BatchReportExporter --out <dir> [--from yyyy-MM-dd] [--to yyyy-MM-dd]"
+                    + " [--operator name] [--machine id] [--part description] [--threads n] [--archive dir]");
+            System.exit(2);
+            return;
+        }
+
+        int exitStatus = 1;
+        // Read-only, so reports can be exported while the application is archiving sessions
+        try (SessionHistoryStore store = new SessionHistoryStore(archiveDirectory, SessionHistoryStore.COLUMN_COUNT, true)) {
+            List<SessionHistoryStore.SessionRecord> sessions = store.findSessions(query);
+            System.out.println("Exporting " + sessions.size() + " sessions with " + threads + " threads");
+            Result result = exportSessions(store, sessions, outputDirectory, threads);
+            for (String failure : result.getFailures()) {
+                System.err.println("Failed to export " + failure);
+            }
+            System.out.println(result);
+            exitStatus = result.getFailures().isEmpty() ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println("Failed to open the session archive: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.exit(exitStatus);
+    }
+}
@@ -0,0 +1,180 @@
+package com.magpi.util;
+
+/**
+ * Decoder for the compact binary frames sent by newer meter firmware.
+ * <pre>
+ *   offset  size  field
+ *   0       1     sync 0xA5
+ *   1       1     sync 0x5A
+ *   2       1     meter number
+ *   3       2     sequence number, incremented by the device for every frame
+ *   5       4     current in thousandths (signed)
+ *   9       4     duration in thousandths (signed)
+ *   13      2     CRC-16/CCITT-FALSE over bytes 2..12
+ * </pre>
+ * Multi-byte fields are big-endian. A frame is 15 bytes, against roughly 20 for
+ * the equivalent text line. The sync byte 0xA5 never occurs in the ASCII text
+ * protocol, so both formats can share one stream. When a frame fails its CRC,
+ * the sync may have been false, so decoding restarts at the next sync pair
+ * inside it and the bytes before that go back to the text parser.
+ */
+public class BinaryFrameDecoder {
+    public static final byte SYNC_1 = (byte) 0xA5;
+    public static final byte SYNC_2 = (byte) 0x5A;
+    public static final int FRAME_LENGTH = 15;
+
+    private static final int PAYLOAD_OFFSET = 2;
+    private static final int PAYLOAD_LENGTH = 11;
+    private static final double SCALE = 1000.0;
+
+    private final MeasurementFrameParser.FrameHandler handler;
+    private final MeasurementFrameParser textParser;
+    private final byte[] frame = new byte[FRAME_LENGTH];
+    private int frameLength;
+    private int expectedSequence = -1;
+    private long lostFrameCount;
+
+    /**
+     * Creates a new decoder
+     * @param handler The handler that receives decoded frames; invalid frames
+     *                are reported with their raw bytes
+     */
+    public BinaryFrameDecoder(MeasurementFrameParser.FrameHandler handler) {
+        this(handler, null);
+    }
+
+    /**
+     * Creates a new decoder sharing a stream with the text protocol
+     * @param handler The handler that receives decoded frames; invalid frames
+     *                are reported with their raw bytes
+     * @param textParser The parser that gets back the bytes of a false frame, or null to drop them
+     */
+    public BinaryFrameDecoder(MeasurementFrameParser.FrameHandler handler, MeasurementFrameParser textParser) {
+        this.handler = handler;
+        this.textParser = textParser;
+    }
+
+    /**
+     * Checks whether the decoder is part way through a frame
+     */
+    public boolean isInFrame() {
+        return frameLength > 0;
+    }
+
+    /**
+     * Consumes bytes belonging to a binary frame. If no frame is in progress the
+     * first byte must be SYNC_1. Consumption stops at the end of the frame, or
+     * before a byte that shows the sync sequence was a false start.
+     * @param data The buffer holding the bytes
+     * @param offset The offset of the first byte to read
+     * @param count The number of bytes available
+     * @return The number of bytes consumed
+     */
+    public int consume(byte[] data, int offset, int count) {
+        int consumed = 0;
+        while (consumed < count) {
+            byte b = data[offset + consumed];
+            if (frameLength == 0 && b != SYNC_1) {
+                return consumed;
+            }
+            if (frameLength == 1 && b != SYNC_2) {
+                // Not a frame after all; let the caller handle this byte
+                frameLength = 0;
+                return consumed;
+            }
+
+            frame[frameLength++] = b;
+            consumed++;
+
+            if (frameLength == FRAME_LENGTH) {
+                if (decodeFrame()) {
+                    frameLength = 0;
+                } else {
+                    resync();
+                }
+                return consumed;
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Discards any partially received frame and forgets the sequence number
+     */
+    public void reset() {
+        frameLength = 0;
+        expectedSequence = -1;
+    }
+
+    /**
+     * Gets the number of frames the device sent that never arrived, based on
+     * gaps in the sequence numbers
+     */
+    public long getLostFrameCount() {
+        return lostFrameCount;
+    }
+
+    /**
+     * Decodes a complete frame
+     * @return false if the CRC did not match
+     */
+    private boolean decodeFrame() {
+        int receivedCrc = ((frame[13] & 0xFF) << 8) | (frame[14] & 0xFF);
+        if (crc16(frame, PAYLOAD_OFFSET, PAYLOAD_LENGTH) != receivedCrc) {
+            handler.onInvalidFrame(frame, FRAME_LENGTH);
+            return false;
+        }
+
+        int meter = frame[2] & 0xFF;
+        int sequence = ((frame[3] & 0xFF) << 8) | (frame[4] & 0xFF);
+        int current = readInt(5);
+        int duration = readInt(9);
+
+        if (expectedSequence >= 0 && sequence != expectedSequence) {
+            lostFrameCount += (sequence - expectedSequence) & 0xFFFF;
+        }
+        expectedSequence = (sequence + 1) & 0xFFFF;
+
+        handler.onFrame(meter, current / SCALE, duration / SCALE);
+        return true;
+    }
+
+    /**
+     * Restarts decoding after a frame that failed its CRC at the next sync pair
+     * in it, or a trailing SYNC_1, so a false sync costs no more than its own
+     * bytes. The bytes before the restart go to the text parser.
+     */
+    private void resync() {
+        int next = PAYLOAD_OFFSET;
+        while (next < FRAME_LENGTH
+                && !(frame[next] == SYNC_1 && (next == FRAME_LENGTH - 1 || frame[next + 1] == SYNC_2))) {
+            next++;
+        }
+        if (textParser != null && next > PAYLOAD_OFFSET) {
+            textParser.feed(frame, PAYLOAD_OFFSET, next - PAYLOAD_OFFSET);
+        }
+        frameLength = FRAME_LENGTH - next;
+        System.arraycopy(frame, next, frame, 0, frameLength);
+    }
+
+    private int readInt(int offset) {
+        return ((frame[offset] & 0xFF) << 24)
+                | ((frame[offset + 1] & 0xFF) << 16)
+                | ((frame[offset + 2] & 0xFF) << 8)
+                | (frame[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Computes CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF)
+     */
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+}
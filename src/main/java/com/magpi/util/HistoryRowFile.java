@@ -0,0 +1,265 @@
+package com.magpi.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Stores history table rows on disk as fixed-width records, so any row can
+ * be read with one positional read and the row count follows from the file
+ * length. A row holds the part number, the measurement columns, the status
+ * and one color per column.
+ * <pre>
+ *   header:  "MPHST" version(1 byte) column count(4 bytes) created(8 bytes, epoch millis), padded to 32 bytes
+ *   row:     part number(4) measurement values(8 each, NaN when empty) status(1) colors(4 each, RGB, 0 when none)
+ * </pre>
+ * Column 0 is the part number and the last column is the status; every
+ * column in between holds a measurement.
+ */
+public class HistoryRowFile implements Closeable {
+    private static final byte[] MAGIC = {'M', 'P', 'H', 'S', 'T'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final String[] STATUS_TEXTS = {"", "Accept", "Reject", "PASS", "FAIL"};
+
+    /**
+     * One decoded row
+     */
+    public static class Row {
+        public int partNumber;
+        public final double[] values;
+        public String status;
+        public final int[] colors;
+
+        /**
+         * Creates an empty row for a file with the given number of columns
+         * @param columnCount The total number of table columns
+         */
+        public Row(int columnCount) {
+            this.values = new double[columnCount - 2];
+            this.colors = new int[columnCount];
+            clear();
+        }
+
+        /**
+         * Resets the row to an empty part
+         */
+        public void clear() {
+            partNumber = 0;
+            Arrays.fill(values, Double.NaN);
+            status = "";
+            Arrays.fill(colors, 0);
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final int columnCount;
+    private final int recordSize;
+    private final long createdEpochMillis;
+    private final ByteBuffer writeBuffer;
+    private final boolean readOnly;
+    private volatile int rowCount;
+
+    /**
+     * Opens a row file, creating it if it does not exist
+     * @param file The file
+     * @param columnCount The total number of table columns, used when the file is created
+     * @throws IOException If the file cannot be opened or has a different layout
+     */
+    public HistoryRowFile(File file, int columnCount) throws IOException {
+        this(file, columnCount, false);
+    }
+
+    /**
+     * Opens a row file
+     * @param file The file
+     * @param columnCount The total number of table columns, used when the file is created
+     * @param readOnly true to only read an existing file, which another program may be appending to
+     * @throws IOException If the file cannot be opened or has a different layout
+     */
+    public HistoryRowFile(File file, int columnCount, boolean readOnly) throws IOException {
+        this.file = file;
+        this.readOnly = readOnly;
+        this.channel = readOnly
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            if (channel.size() == 0 && !readOnly) {
+                this.columnCount = columnCount;
+                this.createdEpochMillis = System.currentTimeMillis();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).put((byte) VERSION).putInt(columnCount).putLong(createdEpochMillis);
+                header.clear();
+                writeFully(header, 0);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                header.flip();
+                byte[] magic = new byte[MAGIC.length];
+                header.get(magic);
+                int version = header.get();
+                if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+                    throw new IOException("Not a history row file: " + file);
+                }
+                this.columnCount = header.getInt();
+                this.createdEpochMillis = header.getLong();
+                if (this.columnCount != columnCount) {
+                    throw new IOException("History row file " + file + " has " + this.columnCount
+                            + " columns, expected " + columnCount);
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.recordSize = 4 + 8 * (this.columnCount - 2) + 1 + 4 * this.columnCount;
+        this.writeBuffer = ByteBuffer.allocate(recordSize);
+        // A torn final record from a crash is ignored
+        this.rowCount = (int) ((channel.size() - HEADER_SIZE) / recordSize);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public long getCreatedEpochMillis() {
+        return createdEpochMillis;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the size of one row on disk in bytes
+     */
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * Appends a row
+     * @param row The row to append
+     * @return The index of the new row
+     * @throws IOException If the row cannot be written
+     */
+    public synchronized int append(Row row) throws IOException {
+        if (readOnly) {
+            throw new IOException("History row file is open read-only: " + file);
+        }
+        writeBuffer.clear();
+        writeBuffer.putInt(row.partNumber);
+        for (double value : row.values) {
+            writeBuffer.putDouble(value);
+        }
+        writeBuffer.put((byte) statusCode(row.status));
+        for (int color : row.colors) {
+            writeBuffer.putInt(color);
+        }
+        writeBuffer.flip();
+
+        int index = rowCount;
+        writeFully(writeBuffer, HEADER_SIZE + (long) index * recordSize);
+        rowCount = index + 1;
+        return index;
+    }
+
+    /**
+     * Reads consecutive rows with a single positional read
+     * @param firstRow The index of the first row
+     * @param rows The rows to fill; as many rows are read as the array holds,
+     *             up to the end of the file
+     * @return The number of rows read
+     * @throws IOException If the rows cannot be read
+     */
+    public int readRows(int firstRow, Row[] rows) throws IOException {
+        return readRows(firstRow, rows, 0, rows.length);
+    }
+
+    /**
+     * Reads consecutive rows into part of an array with a single positional read
+     * @param firstRow The index of the first row
+     * @param rows The rows to fill
+     * @param offset The first array element to fill
+     * @param length The number of rows to read, up to the end of the file
+     * @return The number of rows read
+     * @throws IOException If the rows cannot be read
+     */
+    public int readRows(int firstRow, Row[] rows, int offset, int length) throws IOException {
+        int count = Math.min(length, rowCount - firstRow);
+        if (count <= 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(count * recordSize);
+        readFully(buffer, HEADER_SIZE + (long) firstRow * recordSize);
+        buffer.flip();
+        for (int i = 0; i < count; i++) {
+            Row row = rows[offset + i];
+            row.partNumber = buffer.getInt();
+            for (int v = 0; v < row.values.length; v++) {
+                row.values[v] = buffer.getDouble();
+            }
+            int status = buffer.get();
+            row.status = status >= 0 && status < STATUS_TEXTS.length ? STATUS_TEXTS[status] : "";
+            for (int c = 0; c < row.colors.length; c++) {
+                row.colors[c] = buffer.getInt();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Flushes written rows to the storage device
+     * @throws IOException If the rows cannot be flushed
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    private static int statusCode(String status) {
+        for (int i = 0; i < STATUS_TEXTS.length; i++) {
+            if (STATUS_TEXTS[i].equals(status)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of history row file " + file);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
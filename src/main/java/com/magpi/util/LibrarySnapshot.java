@@ -0,0 +1,317 @@
+package com.magpi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the whole library, written when the LibraryStore log is
+ * compacted and memory-mapped at startup. Every value sits in a fixed-width
+ * array, so loading is a handful of bulk copies out of the mapping instead of
+ * parsing. Each distinct string is stored once, and operators, parts and
+ * histories refer to it by index, so a part name shared by several of them
+ * is read into a single String.
+ * <pre>
+ *   header:  "MPSNP" version(1) 0(2) generation(8)
+ *            stringCount(4) operatorCount(4) partCount(4) historyCount(4) entryCount(4) stringBytes(4)
+ *            CRC-32 of the body(4) 0(4)
+ *   body:    times(8 x entryCount) headshot(8 x entryCount) coilshot(8 x entryCount)
+ *            stringEnds(4 x stringCount) operators(4 x operatorCount) parts(4 x partCount)
+ *            historyParts(4 x historyCount) historyEnds(4 x historyCount) strings(stringBytes)
+ * </pre>
+ * Numbers are little-endian. The generation matches the log that continues
+ * from the snapshot, so a log written before it is not replayed twice.
+ */
+class LibrarySnapshot {
+    private static final byte[] MAGIC = {'M', 'P', 'S', 'N', 'P'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfDouble DOUBLE =
+            ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final long generation;
+    private final String[] operators;
+    private final String[] partDescriptions;
+    private final String[] historyParts;
+    private final ParameterHistory[] histories;
+
+    private LibrarySnapshot(long generation, String[] operators, String[] partDescriptions,
+                            String[] historyParts, ParameterHistory[] histories) {
+        this.generation = generation;
+        this.operators = operators;
+        this.partDescriptions = partDescriptions;
+        this.historyParts = historyParts;
+        this.histories = histories;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String[] getOperators() {
+        return operators;
+    }
+
+    public String[] getPartDescriptions() {
+        return partDescriptions;
+    }
+
+    /**
+     * Gets the parts that have a threshold history, in the order of getHistories
+     */
+    public String[] getHistoryParts() {
+        return historyParts;
+    }
+
+    public ParameterHistory[] getHistories() {
+        return histories;
+    }
+
+    /**
+     * Reads a snapshot by mapping it into memory; the mapping is released
+     * before returning so the file can be replaced
+     * @param file The snapshot file
+     * @return The snapshot, or null if the file does not exist
+     * @throws IOException If the file cannot be read, is not a snapshot or is corrupt
+     */
+    public static LibrarySnapshot read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             Arena arena = Arena.ofConfined()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a library snapshot: " + file);
+            }
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+
+            byte[] magic = segment.asSlice(0, MAGIC.length).toArray(ValueLayout.JAVA_BYTE);
+            if (!Arrays.equals(magic, MAGIC) || segment.get(ValueLayout.JAVA_BYTE, MAGIC.length) != VERSION) {
+                throw new IOException("Not a library snapshot: " + file);
+            }
+            long generation = segment.get(LONG, 8);
+            int stringCount = segment.get(INT, 16);
+            int operatorCount = segment.get(INT, 20);
+            int partCount = segment.get(INT, 24);
+            int historyCount = segment.get(INT, 28);
+            int entryCount = segment.get(INT, 32);
+            int stringBytes = segment.get(INT, 36);
+            int checksum = segment.get(INT, 40);
+
+            long bodySize = 24L * entryCount + 4L * (stringCount + operatorCount + partCount + 2L * historyCount)
+                    + stringBytes;
+            if (stringCount < 0 || operatorCount < 0 || partCount < 0 || historyCount < 0 || entryCount < 0
+                    || stringBytes < 0 || HEADER_SIZE + bodySize != size) {
+                throw new IOException("Corrupt library snapshot: " + file);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(segment.asSlice(HEADER_SIZE).asByteBuffer());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Corrupt library snapshot: " + file);
+            }
+
+            long offset = HEADER_SIZE;
+            long[] times = new long[entryCount];
+            MemorySegment.copy(segment, LONG, offset, times, 0, entryCount);
+            offset += 8L * entryCount;
+            double[] headshot = new double[entryCount];
+            MemorySegment.copy(segment, DOUBLE, offset, headshot, 0, entryCount);
+            offset += 8L * entryCount;
+            double[] coilshot = new double[entryCount];
+            MemorySegment.copy(segment, DOUBLE, offset, coilshot, 0, entryCount);
+            offset += 8L * entryCount;
+
+            int[] stringEnds = ints(segment, offset, stringCount);
+            offset += 4L * stringCount;
+            int[] operatorIds = ints(segment, offset, operatorCount);
+            offset += 4L * operatorCount;
+            int[] partIds = ints(segment, offset, partCount);
+            offset += 4L * partCount;
+            int[] historyPartIds = ints(segment, offset, historyCount);
+            offset += 4L * historyCount;
+            int[] historyEnds = ints(segment, offset, historyCount);
+            offset += 4L * historyCount;
+            byte[] utf8 = segment.asSlice(offset, stringBytes).toArray(ValueLayout.JAVA_BYTE);
+
+            String[] strings = new String[stringCount];
+            int start = 0;
+            for (int i = 0; i < stringCount; i++) {
+                int end = stringEnds[i];
+                if (end < start || end > stringBytes) {
+                    throw new IOException("Corrupt library snapshot: " + file);
+                }
+                strings[i] = new String(utf8, start, end - start, StandardCharsets.UTF_8);
+                start = end;
+            }
+            for (int i = 0; i < historyCount; i++) {
+                if (historyEnds[i] < (i > 0 ? historyEnds[i - 1] : 0) || historyEnds[i] > entryCount) {
+                    throw new IOException("Corrupt library snapshot: " + file);
+                }
+            }
+
+            return new LibrarySnapshot(generation, lookup(strings, operatorIds, file), lookup(strings, partIds, file),
+                    lookup(strings, historyPartIds, file),
+                    ParameterHistory.slices(times, headshot, coilshot, historyEnds));
+        }
+    }
+
+    private static int[] ints(MemorySegment segment, long offset, int count) {
+        int[] values = new int[count];
+        MemorySegment.copy(segment, INT, offset, values, 0, count);
+        return values;
+    }
+
+    private static String[] lookup(String[] strings, int[] ids, File file) throws IOException {
+        String[] values = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < 0 || ids[i] >= strings.length) {
+                throw new IOException("Corrupt library snapshot: " + file);
+            }
+            values[i] = strings[ids[i]];
+        }
+        return values;
+    }
+
+    /**
+     * Writes a snapshot to a file, which is replaced atomically
+     * @param file The snapshot file
+     * @param generation The generation of the log that continues from it
+     * @param operators The operator names
+     * @param partDescriptions The part descriptions
+     * @param historyParts The parts that have a threshold history
+     * @param histories The threshold history of each of those parts
+     * @throws IOException If the snapshot cannot be written; the old one is kept
+     */
+    public static void write(File file, long generation, Collection<String> operators,
+                             Collection<String> partDescriptions, String[] historyParts,
+                             ParameterHistory[] histories) throws IOException {
+        // Give each distinct string one slot in the string table
+        Map<String, Integer> ids = new HashMap<>();
+        StringTable table = new StringTable();
+        int[] operatorIds = table.addAll(operators, ids);
+        int[] partIds = table.addAll(partDescriptions, ids);
+        int[] historyPartIds = table.addAll(Arrays.asList(historyParts), ids);
+        int entryCount = 0;
+        for (ParameterHistory history : histories) {
+            entryCount += history.size();
+        }
+        long bodySize = 24L * entryCount + 4L * (table.count + operatorIds.length + partIds.length
+                + 2L * historyPartIds.length) + table.bytes;
+        if (HEADER_SIZE + bodySize > Integer.MAX_VALUE) {
+            throw new IOException("Library too large for a snapshot");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_SIZE + bodySize)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC).put((byte) VERSION).putShort((short) 0).putLong(generation);
+        buffer.putInt(table.count).putInt(operatorIds.length).putInt(partIds.length)
+                .putInt(historyPartIds.length).putInt(entryCount).putInt(table.bytes);
+        buffer.putInt(0).putInt(0);
+
+        // Three passes keep each column contiguous
+        for (ParameterHistory history : histories) {
+            for (int i = 0; i < history.size(); i++) {
+                buffer.putLong(history.getTime(i));
+            }
+        }
+        for (ParameterHistory history : histories) {
+            for (int i = 0; i < history.size(); i++) {
+                buffer.putDouble(history.getHeadshotThreshold(i));
+            }
+        }
+        for (ParameterHistory history : histories) {
+            for (int i = 0; i < history.size(); i++) {
+                buffer.putDouble(history.getCoilshotThreshold(i));
+            }
+        }
+        for (int i = 0; i < table.count; i++) {
+            buffer.putInt(table.ends[i]);
+        }
+        putInts(buffer, operatorIds);
+        putInts(buffer, partIds);
+        putInts(buffer, historyPartIds);
+        int end = 0;
+        for (ParameterHistory history : histories) {
+            end += history.size();
+            buffer.putInt(end);
+        }
+        for (int i = 0; i < table.count; i++) {
+            buffer.put(table.utf8[i]);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, buffer.position() - HEADER_SIZE);
+        buffer.putInt(40, (int) crc.getValue());
+        buffer.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        LibraryStore.replace(temp, file);
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+    }
+
+    /**
+     * The distinct strings of a snapshot being written
+     */
+    private static class StringTable {
+        byte[][] utf8 = new byte[64][];
+        int[] ends = new int[64];
+        int count;
+        int bytes;
+
+        int[] addAll(Collection<String> values, Map<String, Integer> ids) {
+            int[] result = new int[values.size()];
+            int i = 0;
+            for (String value : values) {
+                Integer id = ids.get(value);
+                if (id == null) {
+                    id = add(value);
+                    ids.put(value, id);
+                }
+                result[i++] = id;
+            }
+            return result;
+        }
+
+        private int add(String value) {
+            if (count == utf8.length) {
+                utf8 = Arrays.copyOf(utf8, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            utf8[count] = encoded;
+            bytes += encoded.length;
+            ends[count] = bytes;
+            return count++;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.magpi.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log behind the PersistentLibrary. Every change is appended as
+ * one small record, so a change costs the same however large the library is.
+ * <pre>
+ *   header:  "MPLIB" version(1 byte) generation(8)
+ *   record:  length(4) type(1) payload(length - 1) CRC-32 of type and payload(4)
+ * </pre>
+ * Loading replays the records in order and stops at the first incomplete or
+ * corrupt one. The log only holds the changes made since the last
+ * LibrarySnapshot: once it grows long, the library writes a new snapshot and
+ * resets the log to the next generation. Both are written to a temporary
+ * file and renamed over the old one, so a crash leaves either the old file
+ * or the new one, and a log older than the snapshot is known to be in it.
+ */
+public class LibraryStore implements Closeable {
+    private static final byte[] MAGIC = {'M', 'P', 'L', 'I', 'B'};
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+    // Version 1 logs had no generation and came before any snapshot
+    private static final int VERSION_1_HEADER_SIZE = MAGIC.length + 1;
+
+    private static final byte OPERATOR_ADDED = 1;
+    private static final byte PART_ADDED = 2;
+    private static final byte PARAMETERS_SAVED = 3;
+
+    /**
+     * Receives the records of the library, either replayed from the log or
+     * to be written to it
+     */
+    public interface Records {
+        void addOperator(String operator);
+
+        void addPartDescription(String description);
+
+        void savePartParameters(String partDescription, long epochMillis,
+                                double headshotThreshold, double coilshotThreshold);
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private long generation;
+    private long recordCount;
+
+    /**
+     * Opens the log, creating it if needed, and replays the records made
+     * since a snapshot
+     * @param file The log file
+     * @param snapshotGeneration The generation of the snapshot already loaded, or 0 if there is none
+     * @param target Receives every record in the log
+     * @throws IOException If the file cannot be opened or is not a library log
+     */
+    public LibraryStore(File file, long snapshotGeneration, Records target) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            load(snapshotGeneration, target);
+        } catch (IOException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private void load(long snapshotGeneration, Records target) throws IOException {
+        if (channel.size() == 0) {
+            writeHeader(channel, snapshotGeneration);
+            channel.position(HEADER_SIZE);
+            generation = snapshotGeneration;
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // Read the whole log in as few calls as possible
+        }
+        buffer.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.remaining() < VERSION_1_HEADER_SIZE) {
+            throw new IOException("Not a library log: " + file);
+        }
+        buffer.get(magic);
+        int version = buffer.get();
+        if (!Arrays.equals(magic, MAGIC) || (version != VERSION && version != 1)
+                || (version == VERSION && buffer.remaining() < 8)) {
+            throw new IOException("Not a library log: " + file);
+        }
+        generation = version == VERSION ? buffer.getLong() : 0;
+
+        if (generation < snapshotGeneration) {
+            // The snapshot was written from these records, but the log was not reset before a crash
+            reset(snapshotGeneration);
+            return;
+        }
+        if (generation > snapshotGeneration) {
+            System.err.println("Library snapshot of generation " + generation + " is missing, "
+                    + "only the changes since it are loaded from " + file);
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] array = buffer.array();
+        int validLength = buffer.position();
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < 1 || length > buffer.remaining() - 4) {
+                break;
+            }
+            crc.reset();
+            crc.update(array, start + 4, length);
+            if (buffer.getInt(start + 4 + length) != (int) crc.getValue()) {
+                break;
+            }
+
+            replay(buffer.get(), buffer, target);
+            buffer.position(start + 4 + length + 4);
+            validLength = buffer.position();
+            recordCount++;
+        }
+
+        // Drop a record torn by a crash so the next one follows the last good one
+        if (validLength < buffer.limit()) {
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+    }
+
+    private static void replay(byte type, ByteBuffer buffer, Records target) {
+        switch (type) {
+            case OPERATOR_ADDED:
+                target.addOperator(readString(buffer));
+                break;
+            case PART_ADDED:
+                target.addPartDescription(readString(buffer));
+                break;
+            case PARAMETERS_SAVED:
+                long epochMillis = buffer.getLong();
+                double headshotThreshold = buffer.getDouble();
+                double coilshotThreshold = buffer.getDouble();
+                target.savePartParameters(readString(buffer), epochMillis, headshotThreshold, coilshotThreshold);
+                break;
+            default:
+                // Records from a newer version are skipped
+                break;
+        }
+    }
+
+    /**
+     * Appends an operator name and forces it to disk
+     */
+    public synchronized void addOperator(String operator) throws IOException {
+        RecordWriter writer = new RecordWriter(channel, 64);
+        writer.addOperator(operator);
+        append(writer);
+    }
+
+    /**
+     * Appends a part description and forces it to disk
+     */
+    public synchronized void addPartDescription(String description) throws IOException {
+        RecordWriter writer = new RecordWriter(channel, 64);
+        writer.addPartDescription(description);
+        append(writer);
+    }
+
+    /**
+     * Appends the thresholds saved for a part and forces them to disk
+     * @param partDescription The part
+     * @param epochMillis When the thresholds were saved
+     * @param headshotThreshold The headshot threshold
+     * @param coilshotThreshold The coilshot threshold
+     */
+    public synchronized void savePartParameters(String partDescription, long epochMillis,
+                                                double headshotThreshold, double coilshotThreshold) throws IOException {
+        RecordWriter writer = new RecordWriter(channel, 64);
+        writer.savePartParameters(partDescription, epochMillis, headshotThreshold, coilshotThreshold);
+        append(writer);
+    }
+
+    private void append(RecordWriter writer) throws IOException {
+        if (channel == null) {
+            throw new IOException("Library log is closed: " + file);
+        }
+        long end = channel.position();
+        try {
+            writer.flush();
+            channel.force(false);
+        } catch (IOException e) {
+            // Cut off a partly written record so later records are not lost behind it
+            try {
+                channel.truncate(end);
+                channel.position(end);
+            } catch (IOException ignored) {
+                // The torn record is dropped on the next load instead
+            }
+            throw e;
+        }
+        recordCount += writer.count;
+    }
+
+    /**
+     * Empties the log and starts a new generation, once a snapshot holds
+     * everything in it. The empty log is written and forced to a temporary
+     * file, then renamed over the old one.
+     * @param nextGeneration The generation of the new snapshot
+     * @throws IOException If the new log cannot be written; the old one is kept
+     */
+    public synchronized void reset(long nextGeneration) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeHeader(out, nextGeneration);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        // Some platforms cannot replace a file that is still open
+        if (channel != null) {
+            channel.close();
+        }
+        try {
+            replace(temp, file);
+            generation = nextGeneration;
+            recordCount = 0;
+        } finally {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    private static void writeHeader(FileChannel out, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put((byte) VERSION).putLong(generation);
+        header.flip();
+        out.write(header, 0);
+        out.force(true);
+    }
+
+    /**
+     * Moves a fully written temporary file over another one in a single rename
+     * @param temp The new file
+     * @param target The file it replaces
+     * @throws IOException If the file cannot be moved
+     */
+    static void replace(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Gets the generation of the snapshot this log continues from
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the number of records in the log
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Encodes a record into a buffer and writes it to a channel
+     */
+    private static class RecordWriter implements Records {
+        private final FileChannel out;
+        private ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private int recordStart;
+        private long count;
+
+        RecordWriter(FileChannel out, int capacity) {
+            this.out = out;
+            this.buffer = ByteBuffer.allocate(capacity);
+        }
+
+        @Override
+        public void addOperator(String operator) {
+            byte[] name = utf8(operator);
+            ByteBuffer record = begin(OPERATOR_ADDED, 2 + name.length);
+            record.putShort((short) name.length).put(name);
+            end();
+        }
+
+        @Override
+        public void addPartDescription(String description) {
+            byte[] text = utf8(description);
+            ByteBuffer record = begin(PART_ADDED, 2 + text.length);
+            record.putShort((short) text.length).put(text);
+            end();
+        }
+
+        @Override
+        public void savePartParameters(String partDescription, long epochMillis,
+                                       double headshotThreshold, double coilshotThreshold) {
+            byte[] text = utf8(partDescription);
+            ByteBuffer record = begin(PARAMETERS_SAVED, 8 + 16 + 2 + text.length);
+            record.putLong(epochMillis).putDouble(headshotThreshold).putDouble(coilshotThreshold);
+            record.putShort((short) text.length).put(text);
+            end();
+        }
+
+        private ByteBuffer begin(byte type, int payloadLength) {
+            int size = 4 + 1 + payloadLength + 4;
+            if (buffer.remaining() < size) {
+                // Each writer holds a single record, so a long one just needs a bigger buffer
+                buffer = ByteBuffer.allocate(size);
+            }
+            recordStart = buffer.position();
+            return buffer.putInt(1 + payloadLength).put(type);
+        }
+
+        private void end() {
+            crc.reset();
+            crc.update(buffer.array(), recordStart + 4, buffer.position() - recordStart - 4);
+            buffer.putInt((int) crc.getValue());
+            count++;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String text = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+    private static byte[] utf8(String text) {
+        byte[] bytes = text != null ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return bytes.length <= 0xFFFF ? bytes : Arrays.copyOf(bytes, 0xFFFF);
+    }
+}
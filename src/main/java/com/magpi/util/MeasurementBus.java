@@ -0,0 +1,105 @@
+package com.magpi.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Fans readings from every acquisition port out to the subscribers interested
+ * in that port. Each reading is tagged with the system name of the port it
+ * came from. Publishing allocates nothing.
+ */
+public class MeasurementBus {
+
+    /**
+     * Receives readings published on the bus
+     */
+    public interface Listener {
+        /**
+         * Called on the reader thread of the port the reading came from
+         * @param portName The system name of the source port
+         * @param meter The meter number
+         * @param current The current value
+         * @param duration The duration value
+         */
+        void onMeasurement(String portName, int meter, double current, double duration);
+    }
+
+    /**
+     * A listener registered for a set of ports
+     */
+    public static class Subscription {
+        private final Set<String> portNames;
+        private final Listener listener;
+
+        private Subscription(Set<String> portNames, Listener listener) {
+            this.portNames = portNames;
+            this.listener = listener;
+        }
+
+        /**
+         * Gets the ports this subscription listens to
+         * @return The port names, or an empty set when subscribed to all ports
+         */
+        public Set<String> getPortNames() {
+            return portNames;
+        }
+
+        private boolean matches(String portName) {
+            return portNames.isEmpty() || portNames.contains(portName);
+        }
+    }
+
+    // Copy-on-write array, so publishing iterates without an Iterator or a lock
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * Subscribes to readings from all ports
+     * @param listener The listener to notify
+     * @return The subscription, used to unsubscribe
+     */
+    public Subscription subscribe(Listener listener) {
+        return subscribe(Collections.emptySet(), listener);
+    }
+
+    /**
+     * Subscribes to readings from a subset of ports
+     * @param portNames The ports to listen to; an empty collection means all ports
+     * @param listener The listener to notify
+     * @return The subscription, used to unsubscribe
+     */
+    public Subscription subscribe(Collection<String> portNames, Listener listener) {
+        Subscription subscription = new Subscription(
+                Collections.unmodifiableSet(new HashSet<>(portNames)), listener);
+        synchronized (this) {
+            Subscription[] updated = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            updated[updated.length - 1] = subscription;
+            subscriptions = updated;
+        }
+        return subscription;
+    }
+
+    /**
+     * Removes a subscription
+     * @param subscription The subscription returned by subscribe
+     */
+    public synchronized void unsubscribe(Subscription subscription) {
+        subscriptions = Arrays.stream(subscriptions)
+                .filter(existing -> existing != subscription)
+                .toArray(Subscription[]::new);
+    }
+
+    /**
+     * Publishes a reading to every matching subscriber
+     */
+    public void publish(String portName, int meter, double current, double duration) {
+        Subscription[] snapshot = subscriptions;
+        for (Subscription subscription : snapshot) {
+            if (subscription.matches(portName)) {
+                subscription.listener.onMeasurement(portName, meter, current, duration);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.magpi.util;
+
+/**
+ * Streaming parser for the text frames sent by the meter firmware.
+ * A frame looks like "Meter 1:12.50:0.250" and is terminated by a newline.
+ * Incoming bytes are copied into a reused line buffer and decoded in place,
+ * so parsing a frame does not allocate any objects.
+ */
+public class MeasurementFrameParser {
+    private static final int MAX_LINE_LENGTH = 128;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Receives the frames decoded by the parser
+     */
+    public interface FrameHandler {
+        /**
+         * Called for every well-formed frame
+         * @param meter The meter number from the frame label
+         * @param current The current value
+         * @param duration The duration value
+         */
+        void onFrame(int meter, double current, double duration);
+
+        /**
+         * Called for a line that could not be decoded. The buffer is reused,
+         * so it must be copied if it is needed after the call returns.
+         * @param line The buffer holding the raw line
+         * @param length The number of valid bytes in the buffer
+         */
+        void onInvalidFrame(byte[] line, int length);
+    }
+
+    private final FrameHandler handler;
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+    private boolean lineOverflow;
+
+    /**
+     * Creates a new parser
+     * @param handler The handler that receives decoded frames
+     */
+    public MeasurementFrameParser(FrameHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Feeds raw bytes from the serial stream into the parser. Frames may be
+     * split across calls; a frame is only decoded once its newline arrives.
+     * @param data The buffer holding the bytes
+     * @param offset The offset of the first byte to read
+     * @param count The number of bytes to read
+     */
+    public void feed(byte[] data, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                endOfLine();
+            } else if (b == '\r') {
+                // Ignore carriage returns sent by Serial.println()
+            } else if (lineLength < MAX_LINE_LENGTH) {
+                line[lineLength++] = b;
+            } else {
+                lineOverflow = true;
+            }
+        }
+    }
+
+    /**
+     * Discards any partially received line
+     */
+    public void reset() {
+        lineLength = 0;
+        lineOverflow = false;
+    }
+
+    private void endOfLine() {
+        if (lineOverflow) {
+            handler.onInvalidFrame(line, lineLength);
+        } else if (lineLength > 0) {
+            parseLine();
+        }
+        reset();
+    }
+
+    private void parseLine() {
+        // Locate the two field separators
+        int firstColon = -1;
+        int secondColon = -1;
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] == ':') {
+                if (firstColon < 0) {
+                    firstColon = i;
+                } else if (secondColon < 0) {
+                    secondColon = i;
+                } else {
+                    handler.onInvalidFrame(line, lineLength);
+                    return;
+                }
+            }
+        }
+
+        if (secondColon < 0) {
+            handler.onInvalidFrame(line, lineLength);
+            return;
+        }
+
+        int meter = parseMeter(0, firstColon);
+        double current = parseDecimal(firstColon + 1, secondColon);
+        double duration = parseDecimal(secondColon + 1, lineLength);
+
+        if (meter < 0 || Double.isNaN(current) || Double.isNaN(duration)) {
+            handler.onInvalidFrame(line, lineLength);
+            return;
+        }
+
+        handler.onFrame(meter, current, duration);
+    }
+
+    /**
+     * Parses a label of the form "Meter N" (case-insensitive)
+     * @return The meter number, or -1 if the label is malformed
+     */
+    private int parseMeter(int start, int end) {
+        start = skipWhitespace(start, end);
+        end = trimWhitespace(start, end);
+
+        String prefix = "meter";
+        if (end - start <= prefix.length()) {
+            return -1;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if ((line[start + i] | 0x20) != prefix.charAt(i)) {
+                return -1;
+            }
+        }
+
+        int pos = skipWhitespace(start + prefix.length(), end);
+        if (pos == end) {
+            return -1;
+        }
+
+        int meter = 0;
+        for (; pos < end; pos++) {
+            int digit = line[pos] - '0';
+            if (digit < 0 || digit > 9 || meter > 1_000_000) {
+                return -1;
+            }
+            meter = meter * 10 + digit;
+        }
+        return meter;
+    }
+
+    /**
+     * Parses a decimal number such as "-12.50" or "1.5e3"
+     * @return The parsed value, or NaN if the field is malformed
+     */
+    private double parseDecimal(int start, int end) {
+        int pos = skipWhitespace(start, end);
+        end = trimWhitespace(pos, end);
+
+        boolean negative = false;
+        if (pos < end && (line[pos] == '-' || line[pos] == '+')) {
+            negative = line[pos] == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int mantissaDigits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+
+        for (; pos < end; pos++) {
+            byte b = line[pos];
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (mantissaDigits < MAX_MANTISSA_DIGITS) {
+                    if (mantissa != 0 || b != '0') {
+                        mantissaDigits++;
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (seenPoint) {
+                        exponent--;
+                    }
+                } else if (!seenPoint) {
+                    // Digits beyond the mantissa precision only scale the value
+                    exponent++;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if ((b == 'e' || b == 'E') && seenDigit) {
+                int explicitExponent = parseExponent(pos + 1, end);
+                if (explicitExponent == Integer.MIN_VALUE) {
+                    return Double.NaN;
+                }
+                exponent += explicitExponent;
+                pos = end;
+                break;
+            } else {
+                return Double.NaN;
+            }
+        }
+
+        if (!seenDigit) {
+            return Double.NaN;
+        }
+
+        double value = mantissa;
+        if (exponent > 0) {
+            value *= exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+        } else if (exponent < 0) {
+            value /= -exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the signed integer following an exponent marker
+     * @return The exponent, or Integer.MIN_VALUE if it is malformed
+     */
+    private int parseExponent(int pos, int end) {
+        boolean negative = false;
+        if (pos < end && (line[pos] == '-' || line[pos] == '+')) {
+            negative = line[pos] == '-';
+            pos++;
+        }
+        if (pos == end) {
+            return Integer.MIN_VALUE;
+        }
+
+        int exponent = 0;
+        for (; pos < end; pos++) {
+            int digit = line[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.MIN_VALUE;
+            }
+            if (exponent < 1000) {
+                exponent = exponent * 10 + digit;
+            }
+        }
+        return negative ? -exponent : exponent;
+    }
+
+    private int skipWhitespace(int pos, int end) {
+        while (pos < end && isWhitespace(line[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int trimWhitespace(int start, int end) {
+        while (end > start && isWhitespace(line[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
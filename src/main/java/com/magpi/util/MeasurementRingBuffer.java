@@ -0,0 +1,210 @@
+package com.magpi.util;
+
+import javax.swing.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue of measurement records that hands
+ * readings from the serial reader thread to the Swing event dispatch thread.
+ * Records are stored in primitive arrays, so publishing a reading allocates nothing.
+ * The producer schedules at most one pending drain on the EDT; the drain then
+ * empties everything that has accumulated in one batch.
+ */
+public class MeasurementRingBuffer {
+    private static final long DEFAULT_MAX_WAIT_NANOS = 2_000_000; // 2 ms
+
+    /**
+     * Receives records when the buffer is drained on the EDT
+     */
+    public interface RecordHandler {
+        /**
+         * Called once for each drained record, in arrival order
+         * @param meter The meter number
+         * @param current The current value
+         * @param duration The duration value
+         */
+        void onMeasurement(int meter, double current, double duration);
+
+        /**
+         * Called after each drained batch
+         */
+        default void onBatchComplete() {
+        }
+    }
+
+    private final int mask;
+    private final int[] meters;
+    private final double[] currents;
+    private final double[] durations;
+    private final RecordHandler handler;
+    private final long maxWaitNanos;
+
+    // Next slot to read (written by the consumer only)
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write (written by the producer only)
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private long cachedHead;
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong backPressureCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private volatile int largestBatch;
+    private long reportedDrops;
+
+    /**
+     * Creates a new ring buffer that drains into the given handler
+     * @param capacity The minimum number of records held; rounded up to a power of two
+     * @param handler The handler that receives records on the EDT
+     */
+    public MeasurementRingBuffer(int capacity, RecordHandler handler) {
+        this(capacity, handler, DEFAULT_MAX_WAIT_NANOS);
+    }
+
+    /**
+     * Creates a new ring buffer that drains into the given handler
+     * @param capacity The minimum number of records held; rounded up to a power of two
+     * @param handler The handler that receives records on the EDT
+     * @param maxWaitNanos How long the producer may wait for space before dropping a record
+     */
+    public MeasurementRingBuffer(int capacity, RecordHandler handler, long maxWaitNanos) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.meters = new int[size];
+        this.currents = new double[size];
+        this.durations = new double[size];
+        this.handler = handler;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * Publishes a record. Must only be called from the single producer thread.
+     * When the buffer is full the producer waits up to the configured time for the
+     * EDT to make room, then drops the record and counts it.
+     * @return true if the record was queued, false if it was dropped
+     */
+    public boolean offer(int meter, double current, double duration) {
+        long currentTail = tail.get();
+        if (currentTail - cachedHead > mask) {
+            cachedHead = head.get();
+            if (currentTail - cachedHead > mask && !awaitSpace(currentTail)) {
+                droppedCount.incrementAndGet();
+                scheduleDrain();
+                return false;
+            }
+        }
+
+        int slot = (int) currentTail & mask;
+        meters[slot] = meter;
+        currents[slot] = current;
+        durations[slot] = duration;
+        tail.lazySet(currentTail + 1);
+        publishedCount.incrementAndGet();
+
+        scheduleDrain();
+        return true;
+    }
+
+    private boolean awaitSpace(long currentTail) {
+        backPressureCount.incrementAndGet();
+        scheduleDrain();
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (System.nanoTime() < deadline) {
+            LockSupport.parkNanos(50_000);
+            cachedHead = head.get();
+            if (currentTail - cachedHead <= mask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    /**
+     * Empties the buffer into the handler. Runs on the EDT.
+     */
+    private void drain() {
+        // Clear the flag first so records published during the drain schedule another one
+        drainScheduled.set(false);
+
+        long currentHead = head.get();
+        long currentTail = tail.get();
+        int batch = (int) (currentTail - currentHead);
+
+        for (long i = currentHead; i < currentTail; i++) {
+            int slot = (int) i & mask;
+            try {
+                handler.onMeasurement(meters[slot], currents[slot], durations[slot]);
+            } catch (RuntimeException e) {
+                System.err.println("Error processing measurement: " + e.getMessage());
+            }
+        }
+        head.lazySet(currentTail);
+
+        if (batch > 0) {
+            batchCount.incrementAndGet();
+            if (batch > largestBatch) {
+                largestBatch = batch;
+            }
+            handler.onBatchComplete();
+        }
+
+        long dropped = droppedCount.get();
+        if (dropped != reportedDrops) {
+            System.err.println("Measurement buffer full: dropped " + (dropped - reportedDrops) +
+                    " readings (" + dropped + " total)");
+            reportedDrops = dropped;
+        }
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Gets the number of records waiting to be drained
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Gets the number of times the producer found the buffer full and had to wait
+     */
+    public long getBackPressureCount() {
+        return backPressureCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public int getLargestBatch() {
+        return largestBatch;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("published=%d, dropped=%d, back-pressure=%d, batches=%d, largest batch=%d",
+                getPublishedCount(), getDroppedCount(), getBackPressureCount(), getBatchCount(), getLargestBatch());
+    }
+}
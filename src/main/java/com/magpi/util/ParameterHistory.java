@@ -0,0 +1,163 @@
+package com.magpi.util;
+
+/**
+ * The threshold changes of one part, oldest first, in parallel primitive
+ * arrays. A history never changes once it is handed out: appending returns a
+ * new history, which shares the arrays of the old one when it can, so an
+ * append costs O(1) amortized and readers of the old history are unaffected.
+ * Appends must not run at the same time; the library serializes them.
+ */
+class ParameterHistory {
+    static final ParameterHistory EMPTY = new ParameterHistory(new Storage(0), 0, 0);
+
+    /**
+     * The arrays shared by the histories built by appending to each other
+     */
+    private static class Storage {
+        long[] times;
+        double[] headshot;
+        double[] coilshot;
+        int length;
+
+        Storage(int capacity) {
+            times = new long[capacity];
+            headshot = new double[capacity];
+            coilshot = new double[capacity];
+        }
+    }
+
+    private final Storage storage;
+    private final int start;
+    private final int size;
+
+    private ParameterHistory(Storage storage, int start, int size) {
+        this.storage = storage;
+        this.start = start;
+        this.size = size;
+    }
+
+    /**
+     * Splits columns of changes into one history per part, sharing the arrays
+     * @param times The times of all the changes
+     * @param headshot The headshot thresholds of all the changes
+     * @param coilshot The coilshot thresholds of all the changes
+     * @param ends The index after the last change of each part
+     * @return The history of each part
+     */
+    static ParameterHistory[] slices(long[] times, double[] headshot, double[] coilshot, int[] ends) {
+        Storage storage = new Storage(0);
+        storage.times = times;
+        storage.headshot = headshot;
+        storage.coilshot = coilshot;
+        storage.length = times.length;
+
+        ParameterHistory[] histories = new ParameterHistory[ends.length];
+        int start = 0;
+        for (int i = 0; i < ends.length; i++) {
+            histories[i] = new ParameterHistory(storage, start, ends[i] - start);
+            start = ends[i];
+        }
+        return histories;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets when the i-th change was saved, in epoch milliseconds
+     */
+    public long getTime(int i) {
+        return storage.times[start + i];
+    }
+
+    public double getHeadshotThreshold(int i) {
+        return storage.headshot[start + i];
+    }
+
+    public double getCoilshotThreshold(int i) {
+        return storage.coilshot[start + i];
+    }
+
+    /**
+     * Adds a change. Thresholds equal to the newest ones are not a change and
+     * return this history. Times never go backwards, so a clock set back
+     * cannot unsort the history.
+     * @param epochMillis When the thresholds were saved
+     * @param headshotThreshold The headshot threshold
+     * @param coilshotThreshold The coilshot threshold
+     * @param maxEntries The oldest changes are dropped beyond this many
+     * @return The history with the change
+     */
+    public ParameterHistory append(long epochMillis, double headshotThreshold, double coilshotThreshold,
+                                   int maxEntries) {
+        if (size > 0) {
+            int last = size - 1;
+            if (getHeadshotThreshold(last) == headshotThreshold && getCoilshotThreshold(last) == coilshotThreshold) {
+                return this;
+            }
+            epochMillis = Math.max(epochMillis, getTime(last));
+        }
+
+        int first = size + 1 > maxEntries ? size + 1 - maxEntries : 0;
+        Storage target = storage;
+        int end = start + size;
+        if (storage.length != end || end == storage.times.length) {
+            // Another history already appended here, or the arrays are full
+            target = copy(first, Math.max(8, (size - first) * 2));
+            end = size - first;
+            first = 0;
+        }
+        target.times[end] = epochMillis;
+        target.headshot[end] = headshotThreshold;
+        target.coilshot[end] = coilshotThreshold;
+        target.length = end + 1;
+        return target == storage
+                ? new ParameterHistory(storage, start + first, size - first + 1)
+                : new ParameterHistory(target, 0, end + 1);
+    }
+
+    /**
+     * Drops the changes replaced before a cutoff, keeping the one still in
+     * effect at the cutoff so lookups after it give the same answer
+     * @param cutoffMillis The oldest time to keep answers for
+     * @return The shorter history, or this one if nothing was dropped
+     */
+    public ParameterHistory retainSince(long cutoffMillis) {
+        int first = indexAt(cutoffMillis);
+        if (first <= 0) {
+            return this;
+        }
+        Storage target = copy(first, size - first);
+        return new ParameterHistory(target, 0, target.length);
+    }
+
+    /**
+     * Finds the change in effect at a time
+     * @param epochMillis The time
+     * @return The index of the newest change saved at or before the time, or -1
+     */
+    public int indexAt(long epochMillis) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) <= epochMillis) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    private Storage copy(int first, int capacity) {
+        int count = size - first;
+        Storage target = new Storage(Math.max(capacity, count + 1));
+        System.arraycopy(storage.times, start + first, target.times, 0, count);
+        System.arraycopy(storage.headshot, start + first, target.headshot, 0, count);
+        System.arraycopy(storage.coilshot, start + first, target.coilshot, 0, count);
+        target.length = count;
+        return target;
+    }
+}
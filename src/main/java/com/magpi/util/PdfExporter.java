@@ -4,21 +4,31 @@ import com.itextpdf.kernel.colors.DeviceRgb;
 import com.itextpdf.kernel.pdf.PdfDocument;
 import com.itextpdf.kernel.pdf.PdfWriter;
 import com.itextpdf.layout.Document;
+import com.itextpdf.layout.Style;
 import com.itextpdf.layout.element.Cell;
 import com.itextpdf.layout.element.Paragraph;
 import com.itextpdf.layout.element.Table;
 //import com.itextpdf.layout.property.UnitValue;
 import com.itextpdf.layout.properties.UnitValue;
-import com.magpi.model.TestPart;
+import com.magpi.model.Measurement;
 import com.magpi.model.TestSession;
-import com.magpi.ui.table.PersistentColorTableModel;
+import com.magpi.ui.table.PagedHistoryTableModel;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Utility class for exporting test data to PDF format
@@ -27,15 +37,41 @@ public class PdfExporter {
 
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
     private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final int READ_ROWS = 256;
+    private static final int FLUSH_ROWS = 100;
+
+    // Styles and colors hold no document state, so every report shares them,
+    // including reports written in parallel by BatchReportExporter
+    private static final Style TITLE_STYLE = new Style().setFontSize(16).setBold();
+    private static final Style HEADING_STYLE = new Style().setFontSize(14).setBold();
+    private static final Style BOLD_STYLE = new Style().setBold();
+    private static final Map<Integer, DeviceRgb> PDF_COLORS = new ConcurrentHashMap<>();
 
     /**
-     * Exports the current test session to a PDF file
+     * Receives the progress of an export
+     */
+    public interface Progress {
+
+        /**
+         * Called after each batch of rows is written
+         * @param rowsWritten The number of table rows written so far
+         * @param totalRows The number of table rows in the report
+         * @return false to cancel the export
+         */
+        boolean update(int rowsWritten, int totalRows);
+    }
+
+    /**
+     * Exports the current test session to a PDF file. The file is chosen on
+     * the event dispatch thread and written in the background, with a
+     * progress dialog that can cancel the export.
      * @param session The test session to export
-     * @param headshotTable The headshot table to include in the PDF
-     * @param coilshotTable The coilshot table to include in the PDF
+     * @param headshotModel The headshot history rows to include in the PDF
+     * @param coilshotModel The coilshot history rows to include in the PDF
      * @param parentComponent The parent component for dialog display
      */
-    public static void exportToPdf(TestSession session, JTable headshotTable, JTable coilshotTable, Component parentComponent) {
+    public static void exportToPdf(TestSession session, PagedHistoryTableModel headshotModel,
+                                   PagedHistoryTableModel coilshotModel, Component parentComponent) {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Save PDF Report");
         int userSelection = fileChooser.showSaveDialog(parentComponent);
@@ -44,136 +80,298 @@ public class PdfExporter {
             return;
         }
 
-        File selectedFile = fileChooser.getSelectedFile();
-        if (!selectedFile.getName().toLowerCase().endsWith(".pdf")) {
-            selectedFile = new File(selectedFile.getAbsolutePath() + ".pdf");
+        File chosenFile = fileChooser.getSelectedFile();
+        if (!chosenFile.getName().toLowerCase().endsWith(".pdf")) {
+            chosenFile = new File(chosenFile.getAbsolutePath() + ".pdf");
         }
+        final File selectedFile = chosenFile;
 
-        try (FileOutputStream fos = new FileOutputStream(selectedFile)) {
-            // Create PDF document
-            PdfWriter writer = new PdfWriter(fos);
-            PdfDocument pdf = new PdfDocument(writer);
-            Document document = new Document(pdf);
+        ProgressMonitor monitor = new ProgressMonitor(parentComponent,
+                "Exporting " + selectedFile.getName(), "", 0, 100);
+        monitor.setMillisToDecideToPopup(200);
 
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                boolean completed;
+                try (FileOutputStream fos = new FileOutputStream(selectedFile)) {
+                    completed = writeReport(session, headshotModel, coilshotModel, fos, (written, total) -> {
+                        setProgress(total > 0 ? (int) (100L * written / total) : 100);
+                        return !isCancelled();
+                    });
+                }
+                if (!completed) {
+                    // Do not leave a truncated report behind
+                    selectedFile.delete();
+                    throw new CancellationException();
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                monitor.close();
+                try {
+                    get();
+                    JOptionPane.showMessageDialog(parentComponent,
+                            "Report exported successfully to " + selectedFile.getName(),
+                            "Export Successful",
+                            JOptionPane.INFORMATION_MESSAGE);
+                } catch (CancellationException e) {
+                    selectedFile.delete();
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(parentComponent,
+                            "Error exporting to PDF: " + cause.getMessage(),
+                            "Export Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                monitor.setProgress((Integer) event.getNewValue());
+                monitor.setNote(event.getNewValue() + "%");
+            }
+            if (monitor.isCanceled() && !worker.isDone()) {
+                worker.cancel(false);
+            }
+        });
+        worker.execute();
+    }
+
+    /**
+     * Writes the report of a session. Rows are streamed from the history
+     * files a batch at a time and the PDF tables are flushed as they grow,
+     * so memory use does not depend on the number of parts.
+     * @param session The test session
+     * @param headshotModel The headshot history rows
+     * @param coilshotModel The coilshot history rows
+     * @param out The stream to write the PDF to; it is not closed
+     * @param progress Receives progress and can cancel the export
+     * @return true if the report was written, false if it was cancelled
+     * @throws IOException If the rows cannot be read
+     */
+    public static boolean writeReport(TestSession session, PagedHistoryTableModel headshotModel,
+                                      PagedHistoryTableModel coilshotModel, OutputStream out,
+                                      Progress progress) throws IOException {
+        List<String[]> details = new ArrayList<>();
+        addDetail(details, "Operator Name:", session.getOperatorName());
+        addDetail(details, "Part Description:", session.getPartDescription());
+        addDetail(details, "Machine ID:", session.getMachineId());
+        addDetail(details, "Company Name:", session.getCompanyName());
+        addDetail(details, "Supervisor ID:", session.getSupervisorId());
+        addDetail(details, "Date:", session.getStartTime().format(DATE_FORMATTER));
+        addDetail(details, "Start Time:", session.getStartTime().format(TIME_FORMATTER));
+
+        if (session.getEndTime() != null) {
+            addDetail(details, "End Time:", session.getEndTime().format(TIME_FORMATTER));
+        }
+
+        addDetail(details, "Parameters:",
+                "Headshot (" + session.getHeadShotThreshold() + "), " +
+                "Coilshot (" + session.getCoilShotThreshold() + ")");
+
+        addDetail(details, "Total Parts Tested:", String.valueOf(session.getTotalPartsCount()));
+        addDetail(details, "Accepted Parts:", String.valueOf(session.getAcceptedPartsCount()));
+        addDetail(details, "Rejected Parts:", String.valueOf(session.getRejectedPartsCount()));
+
+        return writeReport(details, headshotModel, coilshotModel, out, progress);
+    }
+
+    /**
+     * Writes the report of an archived session
+     * @param record The archived session
+     * @param store The archive holding its rows
+     * @param out The stream to write the PDF to; it is not closed
+     * @param progress Receives progress and can cancel the export
+     * @return true if the report was written, false if it was cancelled
+     * @throws IOException If the rows cannot be read
+     */
+    public static boolean writeReport(SessionHistoryStore.SessionRecord record, SessionHistoryStore store,
+                                      OutputStream out, Progress progress) throws IOException {
+        PagedHistoryTableModel headshotModel = archivedRows(record, store, Measurement.HEADSHOT_METER);
+        PagedHistoryTableModel coilshotModel = archivedRows(record, store, Measurement.COILSHOT_METER);
+
+        // A part is rejected if either of its shots failed
+        int parts = Math.max(headshotModel.getRowCount(), coilshotModel.getRowCount());
+        BitSet rejected = (BitSet) headshotModel.getRowsWithStatus(SessionHistoryStore.STATUS_FAIL).clone();
+        rejected.or(coilshotModel.getRowsWithStatus(SessionHistoryStore.STATUS_FAIL));
+        BitSet accepted = (BitSet) headshotModel.getRowsWithStatus(SessionHistoryStore.STATUS_PASS).clone();
+        accepted.or(coilshotModel.getRowsWithStatus(SessionHistoryStore.STATUS_PASS));
+        accepted.andNot(rejected);
+
+        List<String[]> details = new ArrayList<>();
+        addDetail(details, "Operator Name:", record.getOperatorName());
+        addDetail(details, "Part Description:", record.getPartDescription());
+        addDetail(details, "Machine ID:", record.getMachineId());
+        addDetail(details, "Company Name:", record.getCompanyName());
+        addDetail(details, "Supervisor ID:", record.getSupervisorId());
+        addDetail(details, "Date:", record.getStartTime().format(DATE_FORMATTER));
+        addDetail(details, "Start Time:", record.getStartTime().format(TIME_FORMATTER));
+        addDetail(details, "End Time:", record.getEndTime().format(TIME_FORMATTER));
+        addDetail(details, "Parameters:",
+                "Headshot (" + record.getHeadShotThreshold() + "), " +
+                "Coilshot (" + record.getCoilShotThreshold() + ")");
+        addDetail(details, "Total Parts Tested:", String.valueOf(parts));
+        addDetail(details, "Accepted Parts:", String.valueOf(accepted.cardinality()));
+        addDetail(details, "Rejected Parts:", String.valueOf(rejected.cardinality()));
+
+        return writeReport(details, headshotModel, coilshotModel, out, progress);
+    }
+
+    private static PagedHistoryTableModel archivedRows(SessionHistoryStore.SessionRecord record,
+                                                       SessionHistoryStore store, int meter) {
+        int[] rows = new int[record.getRowCount(meter)];
+        byte[] statuses = new byte[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = record.getFirstRow(meter) + i;
+            statuses[i] = record.getStatus(meter, i);
+        }
+        HistoryRowFile rowFile = store.getRowFile(meter);
+        return new PagedHistoryTableModel(SessionHistoryStore.getColumnNames(), rowFile, rows, statuses);
+    }
+
+    private static void addDetail(List<String[]> details, String label, String value) {
+        details.add(new String[]{label, value});
+    }
+
+    private static boolean writeReport(List<String[]> details, PagedHistoryTableModel headshotModel,
+                                       PagedHistoryTableModel coilshotModel, OutputStream out,
+                                       Progress progress) throws IOException {
+        int totalRows = headshotModel.getRowCount() + coilshotModel.getRowCount();
+
+        // Create PDF document
+        PdfWriter writer = new PdfWriter(new NonClosingOutputStream(out));
+        PdfDocument pdf = new PdfDocument(writer);
+        Document document = new Document(pdf);
+        try {
             // Add title
-            document.add(new Paragraph("Magnetic Particle Inspection Report")
-                    .setFontSize(16)
-                    .setBold());
+            document.add(new Paragraph("Magnetic Particle Inspection Report").addStyle(TITLE_STYLE));
 
             document.add(new Paragraph("\n"));
 
             // Add metadata section
-            document.add(new Paragraph("Report Details")
-                    .setFontSize(14)
-                    .setBold());
+            document.add(new Paragraph("Report Details").addStyle(HEADING_STYLE));
 
             // Create a table for metadata
             Table metadataTable = new Table(UnitValue.createPercentArray(2)).useAllAvailableWidth();
-
-            addMetadataRow(metadataTable, "Operator Name:", session.getOperatorName());
-            addMetadataRow(metadataTable, "Part Description:", session.getPartDescription());
-            addMetadataRow(metadataTable, "Machine ID:", session.getMachineId());
-            addMetadataRow(metadataTable, "Company Name:", session.getCompanyName());
-            addMetadataRow(metadataTable, "Supervisor ID:", session.getSupervisorId());
-            addMetadataRow(metadataTable, "Date:", session.getStartTime().format(DATE_FORMATTER));
-            addMetadataRow(metadataTable, "Start Time:", session.getStartTime().format(TIME_FORMATTER));
-
-            if (session.getEndTime() != null) {
-                addMetadataRow(metadataTable, "End Time:", session.getEndTime().format(TIME_FORMATTER));
+            for (String[] detail : details) {
+                addMetadataRow(metadataTable, detail[0], detail[1]);
             }
 
-            addMetadataRow(metadataTable, "Parameters:",
-                    "Headshot (" + session.getHeadShotThreshold() + "), " +
-                    "Coilshot (" + session.getCoilShotThreshold() + ")");
-
-            addMetadataRow(metadataTable, "Total Parts Tested:", String.valueOf(session.getTotalPartsCount()));
-            addMetadataRow(metadataTable, "Accepted Parts:", String.valueOf(session.getAcceptedPartsCount()));
-            addMetadataRow(metadataTable, "Rejected Parts:", String.valueOf(session.getRejectedPartsCount()));
-
             document.add(metadataTable);
             document.add(new Paragraph("\n"));
 
             // Headshot Table
-            if (headshotTable.getRowCount() > 0) {
-                document.add(new Paragraph("Headshot Measurements")
-                        .setFontSize(14)
-                        .setBold());
-                Table headTable = createPdfTableWithColors(headshotTable);
-                document.add(headTable);
+            int written = 0;
+            if (headshotModel.getRowCount() > 0) {
+                document.add(new Paragraph("Headshot Measurements").addStyle(HEADING_STYLE));
+                written = writeRows(document, headshotModel, written, totalRows, progress);
+                if (written < 0) {
+                    return false;
+                }
                 document.add(new Paragraph("\n"));
             }
 
             // Coilshot Table
-            if (coilshotTable.getRowCount() > 0) {
-                document.add(new Paragraph("Coilshot Measurements")
-                        .setFontSize(14)
-                        .setBold());
-                Table coilTable = createPdfTableWithColors(coilshotTable);
-                document.add(coilTable);
+            if (coilshotModel.getRowCount() > 0) {
+                document.add(new Paragraph("Coilshot Measurements").addStyle(HEADING_STYLE));
+                if (writeRows(document, coilshotModel, written, totalRows, progress) < 0) {
+                    return false;
+                }
             }
-
+            return true;
+        } finally {
             document.close();
-
-            JOptionPane.showMessageDialog(parentComponent,
-                    "Report exported successfully to " + selectedFile.getName(),
-                    "Export Successful",
-                    JOptionPane.INFORMATION_MESSAGE);
-
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(parentComponent,
-                    "Error exporting to PDF: " + e.getMessage(),
-                    "Export Error",
-                    JOptionPane.ERROR_MESSAGE);
         }
     }
 
     private static void addMetadataRow(Table table, String label, String value) {
-        table.addCell(new Cell().add(new Paragraph(label)).setBold());
+        table.addCell(new Cell().add(new Paragraph(label)).addStyle(BOLD_STYLE));
         table.addCell(new Cell().add(new Paragraph(value != null ? value : "")));
     }
 
     /**
-     * Creates a PDF table with color highlighting from a JTable
-     * @param table The JTable to convert
-     * @return A PDF Table representation
+     * Streams the rows of a history model into a large PDF table, flushing
+     * the table every FLUSH_ROWS rows so finished rows are written out
+     * @return The number of rows written in total, or -1 if the export was cancelled
      */
-    private static Table createPdfTableWithColors(JTable table) {
-        javax.swing.table.TableModel model = table.getModel();
-        Table pdfTable = new Table(UnitValue.createPercentArray(model.getColumnCount())).useAllAvailableWidth();
+    private static int writeRows(Document document, PagedHistoryTableModel model,
+                                 int written, int totalRows, Progress progress) throws IOException {
+        int columns = model.getColumnCount();
+        Table pdfTable = new Table(UnitValue.createPercentArray(columns), true).useAllAvailableWidth();
 
         // Add headers
-        for (int col = 0; col < model.getColumnCount(); col++) {
+        for (int col = 0; col < columns; col++) {
             pdfTable.addHeaderCell(new Cell()
                     .add(new Paragraph(model.getColumnName(col)))
-                    .setBold());
+                    .addStyle(BOLD_STYLE));
+        }
+        document.add(pdfTable);
+
+        HistoryRowFile.Row[] rows = new HistoryRowFile.Row[READ_ROWS];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new HistoryRowFile.Row(columns);
         }
+        Object[] cells = new Object[columns];
 
-        // Add data with colors if available
-        for (int row = 0; row < model.getRowCount(); row++) {
-            for (int col = 0; col < model.getColumnCount(); col++) {
-                Object value = model.getValueAt(row, col);
-                Cell pdfCell = new Cell();
-                pdfCell.add(new Paragraph(value != null ? value.toString() : ""));
-
-                // Get cell color from custom renderer if available
-                if (model instanceof PersistentColorTableModel) {
-                    PersistentColorTableModel colorModel = (PersistentColorTableModel) model;
-                    Color cellColor = colorModel.getCellColor(row, col);
-
-                    if (cellColor != null) {
-                        // Convert AWT Color to iText Color
-                        pdfCell.setBackgroundColor(new DeviceRgb(
-                                cellColor.getRed(),
-                                cellColor.getGreen(),
-                                cellColor.getBlue()
-                        ));
+        int rowCount = model.getRowCount();
+        for (int first = 0; first < rowCount; first += READ_ROWS) {
+            int count = model.readRows(first, rows);
+            for (int i = 0; i < count; i++) {
+                PagedHistoryTableModel.decode(rows[i], cells);
+                for (int col = 0; col < columns; col++) {
+                    Cell pdfCell = new Cell();
+                    pdfCell.add(new Paragraph(cells[col] != null ? cells[col].toString() : ""));
+
+                    int rgb = rows[i].colors[col];
+                    if (rgb != 0) {
+                        pdfCell.setBackgroundColor(pdfColor(rgb));
                     }
+                    pdfTable.addCell(pdfCell);
                 }
-
-                pdfTable.addCell(pdfCell);
+                if (++written % FLUSH_ROWS == 0) {
+                    pdfTable.flush();
+                }
+            }
+            if (!progress.update(written, totalRows)) {
+                pdfTable.complete();
+                return -1;
             }
+            if (count < READ_ROWS) {
+                break;
+            }
+        }
+
+        pdfTable.complete();
+        return written;
+    }
+
+    private static DeviceRgb pdfColor(int rgb) {
+        return PDF_COLORS.computeIfAbsent(rgb, key -> {
+            // Convert AWT Color to iText Color
+            Color awtColor = new Color(key, true);
+            return new DeviceRgb(awtColor.getRed(), awtColor.getGreen(), awtColor.getBlue());
+        });
+    }
+
+    /**
+     * Keeps the caller's stream open when the PDF document is closed
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
         }
 
-        return pdfTable;
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,148 +1,574 @@
 package com.magpi.util;
 
 import java.io.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 /**
- * Manages persistent storage of operator names, part descriptions, and part-specific parameters
+ * Manages persistent storage of operator names, part descriptions, and part-specific parameters.
+ * The library is loaded from a memory-mapped LibrarySnapshot plus the
+ * LibraryStore log of changes made since it. Text files are only an import
+ * and export format, and a library kept in them by an earlier version is
+ * imported once.
+ * <p>
+ * The library is safe to use from any thread. Its contents are held in an
+ * immutable State that every change replaces, so reads take no lock and
+ * always see one consistent version; changes are serialized on the library.
+ * Call load() early to read the library on a background thread instead of
+ * the first thread that needs it.
  */
 public class PersistentLibrary {
     private static final String LIBRARY_DIR = System.getProperty("user.home") + "/MagPi/Library";
-    private static final String OPERATORS_FILE = LIBRARY_DIR + "/operators.txt";
-    private static final String PARTS_FILE = LIBRARY_DIR + "/parts.txt";
-    private static final String PARAMETERS_FILE = LIBRARY_DIR + "/parameters.txt";
-    private static final String PARAMETER_HISTORY_FILE = LIBRARY_DIR + "/parameter_history.txt";
+    private static final String LIBRARY_FILE = LIBRARY_DIR + "/library.mplib";
+    private static final String SNAPSHOT_FILE = LIBRARY_DIR + "/library.mpsnap";
+    private static final String OPERATORS_FILE = "operators.txt";
+    private static final String PARTS_FILE = "parts.txt";
+    private static final String PARAMETERS_FILE = "parameters.txt";
+    private static final String PARAMETER_HISTORY_FILE = "parameter_history.txt";
 
+    // A new snapshot is written once the log holds this many records and a 32nd as many as the library
+    private static final long COMPACTION_MIN_RECORDS = 1024;
+    // Each part keeps at most this many threshold changes
+    private static final int MAX_HISTORY_ENTRIES = 256;
+    // Changes replaced longer ago than this are dropped when the library is loaded
+    private static final long HISTORY_RETENTION_DAYS = 10 * 365;
+    private static final DateTimeFormatter SAVED_AT_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    // Ignoring case, with names that differ only in case in their natural order, so every name has one place
+    private static final Comparator<String> NAME_ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
 
-    private static PersistentLibrary instance;
-    private Set<String> operators;
-    private Set<String> partDescriptions;
-    private Map<String, PartParameters> partParameters;
-    private Map<String, List<PartParameters>> partParameterHistory;
+    private static CompletableFuture<PersistentLibrary> loading;
+
+    private volatile State state;
+    private LibraryStore store;
+
+    /**
+     * Loaded by the class loader the first time getInstance is called, which
+     * both makes the load lazy and publishes the library safely
+     */
+    private static class Holder {
+        static final PersistentLibrary INSTANCE = new PersistentLibrary();
+    }
 
     private PersistentLibrary() {
         loadLibrary();
     }
 
+    /**
+     * Gets the library, loading it on the calling thread if load() has not finished yet
+     */
     public static PersistentLibrary getInstance() {
-        if (instance == null) {
-            instance = new PersistentLibrary();
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Starts loading the library on a background thread, if it is not loading already
+     * @return Completes with the library once it is loaded
+     */
+    public static synchronized CompletableFuture<PersistentLibrary> load() {
+        if (loading == null) {
+            loading = CompletableFuture.supplyAsync(PersistentLibrary::getInstance, runnable -> {
+                Thread thread = new Thread(runnable, "library-loader");
+                thread.setDaemon(true);
+                thread.start();
+            });
         }
-        return instance;
+        return loading;
     }
 
-    private void loadLibrary() {
-        // Create library directory if it doesn't exist
-        new File(LIBRARY_DIR).mkdirs();
+    /**
+     * One version of the library's contents. A State is never changed after
+     * it is built; every change builds a new one, sharing everything it does
+     * not change with the previous one.
+     * <p>
+     * Names are kept in sorted arrays, so a lookup is a binary search and a
+     * new name is one insertion. The parts with thresholds are a sorted array
+     * too, with the history of each part in a parallel array.
+     */
+    private static class State {
+        final String[] operators;
+        final List<String> operatorList;
+        final String[] partDescriptions;
+        final List<String> partDescriptionList;
+        final String[] historyParts;
+        final ParameterHistory[] histories;
+        final int historySize;
+        // Built the first time a completion is asked for, then updated by each change rather than built again
+        private volatile PrefixIndex operatorIndex;
+        private volatile PrefixIndex partDescriptionIndex;
+
+        State(String[] operators, String[] partDescriptions, String[] historyParts, ParameterHistory[] histories,
+              int historySize) {
+            this.operators = operators;
+            this.operatorList = Collections.unmodifiableList(Arrays.asList(operators));
+            this.partDescriptions = partDescriptions;
+            this.partDescriptionList = Collections.unmodifiableList(Arrays.asList(partDescriptions));
+            this.historyParts = historyParts;
+            this.histories = histories;
+            this.historySize = historySize;
+        }
 
-        // Load operators
-        operators = new HashSet<>();
-        loadFromFile(OPERATORS_FILE, operators);
+        PrefixIndex operatorIndex() {
+            PrefixIndex index = operatorIndex;
+            if (index == null) {
+                index = new PrefixIndex(operatorList, null);
+                operatorIndex = index;
+            }
+            return index;
+        }
 
-        // Load part descriptions
-        partDescriptions = new HashSet<>();
-        loadFromFile(PARTS_FILE, partDescriptions);
+        /**
+         * Gets the part index, which ranks the parts whose thresholds were saved
+         * most recently first
+         */
+        PrefixIndex partDescriptionIndex() {
+            PrefixIndex index = partDescriptionIndex;
+            if (index == null) {
+                long[] lastSaved = new long[partDescriptions.length];
+                for (int i = 0; i < lastSaved.length; i++) {
+                    lastSaved[i] = lastSaved(historyOf(partDescriptions[i]));
+                }
+                index = new PrefixIndex(partDescriptionList, lastSaved);
+                partDescriptionIndex = index;
+            }
+            return index;
+        }
+
+        boolean hasOperator(String operator) {
+            return find(operators, operator) >= 0;
+        }
 
-        // Load part parameters
-        partParameters = new HashMap<>();
-        loadParameters();
+        boolean hasPartDescription(String description) {
+            return find(partDescriptions, description) >= 0;
+        }
 
-        // Load parameter history
-        partParameterHistory = new HashMap<>();
-        loadParameterHistory();
+        State withOperator(String operator) {
+            int index = find(operators, operator);
+            if (index >= 0) {
+                return this;
+            }
+            State next = new State(inserted(operators, -index - 1, operator), partDescriptions,
+                    historyParts, histories, historySize);
+            next.operatorIndex = operatorIndex != null ? operatorIndex.with(operator, 0) : null;
+            next.partDescriptionIndex = partDescriptionIndex;
+            return next;
+        }
+
+        State withPartDescription(String description) {
+            int index = find(partDescriptions, description);
+            if (index >= 0) {
+                return this;
+            }
+            State next = new State(operators, inserted(partDescriptions, -index - 1, description),
+                    historyParts, histories, historySize);
+            next.operatorIndex = operatorIndex;
+            next.partDescriptionIndex = partDescriptionIndex != null
+                    ? partDescriptionIndex.with(description, lastSaved(historyOf(description))) : null;
+            return next;
+        }
+
+        State withParameters(String partDescription, ParameterHistory history) {
+            int index = find(historyParts, partDescription);
+            String[] parts = historyParts;
+            ParameterHistory[] copy;
+            int previousSize = 0;
+            if (index >= 0) {
+                copy = histories.clone();
+                previousSize = copy[index].size();
+            } else {
+                index = -index - 1;
+                parts = inserted(historyParts, index, partDescription);
+                copy = new ParameterHistory[histories.length + 1];
+                System.arraycopy(histories, 0, copy, 0, index);
+                System.arraycopy(histories, index, copy, index + 1, histories.length - index);
+            }
+            copy[index] = history;
+            State next = new State(operators, partDescriptions, parts, copy,
+                    historySize - previousSize + history.size());
+            next.operatorIndex = operatorIndex;
+            next.partDescriptionIndex = partDescriptionIndex != null
+                    ? partDescriptionIndex.withWeight(partDescription, lastSaved(history)) : null;
+            return next;
+        }
+
+        ParameterHistory historyOf(String partDescription) {
+            int index = find(historyParts, partDescription);
+            return index >= 0 ? histories[index] : ParameterHistory.EMPTY;
+        }
+
+        private static long lastSaved(ParameterHistory history) {
+            return history.size() > 0 ? history.getTime(history.size() - 1) : 0;
+        }
+
+        long liveRecords() {
+            return operators.length + partDescriptions.length + historySize;
+        }
     }
 
-    private void loadFromFile(String filename, Set<String> set) {
-        File file = new File(filename);
-        if (file.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    set.add(line.trim());
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Finds a name in an array sorted in NAME_ORDER
+     * @return The index of the name, or -(insertion point) - 1 if it is not there
+     */
+    private static int find(String[] names, String name) {
+        return Arrays.binarySearch(names, name, NAME_ORDER);
+    }
+
+    private static String[] inserted(String[] names, int index, String name) {
+        String[] result = new String[names.length + 1];
+        System.arraycopy(names, 0, result, 0, index);
+        result[index] = name;
+        System.arraycopy(names, index, result, index + 1, names.length - index);
+        return result;
+    }
+
+    /**
+     * Gets names sorted in NAME_ORDER without repeats, or the same array if it already is
+     */
+    private static String[] sortedNames(String[] names) {
+        if (isSorted(names)) {
+            return names;
+        }
+        TreeSet<String> sorted = new TreeSet<>(NAME_ORDER);
+        Collections.addAll(sorted, names);
+        return sorted.toArray(new String[0]);
+    }
+
+    private static boolean isSorted(String[] names) {
+        for (int i = 1; i < names.length; i++) {
+            if (NAME_ORDER.compare(names[i - 1], names[i]) >= 0) {
+                return false;
             }
         }
+        return true;
     }
 
-    private void loadParameters() {
-        File file = new File(PARAMETERS_FILE);
-        if (file.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length == 3) {
-                        String partDesc = parts[0].trim();
-                        double headshot = Double.parseDouble(parts[1].trim());
-                        double coilshot = Double.parseDouble(parts[2].trim());
-                        partParameters.put(partDesc, new PartParameters(headshot, coilshot));
+    /**
+     * Merges names into a sorted array of names, leaving out those it already holds
+     * @param sorted Names sorted in NAME_ORDER
+     * @param added The names to add
+     * @return The sorted names, or the same array if none were added
+     */
+    private static String[] merged(String[] sorted, Collection<String> added) {
+        String[] extra = new String[added.size()];
+        int count = 0;
+        for (String name : added) {
+            if (find(sorted, name) < 0) {
+                extra[count++] = name;
+            }
+        }
+        if (count == 0) {
+            return sorted;
+        }
+        Arrays.sort(extra, 0, count, NAME_ORDER);
+
+        String[] result = new String[sorted.length + count];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < result.length; k++) {
+            if (j == count || (i < sorted.length && NAME_ORDER.compare(sorted[i], extra[j]) < 0)) {
+                result[k] = sorted[i++];
+            } else {
+                result[k] = extra[j++];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collects the contents of the library while it is loaded. The contents
+     * of the snapshot or state it starts from are kept as they are, and only
+     * the changes added on top are merged into them when the State is built.
+     */
+    private static class Builder implements LibraryStore.Records {
+        final String[] baseOperators;
+        final String[] basePartDescriptions;
+        final String[] baseHistoryParts;
+        final ParameterHistory[] baseHistories;
+        // Added on top of the base, by the log or by text files
+        final Set<String> operators = new HashSet<>();
+        final Set<String> partDescriptions = new HashSet<>();
+        final Map<String, ParameterHistory> changedHistories = new HashMap<>();
+
+        Builder(LibrarySnapshot snapshot) {
+            if (snapshot == null) {
+                baseOperators = new String[0];
+                basePartDescriptions = new String[0];
+                baseHistoryParts = new String[0];
+                baseHistories = new ParameterHistory[0];
+                return;
+            }
+            // Snapshots are written in NAME_ORDER; older ones are sorted once here
+            baseOperators = sortedNames(snapshot.getOperators());
+            basePartDescriptions = sortedNames(snapshot.getPartDescriptions());
+            String[] parts = snapshot.getHistoryParts();
+            ParameterHistory[] histories = snapshot.getHistories();
+            if (isSorted(parts)) {
+                baseHistoryParts = parts;
+                baseHistories = histories;
+            } else {
+                TreeMap<String, ParameterHistory> sorted = new TreeMap<>(NAME_ORDER);
+                for (int i = 0; i < parts.length; i++) {
+                    sorted.put(parts[i], histories[i]);
+                }
+                baseHistoryParts = sorted.keySet().toArray(new String[0]);
+                baseHistories = sorted.values().toArray(new ParameterHistory[0]);
+            }
+        }
+
+        Builder(State state) {
+            baseOperators = state.operators;
+            basePartDescriptions = state.partDescriptions;
+            baseHistoryParts = state.historyParts;
+            baseHistories = state.histories;
+        }
+
+        @Override
+        public void addOperator(String operator) {
+            operators.add(operator);
+        }
+
+        @Override
+        public void addPartDescription(String description) {
+            partDescriptions.add(description);
+        }
+
+        @Override
+        public void savePartParameters(String partDescription, long epochMillis,
+                                       double headshotThreshold, double coilshotThreshold) {
+            ParameterHistory history = changedHistories.get(partDescription);
+            if (history == null) {
+                int index = find(baseHistoryParts, partDescription);
+                history = index >= 0 ? baseHistories[index] : ParameterHistory.EMPTY;
+            }
+            changedHistories.put(partDescription,
+                    history.append(epochMillis, headshotThreshold, coilshotThreshold, MAX_HISTORY_ENTRIES));
+        }
+
+        State build() {
+            String[] historyParts = merged(baseHistoryParts, changedHistories.keySet());
+            ParameterHistory[] histories = new ParameterHistory[historyParts.length];
+            // Changes replaced before the retention period only matter for answers no one can ask for
+            long cutoff = System.currentTimeMillis() - HISTORY_RETENTION_DAYS * 24L * 60 * 60 * 1000;
+            int historySize = 0;
+            int base = 0;
+            for (int i = 0; i < historyParts.length; i++) {
+                ParameterHistory history = changedHistories.get(historyParts[i]);
+                if (base < baseHistoryParts.length && baseHistoryParts[base] == historyParts[i]) {
+                    if (history == null) {
+                        history = baseHistories[base];
                     }
+                    base++;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                histories[i] = history.retainSince(cutoff);
+                historySize += histories[i].size();
             }
+            return new State(merged(baseOperators, operators), merged(basePartDescriptions, partDescriptions),
+                    historyParts, histories, historySize);
         }
     }
 
-    private void loadParameterHistory() {
-        File file = new File(PARAMETER_HISTORY_FILE);
-        if (file.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length == 3) {
-                        String partDesc = parts[0].trim();
-                        double headshot = Double.parseDouble(parts[1].trim());
-                        double coilshot = Double.parseDouble(parts[2].trim());
+    private void loadLibrary() {
+        // Create library directory if it doesn't exist
+        new File(LIBRARY_DIR).mkdirs();
 
-                        if (!partParameterHistory.containsKey(partDesc)) {
-                            partParameterHistory.put(partDesc, new ArrayList<>());
-                        }
-                        partParameterHistory.get(partDesc).add(new PartParameters(headshot, coilshot));
-                    }
+        LibrarySnapshot snapshot = null;
+        try {
+            snapshot = LibrarySnapshot.read(new File(SNAPSHOT_FILE));
+        } catch (IOException e) {
+            System.err.println("Ignoring the library snapshot: " + e.getMessage());
+        }
+
+        Builder builder = new Builder(snapshot);
+        try {
+            store = new LibraryStore(new File(LIBRARY_FILE), snapshot != null ? snapshot.getGeneration() : 0, builder);
+            // With neither a snapshot nor changes, the library is new or still kept in the old text files
+            boolean imported = snapshot == null && store.getRecordCount() == 0
+                    && importTextFiles(builder, new File(LIBRARY_DIR));
+            state = builder.build();
+            if (imported || (snapshot == null && store.getRecordCount() > 0) || needsCompaction()) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to open the library, changes will not be saved: " + e.getMessage());
+            store = null;
+            state = builder.build();
+        }
+
+        // Build the type-ahead indexes here rather than on the first keystroke
+        state.operatorIndex();
+        state.partDescriptionIndex();
+    }
+
+    /**
+     * Reads operators, parts and thresholds from text files
+     * @return true if any of the files existed
+     */
+    private static boolean importTextFiles(Builder builder, File directory) {
+        boolean found = loadFromFile(new File(directory, OPERATORS_FILE), builder.operators);
+        found |= loadFromFile(new File(directory, PARTS_FILE), builder.partDescriptions);
+
+        // The files have no times; repeated thresholds collapse into one change
+        File historyFile = new File(directory, PARAMETER_HISTORY_FILE);
+        long savedAt = historyFile.lastModified();
+        found |= loadParameterLines(historyFile, (partDesc, params) -> builder.savePartParameters(partDesc,
+                savedAt, params.headshotThreshold, params.coilshotThreshold));
+
+        // Current parameters missing from the history are kept as its newest change
+        File parametersFile = new File(directory, PARAMETERS_FILE);
+        long updatedAt = parametersFile.lastModified();
+        found |= loadParameterLines(parametersFile, (partDesc, params) -> builder.savePartParameters(partDesc,
+                updatedAt, params.headshotThreshold, params.coilshotThreshold));
+        return found;
+    }
+
+    /**
+     * Adds the operators, parts and thresholds in a directory of text files
+     * to the library, in the format written by exportTextFiles
+     * @param directory The directory holding the text files
+     * @return true if any of the files existed
+     */
+    public synchronized boolean importTextFiles(File directory) {
+        Builder builder = new Builder(state);
+        boolean found = importTextFiles(builder, directory);
+        if (found) {
+            state = builder.build();
+            if (store != null) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes the operators, parts and thresholds to text files, one per line,
+     * with thresholds as "description,headshot,coilshot"
+     * @param directory The directory for the text files, created if needed
+     * @throws IOException If a file cannot be written
+     */
+    public void exportTextFiles(File directory) throws IOException {
+        State current = state;
+        directory.mkdirs();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(new File(directory, OPERATORS_FILE)))) {
+            for (String operator : current.operatorList) {
+                writer.println(operator);
+            }
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(new File(directory, PARTS_FILE)))) {
+            for (String description : current.partDescriptionList) {
+                writer.println(description);
+            }
+        }
+        try (PrintWriter parameters = new PrintWriter(new FileWriter(new File(directory, PARAMETERS_FILE)));
+             PrintWriter history = new PrintWriter(new FileWriter(new File(directory, PARAMETER_HISTORY_FILE)))) {
+            for (int part = 0; part < current.historyParts.length; part++) {
+                String description = current.historyParts[part];
+                ParameterHistory changes = current.histories[part];
+                for (int i = 0; i < changes.size(); i++) {
+                    history.println(description + "," + changes.getHeadshotThreshold(i)
+                            + "," + changes.getCoilshotThreshold(i));
+                }
+                if (changes.size() > 0) {
+                    int last = changes.size() - 1;
+                    parameters.println(description + "," + changes.getHeadshotThreshold(last)
+                            + "," + changes.getCoilshotThreshold(last));
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
     }
 
-    private void saveToFile(String filename, Set<String> set) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            for (String item : set) {
-                writer.println(item);
+    private static boolean loadFromFile(File file, Set<String> set) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    set.add(line.trim());
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return true;
     }
 
-    private void saveParameters() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(PARAMETERS_FILE))) {
-            for (Map.Entry<String, PartParameters> entry : partParameters.entrySet()) {
-                writer.printf("%s,%.2f,%.2f%n",
-                        entry.getKey(),
-                        entry.getValue().headshotThreshold,
-                        entry.getValue().coilshotThreshold);
+    /**
+     * Reads "description,headshot,coilshot" lines. The thresholds are taken
+     * from the last two commas, so descriptions may contain commas.
+     */
+    private static boolean loadParameterLines(File file, BiConsumer<String, PartParameters> consumer) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int coilshotComma = line.lastIndexOf(',');
+                int headshotComma = coilshotComma > 0 ? line.lastIndexOf(',', coilshotComma - 1) : -1;
+                if (headshotComma <= 0) {
+                    continue;
+                }
+                try {
+                    String partDesc = line.substring(0, headshotComma).trim();
+                    double headshot = Double.parseDouble(line.substring(headshotComma + 1, coilshotComma).trim());
+                    double coilshot = Double.parseDouble(line.substring(coilshotComma + 1).trim());
+                    consumer.accept(partDesc, new PartParameters(headshot, coilshot));
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping library line: " + line);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return true;
     }
 
-    private void saveParameterHistory() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(PARAMETER_HISTORY_FILE))) {
-            for (Map.Entry<String, List<PartParameters>> entry : partParameterHistory.entrySet()) {
-                String partDesc = entry.getKey();
-                for (PartParameters params : entry.getValue()) {
-                    writer.printf("%s,%.2f,%.2f%n",
-                            partDesc,
-                            params.headshotThreshold,
-                            params.coilshotThreshold);
-                }
+    private boolean needsCompaction() {
+        long records = store.getRecordCount();
+        return records >= COMPACTION_MIN_RECORDS && records * 32 >= state.liveRecords();
+    }
+
+    /**
+     * Writes the whole library to a new snapshot and empties the log
+     */
+    private void compact() throws IOException {
+        State current = state;
+        long generation = store.getGeneration() + 1;
+        LibrarySnapshot.write(new File(SNAPSHOT_FILE), generation, current.operatorList,
+                current.partDescriptionList, current.historyParts, current.histories);
+        store.reset(generation);
+    }
+
+    /**
+     * A change written to the log
+     */
+    private interface Change {
+        void writeTo(LibraryStore store) throws IOException;
+    }
+
+    /**
+     * Publishes a new state and appends the change to the log, compacting it
+     * when it has grown too large. Callers hold the library's lock.
+     */
+    private void apply(State next, Change change) {
+        state = next;
+        if (store == null) {
+            return;
+        }
+        try {
+            change.writeTo(store);
+            if (needsCompaction()) {
+                compact();
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -150,58 +576,164 @@ public class PersistentLibrary {
     }
 
     // Operator methods
-    public void addOperator(String operator) {
-        operators.add(operator);
-        saveToFile(OPERATORS_FILE, operators);
+    public synchronized void addOperator(String operator) {
+        if (!state.hasOperator(operator)) {
+            apply(state.withOperator(operator), store -> store.addOperator(operator));
+        }
     }
 
+    /**
+     * Gets the operator names
+     * @return An unmodifiable list, sorted ignoring case
+     */
     public List<String> getOperators() {
-        return new ArrayList<>(operators);
+        return state.operatorList;
+    }
+
+    /**
+     * Finds the operators with a word that starts with the given text, for type-ahead
+     * @param prefix The text typed so far
+     * @param limit The most names to return
+     * @return The matching operators, those starting with the text first
+     */
+    public List<String> completeOperator(String prefix, int limit) {
+        return state.operatorIndex().complete(prefix, limit);
+    }
+
+    public boolean hasOperator(String operator) {
+        return state.hasOperator(operator);
     }
 
     // Part description methods
-    public void addPartDescription(String description) {
-        partDescriptions.add(description);
-        saveToFile(PARTS_FILE, partDescriptions);
+    public synchronized void addPartDescription(String description) {
+        if (!state.hasPartDescription(description)) {
+            apply(state.withPartDescription(description), store -> store.addPartDescription(description));
+        }
     }
 
+    /**
+     * Gets the part descriptions
+     * @return An unmodifiable list, sorted ignoring case
+     */
     public List<String> getPartDescriptions() {
-        return new ArrayList<>(partDescriptions);
+        return state.partDescriptionList;
+    }
+
+    /**
+     * Finds the part descriptions with a word that starts with the given text, for type-ahead
+     * @param prefix The text typed so far
+     * @param limit The most descriptions to return
+     * @return The matching descriptions, those starting with the text and
+     * those whose thresholds were saved most recently first
+     */
+    public List<String> completePartDescription(String prefix, int limit) {
+        return state.partDescriptionIndex().complete(prefix, limit);
+    }
+
+    public boolean hasPartDescription(String description) {
+        return state.hasPartDescription(description);
     }
 
     // Parameter methods
-    public void savePartParameters(String partDescription, double headshotThreshold, double coilshotThreshold) {
-        // Update current parameters
-        partParameters.put(partDescription, new PartParameters(headshotThreshold, coilshotThreshold));
-        saveParameters();
 
-        // Add to history
-        if (!partParameterHistory.containsKey(partDescription)) {
-            partParameterHistory.put(partDescription, new ArrayList<>());
+    /**
+     * Saves the thresholds of a part. Thresholds equal to the current ones
+     * are not saved again.
+     */
+    public synchronized void savePartParameters(String partDescription, double headshotThreshold, double coilshotThreshold) {
+        ParameterHistory history = state.historyOf(partDescription);
+        long now = System.currentTimeMillis();
+        ParameterHistory next = history.append(now, headshotThreshold, coilshotThreshold, MAX_HISTORY_ENTRIES);
+        if (next != history) {
+            long savedAt = next.getTime(next.size() - 1);
+            apply(state.withParameters(partDescription, next), store -> store.savePartParameters(partDescription,
+                    savedAt, headshotThreshold, coilshotThreshold));
         }
-        partParameterHistory.get(partDescription).add(new PartParameters(headshotThreshold, coilshotThreshold));
-        saveParameterHistory();
     }
 
     public PartParameters getPartParameters(String partDescription) {
-        return partParameters.get(partDescription);
+        ParameterHistory history = state.historyOf(partDescription);
+        return history.size() > 0 ? entry(history, history.size() - 1) : null;
+    }
+
+    /**
+     * Gets the thresholds that were in effect for a part at a time
+     * @param partDescription The part
+     * @param time The time
+     * @return The thresholds, or null if none had been saved yet or they are
+     * older than the history keeps
+     */
+    public PartParameters getPartParametersAt(String partDescription, LocalDateTime time) {
+        ParameterHistory history = state.historyOf(partDescription);
+        int index = history.indexAt(toEpochMillis(time));
+        return index >= 0 ? entry(history, index) : null;
     }
 
+    /**
+     * Gets the threshold changes of a part, oldest first
+     * @return An unmodifiable list
+     */
     public List<PartParameters> getPartParameterHistory(String partDescription) {
-        List<PartParameters> history = partParameterHistory.get(partDescription);
-        if (history == null) {
-            return new ArrayList<>();
-        }
-        return new ArrayList<>(history);
+        return historyList(state.historyOf(partDescription), 0, -1);
+    }
+
+    /**
+     * Gets the threshold changes of a part saved in a time range, oldest first
+     * @param partDescription The part
+     * @param from The start of the range
+     * @param to The end of the range, excluded
+     * @return An unmodifiable list
+     */
+    public List<PartParameters> getPartParameterHistory(String partDescription, LocalDateTime from, LocalDateTime to) {
+        ParameterHistory history = state.historyOf(partDescription);
+        int first = history.indexAt(toEpochMillis(from) - 1) + 1;
+        int end = history.indexAt(toEpochMillis(to) - 1) + 1;
+        return historyList(history, first, end);
+    }
+
+    /**
+     * Views part of a history as a list, without copying it
+     */
+    private static List<PartParameters> historyList(ParameterHistory history, int first, int end) {
+        int size = Math.max(0, (end < 0 ? history.size() : end) - first);
+        return new AbstractList<PartParameters>() {
+            @Override
+            public PartParameters get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                }
+                return entry(history, first + index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static PartParameters entry(ParameterHistory history, int index) {
+        return new PartParameters(history.getHeadshotThreshold(index), history.getCoilshotThreshold(index),
+                history.getTime(index));
+    }
+
+    private static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     public static class PartParameters {
         private final double headshotThreshold;
         private final double coilshotThreshold;
+        private final long savedAtMillis;
 
         public PartParameters(double headshotThreshold, double coilshotThreshold) {
+            this(headshotThreshold, coilshotThreshold, 0);
+        }
+
+        private PartParameters(double headshotThreshold, double coilshotThreshold, long savedAtMillis) {
             this.headshotThreshold = headshotThreshold;
             this.coilshotThreshold = coilshotThreshold;
+            this.savedAtMillis = savedAtMillis;
         }
 
         public double getHeadshotThreshold() {
@@ -212,9 +744,18 @@ public class PersistentLibrary {
             return coilshotThreshold;
         }
 
+        /**
+         * Gets when the thresholds were saved, or null if not known
+         */
+        public LocalDateTime getSavedAt() {
+            return savedAtMillis != 0
+                    ? LocalDateTime.ofInstant(Instant.ofEpochMilli(savedAtMillis), ZoneId.systemDefault()) : null;
+        }
+
         @Override
         public String toString() {
-            return String.format("Headshot: %.2f, Coilshot: %.2f", headshotThreshold, coilshotThreshold);
+            String thresholds = String.format("Headshot: %.2f, Coilshot: %.2f", headshotThreshold, coilshotThreshold);
+            return savedAtMillis != 0 ? getSavedAt().format(SAVED_AT_FORMATTER) + "  " + thresholds : thresholds;
         }
     }
 }
\ No newline at end of file
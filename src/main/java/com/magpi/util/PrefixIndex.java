@@ -0,0 +1,380 @@
+package com.magpi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted index of the words of a set of names, for type-ahead. Every name is
+ * indexed once per word, by the lowercased text from the start of that word
+ * to the end of the name, so two binary searches find the range of every name
+ * with a word that starts with what was typed. Names that start with it rank
+ * before names where a later word does; within each group, names with a
+ * higher weight, then shorter names, come first.
+ * <p>
+ * Ranks are worked out when the index is built, and a tree over the range
+ * holds the best-ranked key of every span, so the top matches come out in
+ * rank order without looking at the rest of the range. An index never
+ * changes once it is built; adding a name or changing its weight makes a new
+ * index from the old one in one pass, without sorting again. When a query
+ * extends the previous one, the binary searches only look inside the
+ * previous range.
+ */
+class PrefixIndex {
+    private final String[] names;
+    private final long[] weights;
+    // The names in rank order
+    private final int[] order;
+    private final String[] keys;
+    private final int[] keyNames;
+    // Rank of each key: by its name's rank, after every key at the start of a name
+    private final int[] keyRanks;
+    // tree[leaves + i] is key i; every other node holds the best-ranked key below it
+    private final int[] tree;
+    private final int leaves;
+    private volatile Range last;
+
+    /**
+     * The keys matching one query
+     */
+    private static class Range {
+        final String query;
+        final int from;
+        final int to;
+
+        Range(String query, int from, int to) {
+            this.query = query;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * A word of a name and the rest of the name after it
+     */
+    private static class Key implements Comparable<Key> {
+        final String text;
+        final int name;
+        final boolean atStart;
+
+        Key(String text, int name, boolean atStart) {
+            this.text = text;
+            this.name = name;
+            this.atStart = atStart;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            return text.compareTo(other.text);
+        }
+    }
+
+    /**
+     * Builds an index
+     * @param names The names
+     * @param weights The rank of each name, higher first, or null to rank them all the same
+     */
+    PrefixIndex(Collection<String> names, long[] weights) {
+        this.names = names.toArray(new String[0]);
+        this.weights = weights;
+        int count = this.names.length;
+
+        Integer[] ranked = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            ranked[i] = i;
+        }
+        Arrays.sort(ranked, (a, b) -> compareRanks(this.names, weights, a, b));
+        order = new int[count];
+        for (int rank = 0; rank < count; rank++) {
+            order[rank] = ranked[rank];
+        }
+
+        List<Key> list = new ArrayList<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            addKeys(list, this.names[i], i);
+        }
+        Key[] sorted = list.toArray(new Key[0]);
+        Arrays.sort(sorted);
+
+        keys = new String[sorted.length];
+        keyNames = new int[sorted.length];
+        boolean[] atStart = new boolean[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            keys[i] = sorted[i].text;
+            keyNames[i] = sorted[i].name;
+            atStart[i] = sorted[i].atStart;
+        }
+        keyRanks = keyRanks(order, keyNames, atStart);
+        leaves = leaves(keys.length);
+        tree = buildTree();
+    }
+
+    private PrefixIndex(String[] names, long[] weights, int[] order, String[] keys, int[] keyNames,
+                        boolean[] atStart) {
+        this.names = names;
+        this.weights = weights;
+        this.order = order;
+        this.keys = keys;
+        this.keyNames = keyNames;
+        this.keyRanks = keyRanks(order, keyNames, atStart);
+        this.leaves = leaves(keys.length);
+        this.tree = buildTree();
+    }
+
+    /**
+     * Makes an index with one more name, merging its keys into this index's
+     * @param name A name not in this index
+     * @param weight The rank of the name, ignored if this index ranks all names the same
+     */
+    PrefixIndex with(String name, long weight) {
+        int count = names.length;
+        String[] nextNames = Arrays.copyOf(names, count + 1);
+        nextNames[count] = name;
+        long[] nextWeights = null;
+        if (weights != null) {
+            nextWeights = Arrays.copyOf(weights, count + 1);
+            nextWeights[count] = weight;
+        }
+        int[] nextOrder = insertRanked(nextNames, nextWeights, order, count);
+
+        List<Key> added = new ArrayList<>();
+        addKeys(added, name, count);
+        Collections.sort(added);
+
+        int size = keys.length + added.size();
+        String[] nextKeys = new String[size];
+        int[] nextKeyNames = new int[size];
+        boolean[] atStart = new boolean[size];
+        int from = 0;
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            if (next < added.size() && (from == keys.length || added.get(next).text.compareTo(keys[from]) < 0)) {
+                Key key = added.get(next++);
+                nextKeys[i] = key.text;
+                nextKeyNames[i] = key.name;
+                atStart[i] = key.atStart;
+            } else {
+                nextKeys[i] = keys[from];
+                nextKeyNames[i] = keyNames[from];
+                atStart[i] = keyRanks[from] < count;
+                from++;
+            }
+        }
+        return new PrefixIndex(nextNames, nextWeights, nextOrder, nextKeys, nextKeyNames, atStart);
+    }
+
+    /**
+     * Makes an index with the weight of one name changed, sharing the keys of this one
+     * @return This index if it ranks all names the same, does not have the name,
+     * or already has the weight
+     */
+    PrefixIndex withWeight(String name, long weight) {
+        if (weights == null) {
+            return this;
+        }
+        int index = Arrays.asList(names).indexOf(name);
+        if (index < 0 || weights[index] == weight) {
+            return this;
+        }
+        long[] nextWeights = weights.clone();
+        nextWeights[index] = weight;
+
+        int[] others = new int[order.length - 1];
+        int count = 0;
+        for (int other : order) {
+            if (other != index) {
+                others[count++] = other;
+            }
+        }
+        boolean[] atStart = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            atStart[i] = keyRanks[i] < names.length;
+        }
+        return new PrefixIndex(names, nextWeights, insertRanked(names, nextWeights, others, index),
+                keys, keyNames, atStart);
+    }
+
+    /**
+     * Indexes a name once per word, by the lowercased text from the word to the end
+     */
+    private static void addKeys(List<Key> list, String name, int index) {
+        String text = name.toLowerCase(Locale.ROOT);
+        for (int start = 0; start < text.length(); start++) {
+            boolean wordStart = Character.isLetterOrDigit(text.charAt(start))
+                    && (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)));
+            if (start == 0 || wordStart) {
+                list.add(new Key(text.substring(start), index, start == 0));
+            }
+        }
+    }
+
+    /**
+     * Orders names by weight, higher first, then shorter first, then ignoring case
+     */
+    private static int compareRanks(String[] names, long[] weights, int a, int b) {
+        if (weights != null && weights[a] != weights[b]) {
+            return Long.compare(weights[b], weights[a]);
+        }
+        if (names[a].length() != names[b].length()) {
+            return Integer.compare(names[a].length(), names[b].length());
+        }
+        return names[a].compareToIgnoreCase(names[b]);
+    }
+
+    /**
+     * Inserts a name at its place in a rank order that does not have it
+     */
+    private static int[] insertRanked(String[] names, long[] weights, int[] order, int name) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareRanks(names, weights, order[mid], name) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int[] result = new int[order.length + 1];
+        System.arraycopy(order, 0, result, 0, low);
+        result[low] = name;
+        System.arraycopy(order, low, result, low + 1, order.length - low);
+        return result;
+    }
+
+    /**
+     * Ranks each key by its name's rank, after every key at the start of a name
+     */
+    private static int[] keyRanks(int[] order, int[] keyNames, boolean[] atStart) {
+        int count = order.length;
+        int[] nameRanks = new int[count];
+        for (int rank = 0; rank < count; rank++) {
+            nameRanks[order[rank]] = rank;
+        }
+        int[] ranks = new int[keyNames.length];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = nameRanks[keyNames[i]] + (atStart[i] ? 0 : count);
+        }
+        return ranks;
+    }
+
+    private static int leaves(int keyCount) {
+        int size = 1;
+        while (size < keyCount) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private int[] buildTree() {
+        int[] nodes = new int[2 * leaves];
+        Arrays.fill(nodes, -1);
+        for (int i = 0; i < keys.length; i++) {
+            nodes[leaves + i] = i;
+        }
+        for (int node = leaves - 1; node > 0; node--) {
+            nodes[node] = better(nodes[2 * node], nodes[2 * node + 1]);
+        }
+        return nodes;
+    }
+
+    /**
+     * Finds the best names with a word that starts with the given text, ignoring case
+     * @param prefix The text typed so far
+     * @param limit The most names to return
+     * @return The matching names, best first
+     */
+    public List<String> complete(String prefix, int limit) {
+        String query = prefix.trim().toLowerCase(Locale.ROOT);
+        if (limit <= 0 || keys.length == 0) {
+            return Collections.emptyList();
+        }
+
+        int from = 0;
+        int to = keys.length;
+        Range previous = last;
+        if (previous != null && query.startsWith(previous.query)) {
+            // Every key that starts with the longer text is inside the previous range
+            from = previous.from;
+            to = previous.to;
+        }
+        int first = lowerBound(query, from, to);
+        int end = lowerBound(query + Character.MAX_VALUE, first, to);
+        last = new Range(query, first, end);
+
+        // Take the best key of the best span, then split the span around it
+        List<String> result = new ArrayList<>(Math.min(limit, 16));
+        int[] taken = new int[Math.min(limit, names.length)];
+        int takenCount = 0;
+        PriorityQueue<int[]> spans = new PriorityQueue<>((a, b) -> Integer.compare(keyRanks[a[0]], keyRanks[b[0]]));
+        addSpan(spans, first, end);
+        while (takenCount < taken.length && !spans.isEmpty()) {
+            int[] span = spans.poll();
+            int key = span[0];
+            int name = keyNames[key];
+
+            // A name matching at several words is only listed at its best one
+            boolean seen = false;
+            for (int i = 0; i < takenCount && !seen; i++) {
+                seen = taken[i] == name;
+            }
+            if (!seen) {
+                taken[takenCount++] = name;
+                result.add(names[name]);
+            }
+            addSpan(spans, span[1], key);
+            addSpan(spans, key + 1, span[2]);
+        }
+        return result;
+    }
+
+    private void addSpan(PriorityQueue<int[]> spans, int from, int to) {
+        if (from < to) {
+            spans.add(new int[]{best(from, to), from, to});
+        }
+    }
+
+    /**
+     * Gets the best-ranked key in a range of keys
+     */
+    private int best(int from, int to) {
+        int result = -1;
+        for (int low = from + leaves, high = to + leaves; low < high; low >>= 1, high >>= 1) {
+            if ((low & 1) == 1) {
+                result = better(result, tree[low++]);
+            }
+            if ((high & 1) == 1) {
+                result = better(result, tree[--high]);
+            }
+        }
+        return result;
+    }
+
+    private int better(int key, int other) {
+        if (key < 0) {
+            return other;
+        }
+        if (other < 0) {
+            return key;
+        }
+        return keyRanks[other] < keyRanks[key] ? other : key;
+    }
+
+    private int lowerBound(String query, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(query) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,188 @@
+package com.magpi.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Reads capture files written by SerialCaptureWriter and plays them back,
+ * either into a SerialPortManager (see SerialPortManager.openReplay) or into
+ * any output stream, such as the master side of a pseudo-terminal.
+ */
+public class SerialCaptureReader implements Closeable {
+    // Longest wait between checks for a stop while waiting for the next chunk
+    private static final long MAX_PARK_NANOS = 50_000_000L;
+
+    /**
+     * Receives replayed chunks
+     */
+    public interface ChunkSink {
+        void accept(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private final DataInputStream in;
+    private final long startEpochMillis;
+    private byte[] chunk = new byte[256];
+    private int chunkLength;
+    private long chunkOffsetNanos;
+
+    /**
+     * Opens a capture file
+     * @param file The capture file
+     * @throws IOException If the file cannot be read or is not a capture file
+     */
+    public SerialCaptureReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        byte[] magic = new byte[SerialCaptureWriter.MAGIC.length];
+        in.readFully(magic);
+        int version = in.readUnsignedByte();
+        if (!Arrays.equals(magic, SerialCaptureWriter.MAGIC) || version != SerialCaptureWriter.VERSION) {
+            in.close();
+            throw new IOException("Not a serial capture file: " + file);
+        }
+        startEpochMillis = in.readLong();
+    }
+
+    /**
+     * Gets the wall-clock time at which the capture was started
+     */
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    /**
+     * Advances to the next chunk
+     * @return true if a chunk was read, false at the end of the capture
+     * @throws IOException If the file is truncated, corrupt or unreadable
+     */
+    public boolean next() throws IOException {
+        long delta;
+        try {
+            delta = readVarLong();
+        } catch (EOFException e) {
+            return false;
+        }
+        long length = readVarLong();
+        if (delta < 0 || length < 0 || length > SerialCaptureWriter.MAX_CHUNK_LENGTH) {
+            throw new IOException("Malformed capture file");
+        }
+        if (length > chunk.length) {
+            chunk = new byte[(int) Math.max(length, chunk.length * 2)];
+        }
+        in.readFully(chunk, 0, (int) length);
+        chunkLength = (int) length;
+        chunkOffsetNanos += delta;
+        return true;
+    }
+
+    /**
+     * Gets the bytes of the current chunk. The buffer is reused by next().
+     */
+    public byte[] getChunk() {
+        return chunk;
+    }
+
+    public int getChunkLength() {
+        return chunkLength;
+    }
+
+    /**
+     * Gets the time of the current chunk relative to the first chunk
+     */
+    public long getChunkOffsetNanos() {
+        return chunkOffsetNanos;
+    }
+
+    /**
+     * Plays the rest of the capture into a sink
+     * @param sink The sink receiving each chunk
+     * @param speed Playback speed: 1 for real time, N for N times faster,
+     *              0 or less for as fast as possible
+     * @param running Checked before every chunk and while waiting for one;
+     *                playback stops when it returns false or the thread is interrupted
+     * @return The number of chunks played
+     * @throws IOException If the capture cannot be read or the sink fails
+     */
+    public long replay(ChunkSink sink, double speed, BooleanSupplier running) throws IOException {
+        long chunks = 0;
+        long startNanos = System.nanoTime();
+        long firstOffset = -1;
+
+        while (running.getAsBoolean() && !Thread.currentThread().isInterrupted() && next()) {
+            if (firstOffset < 0) {
+                firstOffset = chunkOffsetNanos;
+            }
+            if (speed > 0) {
+                long due = startNanos + (long) ((chunkOffsetNanos - firstOffset) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    // Wait in slices so a stop is noticed before a long gap in the capture ends
+                    LockSupport.parkNanos(Math.min(wait, MAX_PARK_NANOS));
+                    if (!running.getAsBoolean() || Thread.currentThread().isInterrupted()) {
+                        return chunks;
+                    }
+                }
+            }
+            sink.accept(chunk, 0, chunkLength);
+            chunks++;
+        }
+        return chunks;
+    }
+
+    /**
+     * Reads a varint of at most 10 bytes, the most a long needs
+     */
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed capture file");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Replays a capture into a file or device, for example the master side of
+     * a pty whose slave is opened by the application as a serial port.
+     * Usage: SerialCaptureReader capture-file output-file [speed]
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SerialCaptureReader <capture-file> <output-file> [speed]");
+            System.exit(1);
+        }
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+
+        try (SerialCaptureReader reader = new SerialCaptureReader(new File(args[0]));
+             OutputStream out = new FileOutputStream(args[1])) {
+            long[] bytes = {0};
+            long start = System.nanoTime();
+            long chunks = reader.replay((data, offset, length) -> {
+                out.write(data, offset, length);
+                out.flush();
+                bytes[0] += length;
+            }, speed, () -> true);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Replayed %d chunks, %d bytes in %.3f s (%.0f bytes/s)%n",
+                    chunks, bytes[0], seconds, bytes[0] / Math.max(seconds, 1e-9));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.magpi.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the raw byte stream of a serial port to a compact capture file.
+ * <pre>
+ *   header:  "MPCAP" version(1 byte) start time(8 bytes, epoch millis)
+ *   chunk:   varint nanos since previous chunk, varint length, bytes
+ * </pre>
+ * Each chunk is one read from the port, so replaying the file reproduces the
+ * original timing and fragmentation. See SerialCaptureReader.
+ */
+public class SerialCaptureWriter implements Closeable {
+    static final byte[] MAGIC = {'M', 'P', 'C', 'A', 'P'};
+    static final int VERSION = 1;
+    // Far more than one read from a port; a longer chunk in a file means it is corrupt
+    static final int MAX_CHUNK_LENGTH = 1 << 20;
+
+    private final DataOutputStream out;
+    private long previousNanos = -1;
+    private long chunkCount;
+    private long byteCount;
+
+    /**
+     * Creates a capture file, replacing any existing file
+     * @param file The file to write
+     * @throws IOException If the file cannot be created
+     */
+    public SerialCaptureWriter(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Appends one chunk read from the port
+     * @param data The buffer holding the bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     * @param nanoTime The System.nanoTime() at which the chunk was read
+     * @throws IOException If the chunk cannot be written
+     * @throws IllegalArgumentException If the chunk is longer than a capture file allows
+     */
+    public void write(byte[] data, int offset, int length, long nanoTime) throws IOException {
+        if (length > MAX_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("Chunk too long for a capture file: " + length);
+        }
+        long delta = previousNanos < 0 ? 0 : Math.max(0, nanoTime - previousNanos);
+        previousNanos = nanoTime;
+
+        writeVarLong(delta);
+        writeVarLong(length);
+        out.write(data, offset, length);
+        chunkCount++;
+        byteCount += length;
+    }
+
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -1,23 +1,118 @@
 package com.magpi.util;
 
 import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
 import com.magpi.model.Measurement;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
  * Manages serial port connections for communicating with Arduino devices
  */
 public class SerialPortManager {
+    /**
+     * How bytes are pulled from the serial port
+     */
+    public enum ReadMode {
+        /** jSerialComm notifies us as soon as bytes are available */
+        EVENT_DRIVEN,
+        /** A dedicated thread blocks in readBytes until bytes arrive */
+        BLOCKING
+    }
+
+    /**
+     * Wire format the device is sending
+     */
+    public enum Protocol {
+        /** "Meter N:current:duration" lines, understood by all firmware */
+        TEXT,
+        /** CRC-protected frames decoded by BinaryFrameDecoder */
+        BINARY
+    }
+
+    /**
+     * Receives readings as primitive values, without creating Measurement objects
+     */
+    public interface ReadingListener {
+        /**
+         * Called on the reading thread for every frame from a known meter
+         * @param meter The meter number
+         * @param current The current value
+         * @param duration The duration value
+         */
+        void onReading(int meter, double current, double duration);
+    }
+
+    // Read timeout for blocking mode, so the read thread notices stopReading()
+    private static final int BLOCKING_READ_TIMEOUT_MS = 200;
+    // Asks binary-capable firmware to switch to binary frames; older firmware ignores it
+    private static final byte[] BINARY_PROTOCOL_REQUEST = "#BIN1\n".getBytes(StandardCharsets.US_ASCII);
+
     private SerialPort serialPort;
+    private volatile String portName;
+    private ReadMode readMode = ReadMode.EVENT_DRIVEN;
+    private ThreadFactory readThreadFactory;
     private Thread readThread;
     private AtomicBoolean running = new AtomicBoolean(false);
-    private Consumer<Measurement> measurementConsumer;
+    private ReadingListener readingListener;
+    private volatile Runnable connectionLostHandler;
+    private boolean binaryProtocolEnabled = true;
+    private boolean binaryRequestRepeated;
+    private volatile Protocol protocol = Protocol.TEXT;
+    private SerialCaptureReader replayReader;
+    private double replaySpeed;
+    private final Object captureLock = new Object();
+    private SerialCaptureWriter captureWriter;
+    private final AtomicLong frameCount = new AtomicLong();
+    private final AtomicLong invalidFrameCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong readErrorCount = new AtomicLong();
+    private final byte[] readBuffer = new byte[256];
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+    private long chunkArrivalNanos;
+    private final MeasurementFrameParser frameParser = new MeasurementFrameParser(
+            new MeasurementFrameParser.FrameHandler() {
+                @Override
+                public void onFrame(int meter, double current, double duration) {
+                    if (protocol == Protocol.TEXT && binaryProtocolEnabled && !binaryRequestRepeated) {
+                        // The board resets when the port opens and may have missed the first
+                        // request; now that it is talking, ask once more
+                        binaryRequestRepeated = true;
+                        requestBinaryProtocol();
+                    }
+                    processReading(meter, current, duration);
+                }
+
+                @Override
+                public void onInvalidFrame(byte[] line, int length) {
+                    invalidFrameCount.incrementAndGet();
+                    System.err.println("Invalid data format: " +
+                            new String(line, 0, length, StandardCharsets.US_ASCII));
+                }
+            });
+    private final BinaryFrameDecoder binaryDecoder = new BinaryFrameDecoder(
+            new MeasurementFrameParser.FrameHandler() {
+                @Override
+                public void onFrame(int meter, double current, double duration) {
+                    protocol = Protocol.BINARY;
+                    processReading(meter, current, duration);
+                }
+
+                @Override
+                public void onInvalidFrame(byte[] frame, int length) {
+                    invalidFrameCount.incrementAndGet();
+                    System.err.println("CRC mismatch in binary frame from " + portName);
+                }
+            }, frameParser);
     
     /**
      * Default constructor
@@ -30,28 +125,38 @@ public class SerialPortManager {
      * @return The system port name or null if not found
      */
     public String detectArduinoPort() {
+        List<String> ports = detectArduinoPorts();
+        return ports.isEmpty() ? null : ports.get(0); // null if no suitable port found
+    }
+    
+    /**
+     * Detects all ports that look like Arduino devices. If no port is named
+     * like an Arduino, every USB serial port is returned instead.
+     * @return The system port names, or an empty list if none were found
+     */
+    public static List<String> detectArduinoPorts() {
         SerialPort[] ports = SerialPort.getCommPorts();
+        List<String> arduinoPorts = new ArrayList<>();
+        List<String> usbPorts = new ArrayList<>();
 
         for (SerialPort port : ports) {
             // Arduino usually has "USB-SERIAL CH340" or "Arduino" in its name
             if (port.getDescriptivePortName().contains("USB-SERIAL CH340") ||
                     port.getDescriptivePortName().contains("Arduino")) {
-                return port.getSystemPortName();
-            }
-        }
-
-        // If no Arduino port is found, try to find any USB serial port
-        for (SerialPort port : ports) {
-            if (port.getDescriptivePortName().contains("USB")) {
-                return port.getSystemPortName();
+                arduinoPorts.add(port.getSystemPortName());
+            } else if (port.getDescriptivePortName().contains("USB")) {
+                // Fall back to any other USB serial port
+                usbPorts.add(port.getSystemPortName());
             }
         }
 
-        return null; // No suitable port found
+        return arduinoPorts.isEmpty() ? usbPorts : arduinoPorts;
     }
     
     /**
-     * Opens a connection to the specified port
+     * Opens a connection to the specified port. Unless disabled, the device is
+     * asked to switch to the binary protocol; firmware that does not know the
+     * request keeps sending text, which is decoded as before.
      * @param portName The system name of the port to open
      * @return true if successful, false otherwise
      */
@@ -62,7 +167,179 @@ public class SerialPortManager {
         serialPort.setParity(SerialPort.NO_PARITY);
         serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 0, 0);
         
-        return serialPort.openPort();
+        if (!serialPort.openPort()) {
+            return false;
+        }
+        // Only a port that opened becomes the port of this manager
+        this.portName = portName;
+        
+        protocol = Protocol.TEXT;
+        binaryRequestRepeated = false;
+        if (binaryProtocolEnabled) {
+            requestBinaryProtocol();
+        }
+        return true;
+    }
+    
+    /**
+     * Opens a capture file recorded with startCapture in place of a serial port.
+     * Once reading starts, the capture is played back through the same decoding
+     * path as live data, so everything downstream sees ordinary readings.
+     * @param name The name to report as the port name
+     * @param captureFile The capture file to replay
+     * @param speed Playback speed: 1 for real time, N for N times faster,
+     *              0 or less for as fast as possible
+     * @return true if the capture was opened, false otherwise
+     */
+    public boolean openReplay(String name, File captureFile, double speed) {
+        try {
+            replayReader = new SerialCaptureReader(captureFile);
+        } catch (IOException e) {
+            System.err.println("Failed to open serial capture " + captureFile + ": " + e.getMessage());
+            return false;
+        }
+        this.portName = name;
+        this.replaySpeed = speed;
+        protocol = Protocol.TEXT;
+        return true;
+    }
+    
+    /**
+     * Starts recording the raw byte stream of this port
+     * @param file The capture file to write
+     * @throws IOException If the file cannot be created
+     */
+    public void startCapture(File file) throws IOException {
+        SerialCaptureWriter writer = new SerialCaptureWriter(file);
+        synchronized (captureLock) {
+            stopCapture();
+            captureWriter = writer;
+        }
+    }
+    
+    /**
+     * Stops recording and closes the capture file
+     */
+    public void stopCapture() {
+        synchronized (captureLock) {
+            if (captureWriter != null) {
+                try {
+                    captureWriter.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing serial capture: " + e.getMessage());
+                }
+                captureWriter = null;
+            }
+        }
+    }
+    
+    private void requestBinaryProtocol() {
+        if (serialPort == null) {
+            return; // Replaying a capture
+        }
+        if (serialPort.writeBytes(BINARY_PROTOCOL_REQUEST, BINARY_PROTOCOL_REQUEST.length) < 0) {
+            System.err.println("Failed to request binary protocol on " + portName);
+        }
+    }
+    
+    /**
+     * Enables or disables the binary protocol request sent by openConnection.
+     * Binary frames are decoded whenever they arrive either way.
+     * @param binaryProtocolEnabled true to request binary frames
+     */
+    public void setBinaryProtocolEnabled(boolean binaryProtocolEnabled) {
+        this.binaryProtocolEnabled = binaryProtocolEnabled;
+    }
+    
+    /**
+     * Gets the protocol the device is using. Reports TEXT until the first valid
+     * binary frame has been received.
+     */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+    
+    /**
+     * Sets how bytes are read from the port. Must be called before startReading.
+     * @param readMode The read mode to use
+     */
+    public void setReadMode(ReadMode readMode) {
+        this.readMode = readMode;
+    }
+    
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+    
+    /**
+     * Sets the factory for the reader thread used in blocking mode.
+     * By default a platform daemon thread is created.
+     * @param readThreadFactory The thread factory, or null for the default
+     */
+    public void setReadThreadFactory(ThreadFactory readThreadFactory) {
+        this.readThreadFactory = readThreadFactory;
+    }
+    
+    /**
+     * Sets a handler that is called when the port fails or is unplugged while
+     * reading. It runs on the reading thread after reading has stopped, so it
+     * must not block; SerialPortSupervisor uses it to schedule a reconnect.
+     * @param connectionLostHandler The handler, or null for none
+     */
+    public void setConnectionLostHandler(Runnable connectionLostHandler) {
+        this.connectionLostHandler = connectionLostHandler;
+    }
+    
+    /**
+     * Gets the system name of the port passed to openConnection
+     */
+    public String getPortName() {
+        return portName;
+    }
+    
+    /**
+     * Gets the number of frames received from known meters
+     */
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+    
+    /**
+     * Gets the number of lines that could not be decoded
+     */
+    public long getInvalidFrameCount() {
+        return invalidFrameCount.get();
+    }
+    
+    /**
+     * Gets the number of raw bytes read from the port
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+    
+    /**
+     * Gets the number of binary frames lost on the link, from gaps in the
+     * device sequence numbers
+     */
+    public long getLostFrameCount() {
+        return binaryDecoder.getLostFrameCount();
+    }
+    
+    /**
+     * Gets the number of failed reads
+     */
+    public long getReadErrorCount() {
+        return readErrorCount.get();
+    }
+    
+    /**
+     * Gets the histogram of delays between a frame's bytes being read from the
+     * port and its measurement being handed to the consumer
+     * @return The latency histogram
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
     }
     
     /**
@@ -70,65 +347,186 @@ public class SerialPortManager {
      * @param consumer A consumer function to handle the measurements
      */
     public void startReading(Consumer<Measurement> consumer) {
-        if (serialPort == null || !serialPort.isOpen()) {
+        startReading((meter, current, duration) ->
+                consumer.accept(new Measurement(Measurement.meterTypeFor(meter), current, duration)));
+    }
+    
+    /**
+     * Starts reading data from the serial port into a ring buffer. Readings are
+     * published as primitive records, so no Measurement objects are created.
+     * @param buffer The buffer that hands readings to the EDT
+     */
+    public void startReading(MeasurementRingBuffer buffer) {
+        startReading(buffer::offer);
+    }
+    
+    /**
+     * Starts reading data from the serial port
+     * @param listener The listener that receives each reading on the reading thread
+     */
+    public void startReading(ReadingListener listener) {
+        if (replayReader == null && (serialPort == null || !serialPort.isOpen())) {
             throw new IllegalStateException("Serial port is not open");
         }
         
-        this.measurementConsumer = consumer;
+        this.readingListener = listener;
+        frameParser.reset();
+        binaryDecoder.reset();
         running.set(true);
         
-        readThread = new Thread(this::readData);
-        readThread.setDaemon(true);
-        readThread.start();
+        if (replayReader != null) {
+            readThread = new Thread(this::replayData, "serial-replay-" + portName);
+            readThread.setDaemon(true);
+            readThread.start();
+        } else if (readMode == ReadMode.EVENT_DRIVEN) {
+            serialPort.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
+            serialPort.addDataListener(new SerialPortDataListener() {
+                @Override
+                public int getListeningEvents() {
+                    return SerialPort.LISTENING_EVENT_DATA_AVAILABLE | SerialPort.LISTENING_EVENT_PORT_DISCONNECTED;
+                }
+                
+                @Override
+                public void serialEvent(SerialPortEvent event) {
+                    if (event.getEventType() == SerialPort.LISTENING_EVENT_PORT_DISCONNECTED) {
+                        connectionLost();
+                    } else if (event.getEventType() == SerialPort.LISTENING_EVENT_DATA_AVAILABLE) {
+                        readAvailableData();
+                    }
+                }
+            });
+        } else {
+            serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, BLOCKING_READ_TIMEOUT_MS, 0);
+            if (readThreadFactory != null) {
+                readThread = readThreadFactory.newThread(this::readData);
+            } else {
+                readThread = new Thread(this::readData, "serial-reader-" + portName);
+                readThread.setDaemon(true);
+            }
+            readThread.start();
+        }
     }
     
-    private void readData() {
-        try (InputStream in = serialPort.getInputStream();
-             BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
-            
-            while (running.get()) {
-                if (serialPort.bytesAvailable() > 0) {
-                    String line = reader.readLine();
-                    if (line != null && !line.isEmpty()) {
-                        System.out.println("Received: " + line); // For debugging
-                        processReading(line);
-                    }
-                } else {
-                    Thread.sleep(50);
+    /**
+     * Drains everything currently buffered by the driver. Runs on the
+     * jSerialComm event thread in event-driven mode.
+     */
+    private void readAvailableData() {
+        int available;
+        while (running.get() && (available = serialPort.bytesAvailable()) > 0) {
+            int count = serialPort.readBytes(readBuffer, Math.min(available, readBuffer.length));
+            if (count <= 0) {
+                if (count < 0) {
+                    readErrorCount.incrementAndGet();
+                    connectionLost();
                 }
+                break;
             }
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error reading from serial port: " + e.getMessage());
+            onChunk(readBuffer, 0, count);
         }
     }
     
-    private void processReading(String data) {
+    /**
+     * Read loop for blocking mode. readBytes returns as soon as at least one
+     * byte has arrived, or after the read timeout when the line is idle.
+     */
+    private void readData() {
+        while (running.get()) {
+            int count = serialPort.readBytes(readBuffer, readBuffer.length);
+            if (count < 0) {
+                readErrorCount.incrementAndGet();
+                connectionLost();
+                break;
+            }
+            if (count > 0) {
+                onChunk(readBuffer, 0, count);
+            }
+        }
+    }
+    
+    /**
+     * Stops reading after the port failed and notifies the connection lost handler.
+     * Does nothing if reading was already stopped on purpose.
+     */
+    private void connectionLost() {
+        if (!running.getAndSet(false)) {
+            return;
+        }
+        System.err.println("Lost connection to serial port " + portName);
+        if (connectionLostHandler != null) {
+            connectionLostHandler.run();
+        }
+    }
+    
+    /**
+     * Plays back the capture opened with openReplay
+     */
+    private void replayData() {
         try {
-            String[] parts = data.split(":");
-            if (parts.length == 3) {
-                String meter = parts[0].trim();
-                double currentValue = Double.parseDouble(parts[1].trim());
-                double duration = Double.parseDouble(parts[2].trim());
-                
-                // Determine meter type
-                String meterType = "";
-                if (meter.equalsIgnoreCase("Meter 1")) {
-                    meterType = "Headshot";
-                } else if (meter.equalsIgnoreCase("Meter 2")) {
-                    meterType = "Coilshot";
-                }
-                
-                // Create and pass measurement to consumer
-                if (!meterType.isEmpty() && measurementConsumer != null) {
-                    Measurement measurement = new Measurement(meterType, currentValue, duration);
-                    measurementConsumer.accept(measurement);
+            long chunks = replayReader.replay(this::onChunk, replaySpeed, running::get);
+            System.out.println("Replay of " + portName + " finished after " + chunks + " chunks");
+        } catch (IOException e) {
+            readErrorCount.incrementAndGet();
+            System.err.println("Error replaying serial capture: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Handles one chunk of bytes read from the port or a capture
+     */
+    private void onChunk(byte[] data, int offset, int count) {
+        chunkArrivalNanos = System.nanoTime();
+        byteCount.addAndGet(count);
+        
+        synchronized (captureLock) {
+            if (captureWriter != null) {
+                try {
+                    captureWriter.write(data, offset, count, chunkArrivalNanos);
+                } catch (IOException e) {
+                    System.err.println("Error writing serial capture, recording stopped: " + e.getMessage());
+                    stopCapture();
                 }
-            } else {
-                System.err.println("Invalid data format: " + data);
             }
-        } catch (Exception e) {
-            System.err.println("Error processing reading: " + e.getMessage());
         }
+        
+        decode(data, offset, count);
+    }
+    
+    /**
+     * Splits the byte stream between the text parser and the binary decoder
+     */
+    private void decode(byte[] data, int offset, int count) {
+        int end = offset + count;
+        int pos = offset;
+        while (pos < end) {
+            if (binaryDecoder.isInFrame()) {
+                pos += binaryDecoder.consume(data, pos, end - pos);
+                continue;
+            }
+            
+            int textStart = pos;
+            while (pos < end && data[pos] != BinaryFrameDecoder.SYNC_1) {
+                pos++;
+            }
+            if (pos > textStart) {
+                frameParser.feed(data, textStart, pos - textStart);
+            }
+            if (pos < end) {
+                // Always consumes at least the sync byte
+                pos += binaryDecoder.consume(data, pos, end - pos);
+            }
+        }
+    }
+    
+    private void processReading(int meter, double current, double duration) {
+        // Readings from unknown meters are ignored
+        if (Measurement.meterTypeFor(meter) == null || readingListener == null) {
+            return;
+        }
+        
+        frameCount.incrementAndGet();
+        readingListener.onReading(meter, current, duration);
+        latencyHistogram.record(System.nanoTime() - chunkArrivalNanos);
     }
     
     /**
@@ -136,7 +534,10 @@ public class SerialPortManager {
      */
     public void stopReading() {
         running.set(false);
-        if (readThread != null && readThread.isAlive()) {
+        if (serialPort != null) {
+            serialPort.removeDataListener();
+        }
+        if (readThread != null && readThread.isAlive() && readThread != Thread.currentThread()) {
             try {
                 readThread.interrupt();
                 readThread.join(1000); // Wait up to 1 second for thread to finish
@@ -150,10 +551,20 @@ public class SerialPortManager {
      * Closes the serial port connection
      */
     public void closeConnection() {
+        stopCapture();
+        if (replayReader != null) {
+            stopReading();
+            try {
+                replayReader.close();
+            } catch (IOException e) {
+                System.err.println("Error closing serial capture: " + e.getMessage());
+            }
+            replayReader = null;
+        }
         if (serialPort != null && serialPort.isOpen()) {
             stopReading();
             serialPort.closePort();
             serialPort = null;
         }
     }
-} 
\ No newline at end of file
+}
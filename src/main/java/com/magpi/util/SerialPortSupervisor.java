@@ -0,0 +1,193 @@
+package com.magpi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps a SerialPortManager connected. When the port fails or is unplugged,
+ * the supervisor closes it, looks for the device again with the same rules
+ * as SerialPortManager.detectArduinoPorts, and reopens it with exponential
+ * backoff. Once the board is back, it is reopened within the maximum backoff
+ * interval. Readings keep flowing to the same listener.
+ */
+public class SerialPortSupervisor {
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final long DEFAULT_MAX_BACKOFF_MS = 5000;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "serial-supervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SerialPortManager manager;
+    private final Predicate<String> portInUse;
+    private final long maxBackoffMs;
+    private SerialPortManager.ReadingListener listener;
+    // The port the supervisor started on, which is preferred when it comes back
+    private volatile String originalPortName;
+    private volatile boolean supervising;
+    private volatile boolean connected;
+    private long backoffMs;
+    private long disconnectedAtNanos;
+
+    private final AtomicLong disconnectCount = new AtomicLong();
+    private final AtomicLong reconnectCount = new AtomicLong();
+    private final AtomicLong failedAttemptCount = new AtomicLong();
+    private volatile long lastGapNanos;
+    private volatile long maxGapNanos;
+    private volatile long totalGapNanos;
+
+    /**
+     * Creates a supervisor with the default maximum backoff of 5 seconds
+     * @param manager The manager to keep connected; its port must already be open
+     * @param portInUse Tells whether a port is already claimed by another reader
+     */
+    public SerialPortSupervisor(SerialPortManager manager, Predicate<String> portInUse) {
+        this(manager, portInUse, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * Creates a supervisor
+     * @param manager The manager to keep connected; its port must already be open
+     * @param portInUse Tells whether a port is already claimed by another reader
+     * @param maxBackoffMs The longest wait between two reconnect attempts
+     */
+    public SerialPortSupervisor(SerialPortManager manager, Predicate<String> portInUse, long maxBackoffMs) {
+        this.manager = manager;
+        this.portInUse = portInUse;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * Starts reading and supervising the connection
+     * @param listener The listener that receives readings, across reconnects
+     */
+    public void start(SerialPortManager.ReadingListener listener) {
+        this.listener = listener;
+        originalPortName = manager.getPortName();
+        supervising = true;
+        connected = true;
+        manager.setConnectionLostHandler(this::onConnectionLost);
+        manager.startReading(listener);
+    }
+
+    /**
+     * Stops supervising and closes the port
+     */
+    public synchronized void stop() {
+        supervising = false;
+        manager.setConnectionLostHandler(null);
+        manager.closeConnection();
+    }
+
+    private void onConnectionLost() {
+        if (!supervising) {
+            return;
+        }
+        connected = false;
+        disconnectCount.incrementAndGet();
+        disconnectedAtNanos = System.nanoTime();
+        backoffMs = INITIAL_BACKOFF_MS;
+
+        // Runs on the reader thread, which must be allowed to exit before the port is closed
+        SCHEDULER.execute(this::attemptReconnect);
+    }
+
+    private synchronized void attemptReconnect() {
+        if (!supervising) {
+            return;
+        }
+
+        manager.closeConnection();
+        for (String portName : candidatePorts()) {
+            if (manager.openConnection(portName)) {
+                manager.startReading(listener);
+                onReconnected();
+                return;
+            }
+            manager.closeConnection();
+        }
+
+        failedAttemptCount.incrementAndGet();
+        SCHEDULER.schedule(this::attemptReconnect, backoffMs, TimeUnit.MILLISECONDS);
+        backoffMs = Math.min(backoffMs * 2, maxBackoffMs);
+    }
+
+    /**
+     * Lists the ports to try: the original port if it is present again, then any
+     * other detected port that no other reader has claimed, since a replugged
+     * board may come back under a different name
+     */
+    private List<String> candidatePorts() {
+        String originalPort = originalPortName;
+        List<String> detected = SerialPortManager.detectArduinoPorts();
+        List<String> candidates = new ArrayList<>();
+        if (detected.contains(originalPort)) {
+            candidates.add(originalPort);
+        }
+        for (String portName : detected) {
+            if (!portName.equals(originalPort) && !portInUse.test(portName)) {
+                candidates.add(portName);
+            }
+        }
+        return candidates;
+    }
+
+    private void onReconnected() {
+        long gap = System.nanoTime() - disconnectedAtNanos;
+        lastGapNanos = gap;
+        maxGapNanos = Math.max(maxGapNanos, gap);
+        totalGapNanos += gap;
+        reconnectCount.incrementAndGet();
+        connected = true;
+        System.out.printf("Reconnected to serial port %s after %.0f ms%n", manager.getPortName(), gap / 1e6);
+    }
+
+    public SerialPortManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Checks whether the port is currently open and being read
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getDisconnectCount() {
+        return disconnectCount.get();
+    }
+
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    /**
+     * Gets the number of reconnect attempts that found no usable port
+     */
+    public long getFailedAttemptCount() {
+        return failedAttemptCount.get();
+    }
+
+    /**
+     * Gets the duration of the most recent data gap, from the disconnect being
+     * detected to the port being reopened, in milliseconds
+     */
+    public double getLastGapMillis() {
+        return lastGapNanos / 1e6;
+    }
+
+    public double getMaxGapMillis() {
+        return maxGapNanos / 1e6;
+    }
+
+    public double getTotalGapMillis() {
+        return totalGapNanos / 1e6;
+    }
+}
@@ -0,0 +1,746 @@
+package com.magpi.util;
+
+import com.magpi.model.Measurement;
+import com.magpi.model.TestSession;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Archive of completed test sessions. The table rows of every session are
+ * appended to one HistoryRowFile per meter, and a small record per session
+ * holds its details, where its rows start and the status of each row.
+ * <pre>
+ *   sessions.mpses:  "MPSES" version(1 byte), then per session:
+ *                    length(4) payload(length) CRC-32 of payload(4)
+ *   headshot.mphist, coilshot.mphist:  rows of all sessions, see HistoryRowFile
+ * </pre>
+ * The session records are read at startup to build in-memory indexes by
+ * start date, operator, machine ID, part description and row status, so a
+ * query only touches the sessions and rows it returns. A session record is
+ * written after its rows, so a crash while archiving leaves unreferenced
+ * rows but never a session with missing rows.
+ */
+public class SessionHistoryStore implements Closeable {
+    public static final String STORE_DIR = System.getProperty("user.home") + "/MagPi/History/Archive";
+
+    public static final byte STATUS_NONE = 0;
+    public static final byte STATUS_PASS = 1;
+    public static final byte STATUS_FAIL = 2;
+
+    // The columns of the history tables, one value per column in every archived row
+    private static final String[] COLUMN_NAMES = {
+            "Part No", "Current 1", "T 1", "Current 2", "T 2",
+            "Current 3", "T 3", "Current 4", "T 4",
+            "Current 5", "T 5", "Status"
+    };
+    public static final int COLUMN_COUNT = COLUMN_NAMES.length;
+
+    private static final byte[] MAGIC = {'M', 'P', 'S', 'E', 'S'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+
+    /**
+     * The details of one archived session and the rows it owns
+     */
+    public static class SessionRecord {
+        private final int id;
+        private final LocalDateTime startTime;
+        private final LocalDateTime endTime;
+        private final String operatorName;
+        private final String machineId;
+        private final String supervisorId;
+        private final String companyName;
+        private final String partDescription;
+        private final double headShotThreshold;
+        private final double coilShotThreshold;
+        private final int headshotFirstRow;
+        private final byte[] headshotStatuses;
+        private final int coilshotFirstRow;
+        private final byte[] coilshotStatuses;
+
+        private SessionRecord(int id, LocalDateTime startTime, LocalDateTime endTime,
+                              String operatorName, String machineId, String supervisorId,
+                              String companyName, String partDescription,
+                              double headShotThreshold, double coilShotThreshold,
+                              int headshotFirstRow, byte[] headshotStatuses,
+                              int coilshotFirstRow, byte[] coilshotStatuses) {
+            this.id = id;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.operatorName = operatorName;
+            this.machineId = machineId;
+            this.supervisorId = supervisorId;
+            this.companyName = companyName;
+            this.partDescription = partDescription;
+            this.headShotThreshold = headShotThreshold;
+            this.coilShotThreshold = coilShotThreshold;
+            this.headshotFirstRow = headshotFirstRow;
+            this.headshotStatuses = headshotStatuses;
+            this.coilshotFirstRow = coilshotFirstRow;
+            this.coilshotStatuses = coilshotStatuses;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public LocalDateTime getStartTime() {
+            return startTime;
+        }
+
+        public LocalDateTime getEndTime() {
+            return endTime;
+        }
+
+        public String getOperatorName() {
+            return operatorName;
+        }
+
+        public String getMachineId() {
+            return machineId;
+        }
+
+        public String getSupervisorId() {
+            return supervisorId;
+        }
+
+        public String getCompanyName() {
+            return companyName;
+        }
+
+        public String getPartDescription() {
+            return partDescription;
+        }
+
+        public double getHeadShotThreshold() {
+            return headShotThreshold;
+        }
+
+        public double getCoilShotThreshold() {
+            return coilShotThreshold;
+        }
+
+        /**
+         * Gets the index of the first row of this session in the row file of a meter
+         * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+         */
+        public int getFirstRow(int meter) {
+            return meter == Measurement.HEADSHOT_METER ? headshotFirstRow : coilshotFirstRow;
+        }
+
+        /**
+         * Gets the number of rows of this session for a meter
+         * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+         */
+        public int getRowCount(int meter) {
+            return statuses(meter).length;
+        }
+
+        /**
+         * Gets the status of one row of this session
+         * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+         * @param index The row within the session
+         * @return STATUS_NONE, STATUS_PASS or STATUS_FAIL
+         */
+        public byte getStatus(int meter, int index) {
+            return statuses(meter)[index];
+        }
+
+        private byte[] statuses(int meter) {
+            return meter == Measurement.HEADSHOT_METER ? headshotStatuses : coilshotStatuses;
+        }
+    }
+
+    /**
+     * Criteria for finding archived sessions and rows. Criteria left null match everything.
+     */
+    public static class Query {
+        private LocalDateTime from;
+        private LocalDateTime to;
+        private String operatorName;
+        private String machineId;
+        private String partDescription;
+        private byte status = STATUS_NONE;
+
+        public LocalDateTime getFrom() {
+            return from;
+        }
+
+        /**
+         * Sets the earliest session start time, inclusive
+         */
+        public void setFrom(LocalDateTime from) {
+            this.from = from;
+        }
+
+        public LocalDateTime getTo() {
+            return to;
+        }
+
+        /**
+         * Sets the latest session start time, exclusive
+         */
+        public void setTo(LocalDateTime to) {
+            this.to = to;
+        }
+
+        public String getOperatorName() {
+            return operatorName;
+        }
+
+        public void setOperatorName(String operatorName) {
+            this.operatorName = blankToNull(operatorName);
+        }
+
+        public String getMachineId() {
+            return machineId;
+        }
+
+        public void setMachineId(String machineId) {
+            this.machineId = blankToNull(machineId);
+        }
+
+        public String getPartDescription() {
+            return partDescription;
+        }
+
+        public void setPartDescription(String partDescription) {
+            this.partDescription = blankToNull(partDescription);
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        /**
+         * Restricts the rows to a status
+         * @param status STATUS_PASS, STATUS_FAIL, or STATUS_NONE for rows of any status
+         */
+        public void setStatus(byte status) {
+            this.status = status;
+        }
+
+        private static String blankToNull(String text) {
+            return text == null || text.trim().isEmpty() ? null : text;
+        }
+    }
+
+    private final File directory;
+    private final boolean readOnly;
+    private final FileChannel sessionChannel;
+    private final FileLock lock;
+    private final HistoryRowFile headshotRows;
+    private final HistoryRowFile coilshotRows;
+    private final List<SessionRecord> sessions = new ArrayList<>();
+    private final TreeMap<Long, List<Integer>> sessionsByStart = new TreeMap<>();
+    private final Map<String, List<Integer>> sessionsByOperator = new HashMap<>();
+    private final Map<String, List<Integer>> sessionsByMachine = new HashMap<>();
+    private final Map<String, List<Integer>> sessionsByPart = new HashMap<>();
+    private final List<Integer> sessionsWithFailures = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Gets the column names of the history tables
+     * @return A new array, COLUMN_COUNT long
+     */
+    public static String[] getColumnNames() {
+        return COLUMN_NAMES.clone();
+    }
+
+    /**
+     * Opens the archive in STORE_DIR, creating it if needed
+     * @param columnCount The number of columns of the history tables
+     * @throws IOException If the archive cannot be opened
+     */
+    public SessionHistoryStore(int columnCount) throws IOException {
+        this(new File(STORE_DIR), columnCount);
+    }
+
+    /**
+     * Opens an archive, creating it if needed
+     * @param directory The directory holding the archive files
+     * @param columnCount The number of columns of the history tables
+     * @throws IOException If the archive cannot be opened or another program is writing to it
+     */
+    public SessionHistoryStore(File directory, int columnCount) throws IOException {
+        this(directory, columnCount, false);
+    }
+
+    /**
+     * Opens an archive. A writer holds an exclusive lock on the archive until
+     * it is closed, so two programs never append to it together. A read-only
+     * archive takes no lock and shows the sessions archived when it was opened.
+     * @param directory The directory holding the archive files
+     * @param columnCount The number of columns of the history tables
+     * @param readOnly true to only read an existing archive, false to create it if needed and archive sessions
+     * @throws IOException If the archive cannot be opened, or another program is writing to it and readOnly is false
+     */
+    public SessionHistoryStore(File directory, int columnCount, boolean readOnly) throws IOException {
+        this.directory = directory;
+        this.readOnly = readOnly;
+        File sessionFile = new File(directory, "sessions.mpses");
+        if (readOnly) {
+            this.sessionChannel = FileChannel.open(sessionFile.toPath(), StandardOpenOption.READ);
+            this.lock = null;
+        } else {
+            directory.mkdirs();
+            this.sessionChannel = FileChannel.open(sessionFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.lock = lockArchive();
+        }
+
+        HistoryRowFile headshot = null;
+        HistoryRowFile coilshot = null;
+        try {
+            headshot = new HistoryRowFile(new File(directory, "headshot.mphist"), columnCount, readOnly);
+            coilshot = new HistoryRowFile(new File(directory, "coilshot.mphist"), columnCount, readOnly);
+            this.headshotRows = headshot;
+            this.coilshotRows = coilshot;
+            loadSessions();
+        } catch (IOException e) {
+            if (headshot != null) {
+                headshot.close();
+            }
+            if (coilshot != null) {
+                coilshot.close();
+            }
+            // Closing the channel also releases the lock
+            sessionChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the lock that every file of the archive is written under
+     */
+    private FileLock lockArchive() throws IOException {
+        FileLock archiveLock;
+        try {
+            archiveLock = sessionChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another store in this program
+            archiveLock = null;
+        } catch (IOException e) {
+            sessionChannel.close();
+            throw e;
+        }
+        if (archiveLock == null) {
+            sessionChannel.close();
+            throw new IOException("The session archive is in use by another program: " + directory);
+        }
+        return archiveLock;
+    }
+
+    private void loadSessions() throws IOException {
+        if (sessionChannel.size() == 0 && readOnly) {
+            throw new IOException("Not a session archive: " + directory);
+        }
+        if (sessionChannel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put((byte) VERSION);
+            header.flip();
+            sessionChannel.write(header, 0);
+            sessionChannel.position(HEADER_SIZE);
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) sessionChannel.size());
+        while (buffer.hasRemaining() && sessionChannel.read(buffer, buffer.position()) >= 0) {
+            // Read the whole index file in as few calls as possible
+        }
+        buffer.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Not a session archive: " + directory);
+        }
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || buffer.get() != VERSION) {
+            throw new IOException("Not a session archive: " + directory);
+        }
+
+        int validLength = buffer.position();
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() - 4) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), start + 4, length);
+            if (buffer.getInt(start + 4 + length) != (int) crc.getValue()) {
+                break;
+            }
+            index(readSession(buffer));
+            buffer.position(start + 4 + length + 4);
+            validLength = buffer.position();
+        }
+
+        // Drop a record torn by a crash so the next one follows the last good one
+        if (validLength < buffer.limit() && !readOnly) {
+            sessionChannel.truncate(validLength);
+        }
+        sessionChannel.position(validLength);
+    }
+
+    /**
+     * Adds a completed session and its table rows to the archive
+     * @param session The session
+     * @param headshot The headshot table rows
+     * @param coilshot The coilshot table rows
+     * @return The archived session
+     * @throws IOException If the session cannot be written
+     */
+    public synchronized SessionRecord archive(TestSession session, List<HistoryRowFile.Row> headshot,
+                                              List<HistoryRowFile.Row> coilshot) throws IOException {
+        if (readOnly) {
+            throw new IOException("The session archive is open read-only: " + directory);
+        }
+        int headshotFirstRow = headshotRows.getRowCount();
+        byte[] headshotStatuses = appendRows(headshotRows, headshot);
+        int coilshotFirstRow = coilshotRows.getRowCount();
+        byte[] coilshotStatuses = appendRows(coilshotRows, coilshot);
+        headshotRows.sync();
+        coilshotRows.sync();
+
+        LocalDateTime endTime = session.getEndTime() != null ? session.getEndTime() : LocalDateTime.now();
+        SessionRecord record = new SessionRecord(sessions.size(), session.getStartTime(), endTime,
+                text(session.getOperatorName()), text(session.getMachineId()), text(session.getSupervisorId()),
+                text(session.getCompanyName()), text(session.getPartDescription()),
+                session.getHeadShotThreshold(), session.getCoilShotThreshold(),
+                headshotFirstRow, headshotStatuses, coilshotFirstRow, coilshotStatuses);
+
+        ByteBuffer buffer = writeSession(record);
+        while (buffer.hasRemaining()) {
+            sessionChannel.write(buffer);
+        }
+        sessionChannel.force(false);
+        index(record);
+        return record;
+    }
+
+    private static byte[] appendRows(HistoryRowFile rowFile, List<HistoryRowFile.Row> rows) throws IOException {
+        byte[] statuses = new byte[rows.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            HistoryRowFile.Row row = rows.get(i);
+            rowFile.append(row);
+            statuses[i] = statusOf(row);
+        }
+        return statuses;
+    }
+
+    /**
+     * Classifies a row the way the history tables show it: an orange status
+     * cell is a failed part and a green one a passed part
+     * @param row The row
+     * @return STATUS_NONE, STATUS_PASS or STATUS_FAIL
+     */
+    public static byte statusOf(HistoryRowFile.Row row) {
+        int statusColor = row.colors[row.colors.length - 1];
+        if (statusColor == Color.ORANGE.getRGB() || "FAIL".equals(row.status) || "Reject".equals(row.status)) {
+            return STATUS_FAIL;
+        }
+        if (statusColor == Color.GREEN.getRGB() || "PASS".equals(row.status) || "Accept".equals(row.status)) {
+            return STATUS_PASS;
+        }
+        return STATUS_NONE;
+    }
+
+    /**
+     * Finds the archived sessions that match a query, ignoring its status
+     * @param query The criteria
+     * @return The matching sessions, oldest first
+     */
+    public synchronized List<SessionRecord> findSessions(Query query) {
+        List<Integer> candidates = null;
+        candidates = narrower(candidates, lookup(sessionsByOperator, query.getOperatorName()));
+        candidates = narrower(candidates, lookup(sessionsByMachine, query.getMachineId()));
+        candidates = narrower(candidates, lookup(sessionsByPart, query.getPartDescription()));
+        if (query.getStatus() == STATUS_FAIL) {
+            candidates = narrower(candidates, sessionsWithFailures);
+        }
+        if (query.getFrom() != null || query.getTo() != null) {
+            // Only gather the date range when no other index has narrowed it down to a few sessions
+            if (candidates == null || candidates.size() > 64) {
+                candidates = narrower(candidates, sessionsInRange(query.getFrom(), query.getTo()));
+            }
+        }
+
+        if (candidates == null) {
+            return new ArrayList<>(sessions);
+        }
+
+        int[] ids = new int[candidates.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = candidates.get(i);
+        }
+        Arrays.sort(ids);
+        List<SessionRecord> result = new ArrayList<>();
+        for (int id : ids) {
+            SessionRecord record = sessions.get(id);
+            if (matches(record, query)) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the archived rows of a meter that match a query
+     * @param query The criteria
+     * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+     * @return The row indexes in the row file of the meter, in archive order
+     */
+    public synchronized int[] findRows(Query query, int meter) {
+        int[] rows = new int[256];
+        int count = 0;
+        byte status = query.getStatus();
+        for (SessionRecord record : findSessions(query)) {
+            int first = record.getFirstRow(meter);
+            int sessionRows = record.getRowCount(meter);
+            if (count + sessionRows > rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(rows.length * 2, count + sessionRows));
+            }
+            for (int i = 0; i < sessionRows; i++) {
+                if (status == STATUS_NONE || record.getStatus(meter, i) == status) {
+                    rows[count++] = first + i;
+                }
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Gets the statuses of archived rows
+     * @param rows Row indexes in the row file of the meter, as returned by findRows
+     * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+     * @return The status of each row, STATUS_NONE for rows not owned by a session
+     */
+    public synchronized byte[] getStatuses(int[] rows, int meter) {
+        byte[] statuses = new byte[rows.length];
+        SessionRecord record = null;
+        for (int i = 0; i < rows.length; i++) {
+            int row = rows[i];
+            if (record == null || row < record.getFirstRow(meter) || row >= record.getFirstRow(meter) + record.getRowCount(meter)) {
+                record = sessionOwning(row, meter);
+            }
+            if (record != null) {
+                statuses[i] = record.getStatus(meter, row - record.getFirstRow(meter));
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Finds the session that owns a row; sessions are archived in row order
+     */
+    private SessionRecord sessionOwning(int row, int meter) {
+        int low = 0;
+        int high = sessions.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            SessionRecord record = sessions.get(mid);
+            if (row < record.getFirstRow(meter)) {
+                high = mid - 1;
+            } else if (row >= record.getFirstRow(meter) + record.getRowCount(meter)) {
+                low = mid + 1;
+            } else {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the file holding the archived rows of a meter
+     * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+     */
+    public HistoryRowFile getRowFile(int meter) {
+        return meter == Measurement.HEADSHOT_METER ? headshotRows : coilshotRows;
+    }
+
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Gets the archived sessions, oldest first
+     */
+    public synchronized List<SessionRecord> getSessions() {
+        return Collections.unmodifiableList(new ArrayList<>(sessions));
+    }
+
+    private boolean matches(SessionRecord record, Query query) {
+        if (query.getFrom() != null && record.getStartTime().isBefore(query.getFrom())) {
+            return false;
+        }
+        if (query.getTo() != null && !record.getStartTime().isBefore(query.getTo())) {
+            return false;
+        }
+        return matchesText(record.getOperatorName(), query.getOperatorName())
+                && matchesText(record.getMachineId(), query.getMachineId())
+                && matchesText(record.getPartDescription(), query.getPartDescription());
+    }
+
+    private static boolean matchesText(String value, String wanted) {
+        return wanted == null || key(value).equals(key(wanted));
+    }
+
+    private List<Integer> sessionsInRange(LocalDateTime from, LocalDateTime to) {
+        Map<Long, List<Integer>> range;
+        if (from != null && to != null) {
+            range = sessionsByStart.subMap(toEpochMillis(from), true, toEpochMillis(to), false);
+        } else if (from != null) {
+            range = sessionsByStart.tailMap(toEpochMillis(from), true);
+        } else {
+            range = sessionsByStart.headMap(toEpochMillis(to), false);
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (List<Integer> sameStart : range.values()) {
+            ids.addAll(sameStart);
+        }
+        return ids;
+    }
+
+    private static List<Integer> narrower(List<Integer> current, List<Integer> candidate) {
+        if (candidate == null) {
+            return current;
+        }
+        return current == null || candidate.size() < current.size() ? candidate : current;
+    }
+
+    private static List<Integer> lookup(Map<String, List<Integer>> index, String value) {
+        if (value == null) {
+            return null;
+        }
+        List<Integer> ids = index.get(key(value));
+        return ids != null ? ids : Collections.emptyList();
+    }
+
+    private void index(SessionRecord record) {
+        sessions.add(record);
+        int id = record.getId();
+        sessionsByStart.computeIfAbsent(toEpochMillis(record.getStartTime()), k -> new ArrayList<>()).add(id);
+        sessionsByOperator.computeIfAbsent(key(record.getOperatorName()), k -> new ArrayList<>()).add(id);
+        sessionsByMachine.computeIfAbsent(key(record.getMachineId()), k -> new ArrayList<>()).add(id);
+        sessionsByPart.computeIfAbsent(key(record.getPartDescription()), k -> new ArrayList<>()).add(id);
+        if (contains(record.headshotStatuses, STATUS_FAIL) || contains(record.coilshotStatuses, STATUS_FAIL)) {
+            sessionsWithFailures.add(id);
+        }
+    }
+
+    private static boolean contains(byte[] statuses, byte status) {
+        for (byte value : statuses) {
+            if (value == status) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ByteBuffer writeSession(SessionRecord record) {
+        byte[][] fields = {
+                utf8(record.operatorName), utf8(record.machineId), utf8(record.supervisorId),
+                utf8(record.companyName), utf8(record.partDescription)
+        };
+        int length = 8 + 8 + 8 + 8 + 4 + 4 + record.headshotStatuses.length + 4 + 4 + record.coilshotStatuses.length;
+        for (byte[] field : fields) {
+            length += 2 + field.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4);
+        buffer.putInt(length);
+        buffer.putLong(toEpochMillis(record.startTime)).putLong(toEpochMillis(record.endTime));
+        buffer.putDouble(record.headShotThreshold).putDouble(record.coilShotThreshold);
+        for (byte[] field : fields) {
+            buffer.putShort((short) field.length).put(field);
+        }
+        buffer.putInt(record.headshotFirstRow).putInt(record.headshotStatuses.length).put(record.headshotStatuses);
+        buffer.putInt(record.coilshotFirstRow).putInt(record.coilshotStatuses.length).put(record.coilshotStatuses);
+
+        crc.reset();
+        crc.update(buffer.array(), 4, length);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private SessionRecord readSession(ByteBuffer buffer) {
+        LocalDateTime startTime = fromEpochMillis(buffer.getLong());
+        LocalDateTime endTime = fromEpochMillis(buffer.getLong());
+        double headShotThreshold = buffer.getDouble();
+        double coilShotThreshold = buffer.getDouble();
+        String operatorName = readString(buffer);
+        String machineId = readString(buffer);
+        String supervisorId = readString(buffer);
+        String companyName = readString(buffer);
+        String partDescription = readString(buffer);
+        int headshotFirstRow = buffer.getInt();
+        byte[] headshotStatuses = new byte[buffer.getInt()];
+        buffer.get(headshotStatuses);
+        int coilshotFirstRow = buffer.getInt();
+        byte[] coilshotStatuses = new byte[buffer.getInt()];
+        buffer.get(coilshotStatuses);
+        return new SessionRecord(sessions.size(), startTime, endTime, operatorName, machineId, supervisorId,
+                companyName, partDescription, headShotThreshold, coilShotThreshold,
+                headshotFirstRow, headshotStatuses, coilshotFirstRow, coilshotStatuses);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String text = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+    private static byte[] utf8(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= 0xFFFF ? bytes : Arrays.copyOf(bytes, 0xFFFF);
+    }
+
+    private static String text(String value) {
+        return value != null ? value : "";
+    }
+
+    private static String key(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime fromEpochMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sessionChannel.close();
+        } finally {
+            headshotRows.close();
+            coilshotRows.close();
+        }
+    }
+}
@@ -0,0 +1,543 @@
+package com.magpi.util;
+
+import com.magpi.model.Measurement;
+import com.magpi.model.TestPart;
+import com.magpi.model.TestSession;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of a test session. Every part, measurement, status and
+ * threshold change is appended as a small binary record, so a session can be
+ * rebuilt after a crash or power cut.
+ * <pre>
+ *   header:  "MPJRN" version(1 byte)
+ *   record:  length(4) type(1) payload(length - 1) CRC-32 of type and payload(4)
+ * </pre>
+ * Records are collected in memory and written and forced to disk by a
+ * background thread at a fixed interval, so appending costs no system call.
+ * At most one interval of records is lost in a power cut. Recovery stops at
+ * the first incomplete or corrupt record.
+ */
+public class SessionJournal implements Closeable {
+    public static final String JOURNAL_DIR = System.getProperty("user.home") + "/MagPi/Journal";
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 200;
+
+    private static final byte[] MAGIC = {'M', 'P', 'J', 'R', 'N'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int MAX_NAME_ATTEMPTS = 1000;
+
+    private static final byte SESSION_STARTED = 1;
+    private static final byte THRESHOLDS = 2;
+    private static final byte PART_ADDED = 3;
+    private static final byte MEASUREMENT = 4;
+    private static final byte STATUS_CHANGED = 5;
+    private static final byte SESSION_ENDED = 6;
+
+    private static final ScheduledExecutorService SYNC_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-journal-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final FileChannel channel;
+    private final long syncIntervalMs;
+    private final CRC32 crc = new CRC32();
+    private final Object ioLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private boolean closed;
+    private int recordStart;
+    private long recordCount;
+    private long syncCount;
+
+    private SessionJournal(File file, FileChannel channel, long syncIntervalMs) {
+        this.file = file;
+        this.channel = channel;
+        this.syncIntervalMs = syncIntervalMs;
+        if (syncIntervalMs > 0) {
+            SYNC_SCHEDULER.schedule(this::syncAndReschedule, syncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Creates a journal for a new session in JOURNAL_DIR and records its start
+     * @param session The session that was just started
+     * @param syncIntervalMs How often records are forced to disk; 0 forces every record
+     * @return The journal
+     * @throws IOException If the journal cannot be created
+     */
+    public static SessionJournal create(TestSession session, long syncIntervalMs) throws IOException {
+        File directory = new File(JOURNAL_DIR);
+        directory.mkdirs();
+        String timestamp = session.getStartTime().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+
+        // Sessions started in the same second get a numbered name rather than replacing a journal
+        File file = new File(directory, "session_" + timestamp + ".mpjrn");
+        FileChannel channel = null;
+        for (int attempt = 2; channel == null; attempt++) {
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                if (attempt > MAX_NAME_ATTEMPTS) {
+                    throw e;
+                }
+                file = new File(directory, "session_" + timestamp + "_" + attempt + ".mpjrn");
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put((byte) VERSION);
+        header.flip();
+        channel.write(header);
+
+        SessionJournal journal = new SessionJournal(file, channel, syncIntervalMs);
+        journal.sessionStarted(session);
+        return journal;
+    }
+
+    /**
+     * Reopens a recovered journal to keep appending to it
+     * @param recovery The result of recover
+     * @param syncIntervalMs How often records are forced to disk; 0 forces every record
+     * @return The journal
+     * @throws IOException If the journal cannot be opened
+     */
+    public static SessionJournal reopen(Recovery recovery, long syncIntervalMs) throws IOException {
+        FileChannel channel = FileChannel.open(recovery.getFile().toPath(), StandardOpenOption.WRITE);
+        // Drop a torn record left by the crash so new records follow the last good one
+        channel.truncate(recovery.getValidLength());
+        channel.position(recovery.getValidLength());
+        return new SessionJournal(recovery.getFile(), channel, syncIntervalMs);
+    }
+
+    /**
+     * Gets the sync interval from the magpi.journal.sync.ms system property
+     */
+    public static long configuredSyncIntervalMs() {
+        try {
+            return Long.parseLong(System.getProperty("magpi.journal.sync.ms", String.valueOf(DEFAULT_SYNC_INTERVAL_MS)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_SYNC_INTERVAL_MS;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void sessionStarted(TestSession session) {
+        byte[][] fields = {
+                utf8(session.getOperatorName()), utf8(session.getMachineId()), utf8(session.getSupervisorId()),
+                utf8(session.getCompanyName()), utf8(session.getPartDescription())
+        };
+        int length = 8 + 16;
+        for (byte[] field : fields) {
+            length += 2 + field.length;
+        }
+
+        synchronized (this) {
+            ByteBuffer buffer = beginRecord(SESSION_STARTED, length);
+            buffer.putLong(toEpochMillis(session.getStartTime()));
+            buffer.putDouble(session.getHeadShotThreshold());
+            buffer.putDouble(session.getCoilShotThreshold());
+            for (byte[] field : fields) {
+                buffer.putShort((short) field.length).put(field);
+            }
+            endRecord(buffer);
+        }
+        afterRecord();
+    }
+
+    /**
+     * Records new threshold parameters
+     * @param headShotThreshold The headshot threshold
+     * @param coilShotThreshold The coilshot threshold
+     */
+    public void thresholdsChanged(double headShotThreshold, double coilShotThreshold) {
+        synchronized (this) {
+            ByteBuffer buffer = beginRecord(THRESHOLDS, 16);
+            buffer.putDouble(headShotThreshold).putDouble(coilShotThreshold);
+            endRecord(buffer);
+        }
+        afterRecord();
+    }
+
+    /**
+     * Records a new part
+     * @param partNumber The part number
+     * @param testTime The time the part was created
+     */
+    public void partAdded(int partNumber, LocalDateTime testTime) {
+        synchronized (this) {
+            ByteBuffer buffer = beginRecord(PART_ADDED, 12);
+            buffer.putInt(partNumber).putLong(toEpochMillis(testTime));
+            endRecord(buffer);
+        }
+        afterRecord();
+    }
+
+    /**
+     * Records a measurement
+     * @param partNumber The part the measurement belongs to
+     * @param meter Measurement.HEADSHOT_METER or Measurement.COILSHOT_METER
+     * @param current The current value
+     * @param duration The duration value
+     */
+    public void measurement(int partNumber, int meter, double current, double duration) {
+        synchronized (this) {
+            ByteBuffer buffer = beginRecord(MEASUREMENT, 21);
+            buffer.putInt(partNumber).put((byte) meter).putDouble(current).putDouble(duration);
+            endRecord(buffer);
+        }
+        afterRecord();
+    }
+
+    /**
+     * Records a status change
+     * @param partNumber The part number
+     * @param status The new status
+     */
+    public void statusChanged(int partNumber, String status) {
+        byte[] text = utf8(status);
+        synchronized (this) {
+            ByteBuffer buffer = beginRecord(STATUS_CHANGED, 6 + text.length);
+            buffer.putInt(partNumber).putShort((short) text.length).put(text);
+            endRecord(buffer);
+        }
+        afterRecord();
+    }
+
+    /**
+     * Records the end of the session and forces the journal to disk
+     * @param endTime The time the session ended
+     */
+    public void sessionEnded(LocalDateTime endTime) {
+        synchronized (this) {
+            ByteBuffer buffer = beginRecord(SESSION_ENDED, 8);
+            buffer.putLong(toEpochMillis(endTime));
+            endRecord(buffer);
+        }
+        sync();
+    }
+
+    /**
+     * Gets the number of records appended since the journal was opened
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Gets the number of times the journal was forced to disk
+     */
+    public long getSyncCount() {
+        synchronized (ioLock) {
+            return syncCount;
+        }
+    }
+
+    private ByteBuffer beginRecord(byte type, int payloadLength) {
+        int recordLength = 4 + 1 + payloadLength + 4;
+        if (pending.remaining() < recordLength) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + recordLength));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        recordStart = pending.position();
+        pending.putInt(1 + payloadLength).put(type);
+        return pending;
+    }
+
+    private void endRecord(ByteBuffer buffer) {
+        crc.reset();
+        crc.update(buffer.array(), recordStart + 4, buffer.position() - recordStart - 4);
+        buffer.putInt((int) crc.getValue());
+        recordCount++;
+    }
+
+    private void afterRecord() {
+        // Called without holding the journal lock, since sync takes the I/O lock first
+        if (syncIntervalMs <= 0) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes all pending records and forces them to disk
+     */
+    public void sync() {
+        synchronized (ioLock) {
+            synchronized (this) {
+                if (pending.position() == 0 || closed) {
+                    return;
+                }
+                // Swap buffers so appends continue while the write is in progress
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                pending.clear();
+            }
+
+            writing.flip();
+            try {
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+                syncCount++;
+            } catch (IOException e) {
+                System.err.println("Failed to write session journal " + file + ": " + e.getMessage());
+            }
+            writing.clear();
+        }
+    }
+
+    private void syncAndReschedule() {
+        sync();
+        synchronized (this) {
+            if (!closed) {
+                SYNC_SCHEDULER.schedule(this::syncAndReschedule, syncIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (ioLock) {
+            synchronized (this) {
+                closed = true;
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Finds the most recent journal in JOURNAL_DIR and recovers it if its
+     * session was never ended
+     * @return The recovered session, or null if the last session ended cleanly
+     */
+    public static Recovery findUnfinished() {
+        File[] files = new File(JOURNAL_DIR).listFiles((dir, name) -> name.endsWith(".mpjrn"));
+        if (files == null || files.length == 0) {
+            return null;
+        }
+        // Names carry the start time, so the last name is the latest session
+        Arrays.sort(files);
+        File latest = files[files.length - 1];
+        try {
+            Recovery recovery = recover(latest);
+            return recovery.getSession() != null && !recovery.isEnded() ? recovery : null;
+        } catch (IOException e) {
+            System.err.println("Failed to recover session journal " + latest + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds a session from a journal, stopping at the first torn or corrupt record
+     * @param file The journal file
+     * @return The recovered state
+     * @throws IOException If the file cannot be read or is not a journal
+     */
+    public static Recovery recover(File file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read the whole journal in as few calls as possible
+            }
+            buffer.flip();
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Not a session journal: " + file);
+        }
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || buffer.get() != VERSION) {
+            throw new IOException("Not a session journal: " + file);
+        }
+
+        Recovery recovery = new Recovery(file);
+        CRC32 checksum = new CRC32();
+        byte[] array = buffer.array();
+        long validLength = buffer.position();
+
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < 1 || length > buffer.remaining() - 4) {
+                break;
+            }
+            checksum.reset();
+            checksum.update(array, start + 4, length);
+            if (buffer.getInt(start + 4 + length) != (int) checksum.getValue()) {
+                break;
+            }
+
+            recovery.apply(buffer.get(), buffer);
+            buffer.position(start + 4 + length + 4);
+            validLength = buffer.position();
+        }
+
+        recovery.validLength = validLength;
+        recovery.truncatedBytes = buffer.limit() - validLength;
+        return recovery;
+    }
+
+    /**
+     * A session rebuilt from its journal
+     */
+    public static class Recovery {
+        private final File file;
+        private TestSession session;
+        private boolean ended;
+        private long recordCount;
+        private long validLength;
+        private long truncatedBytes;
+
+        private Recovery(File file) {
+            this.file = file;
+        }
+
+        private void apply(byte type, ByteBuffer buffer) {
+            recordCount++;
+            if (type == SESSION_STARTED) {
+                session = new TestSession();
+                session.setStartTime(fromEpochMillis(buffer.getLong()));
+                session.setHeadShotThreshold(buffer.getDouble());
+                session.setCoilShotThreshold(buffer.getDouble());
+                session.setOperatorName(readString(buffer));
+                session.setMachineId(readString(buffer));
+                session.setSupervisorId(readString(buffer));
+                session.setCompanyName(readString(buffer));
+                session.setPartDescription(readString(buffer));
+                return;
+            }
+            if (session == null) {
+                return;
+            }
+
+            switch (type) {
+                case THRESHOLDS:
+                    session.setHeadShotThreshold(buffer.getDouble());
+                    session.setCoilShotThreshold(buffer.getDouble());
+                    break;
+                case PART_ADDED: {
+                    int partNumber = buffer.getInt();
+                    LocalDateTime testTime = fromEpochMillis(buffer.getLong());
+                    if (session.getPartByNumber(partNumber) == null) {
+                        session.addPart(new TestPart(partNumber, session.getPartDescription(), testTime));
+                    }
+                    break;
+                }
+                case MEASUREMENT: {
+                    TestPart part = partFor(buffer.getInt());
+                    int meter = buffer.get();
+                    double current = buffer.getDouble();
+                    double duration = buffer.getDouble();
+                    if (meter == Measurement.HEADSHOT_METER) {
+                        part.addHeadshotMeasurement(current, duration);
+                    } else if (meter == Measurement.COILSHOT_METER) {
+                        part.addCoilshotMeasurement(current, duration);
+                    }
+                    break;
+                }
+                case STATUS_CHANGED:
+                    partFor(buffer.getInt()).setStatus(readString(buffer));
+                    break;
+                case SESSION_ENDED:
+                    session.endSession(fromEpochMillis(buffer.getLong()));
+                    ended = true;
+                    break;
+                default:
+                    // Unknown record from a newer version; skip it
+                    break;
+            }
+        }
+
+        private TestPart partFor(int partNumber) {
+            TestPart part = session.getPartByNumber(partNumber);
+            if (part == null) {
+                part = new TestPart(partNumber, session.getPartDescription());
+                session.addPart(part);
+            }
+            return part;
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            int length = buffer.getShort() & 0xFFFF;
+            String text = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return text;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Gets the recovered session, or null if the journal holds no session start
+         */
+        public TestSession getSession() {
+            return session;
+        }
+
+        /**
+         * Checks whether the session was ended before the journal stopped
+         */
+        public boolean isEnded() {
+            return ended;
+        }
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Gets the length of the journal up to the last good record
+         */
+        public long getValidLength() {
+            return validLength;
+        }
+
+        /**
+         * Gets the number of bytes after the last good record, left by a torn write
+         */
+        public long getTruncatedBytes() {
+            return truncatedBytes;
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        byte[] bytes = text != null ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return bytes.length > Short.MAX_VALUE ? Arrays.copyOf(bytes, Short.MAX_VALUE) : bytes;
+    }
+
+    private static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime fromEpochMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}